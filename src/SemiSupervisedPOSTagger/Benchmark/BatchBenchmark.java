@@ -0,0 +1,85 @@
+package SemiSupervisedPOSTagger.Benchmark;
+
+import SemiSupervisedPOSTagger.IO.FileManager;
+import SemiSupervisedPOSTagger.Structures.Pair;
+import SemiSupervisedPOSTagger.Structures.Sentence;
+import SemiSupervisedPOSTagger.Tagging.Tagger;
+import SemiSupervisedPOSTagger.Tagging.TaggerModel;
+import SemiSupervisedPOSTagger.Tagging.TaggingSession;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Compares the single-thread throughput of decoding the sentences of a file one by one and in batches of a list of
+ * sizes (see TaggingSession.tagBatch), after checking that every batch size gives the same tags and scores as the
+ * sentence-by-sentence decoder.
+ * usage: BatchBenchmark [model-file] [input-file] [seconds (default:10)] [batch sizes, comma-separated (default:8,32,256)]
+ */
+public class BatchBenchmark {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("usage: BatchBenchmark [model-file] [input-file] [seconds (default:10)] [batch sizes, comma-separated (default:8,32,256)]");
+            return;
+        }
+        Tagger tagger = new Tagger(args[0]);
+        ArrayList<Sentence> sentences = FileManager.readSentences(args[1], tagger.getMaps());
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        String[] sizes = (args.length > 3 ? args[3] : "8,32,256").split(",");
+        TaggingSession session = new TaggerModel(tagger).newSession();
+
+        ArrayList<Pair<int[], Float>> expected = new ArrayList<Pair<int[], Float>>(sentences.size());
+        for (Sentence sentence : sentences)
+            expected.add(session.tagWithScore(sentence, false));
+        for (String size : sizes) {
+            int mismatches = 0;
+            ArrayList<Pair<int[], Float>> results = tagAll(session, sentences, Integer.parseInt(size));
+            for (int s = 0; s < sentences.size(); s++) {
+                if (!Arrays.equals(expected.get(s).first, results.get(s).first)
+                        || Float.floatToIntBits(expected.get(s).second) != Float.floatToIntBits(results.get(s).second))
+                    mismatches++;
+            }
+            if (mismatches > 0)
+                throw new IllegalStateException("batch size " + size + ": " + mismatches + " sentences differ from the one by one decoder");
+        }
+
+        System.out.println("seconds per run: " + seconds);
+        System.out.println("batch size\tsentences/s\ttokens/s");
+        System.out.println("1 (one by one)\t" + run(session, sentences, 1, seconds));
+        for (String size : sizes)
+            System.out.println(size + "\t" + run(session, sentences, Integer.parseInt(size), seconds));
+    }
+
+    private static ArrayList<Pair<int[], Float>> tagAll(TaggingSession session, ArrayList<Sentence> sentences, int batchSize) {
+        ArrayList<Pair<int[], Float>> results = new ArrayList<Pair<int[], Float>>(sentences.size());
+        for (int first = 0; first < sentences.size(); first += batchSize) {
+            if (batchSize == 1)
+                results.add(session.tagWithScore(sentences.get(first), false));
+            else
+                results.addAll(session.tagBatch(sentences.subList(first, Math.min(first + batchSize, sentences.size())), false));
+        }
+        return results;
+    }
+
+    /**
+     * Tags the sentences over and over for the given time, after a short warm-up
+     */
+    private static String run(TaggingSession session, ArrayList<Sentence> sentences, int batchSize, int seconds) {
+        int tokens = 0;
+        for (Sentence sentence : sentences)
+            tokens += sentence.words.length;
+        long warmUp = System.nanoTime() + Math.min(2000000000L, seconds * 200000000L);
+        while (System.nanoTime() < warmUp)
+            tagAll(session, sentences, batchSize);
+
+        long start = System.nanoTime();
+        long end = start + seconds * 1000000000L;
+        long passes = 0;
+        while (System.nanoTime() < end) {
+            tagAll(session, sentences, batchSize);
+            passes++;
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        return String.format("%.0f\t%.0f", passes * sentences.size() / elapsed, passes * tokens / elapsed);
+    }
+}
@@ -0,0 +1,41 @@
+package SemiSupervisedPOSTagger.Benchmark;
+
+import SemiSupervisedPOSTagger.IO.FileManager;
+import SemiSupervisedPOSTagger.Structures.Sentence;
+import SemiSupervisedPOSTagger.Tagging.Tagger;
+
+import java.util.ArrayList;
+
+/**
+ * Tags a dev file with a beam search model for every combination of a list of beam margins and histogram sizes
+ * (0 turns either off), to pick the margin:[d] and histogram:[#k] training options.
+ * usage: BeamSweep [model-file] [dev-file] [seconds] [margins] [histogram sizes]
+ */
+public class BeamSweep {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("usage: BeamSweep [model-file] [dev-file] [seconds (default:5)] [comma-separated margins (default:0,5,10,20,40)] " +
+                    "[comma-separated histogram sizes (default:0,1,2,4)]");
+            return;
+        }
+        Tagger tagger = new Tagger(args[0]);
+        if (!tagger.useBeamSearch) {
+            System.out.println("the model does not use beam search");
+            return;
+        }
+        ArrayList<Sentence> sentences = FileManager.readSentences(args[1], tagger.getMaps());
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        String[] margins = (args.length > 3 ? args[3] : "0,5,10,20,40").split(",");
+        String[] histogramSizes = (args.length > 4 ? args[4] : "0,1,2,4").split(",");
+
+        System.out.println("seconds per run: " + seconds);
+        System.out.println("margin\thistogram\taccuracy\tsentences/s\ttokens/s");
+        for (String margin : margins) {
+            for (String histogramSize : histogramSizes) {
+                tagger.beamMargin = Float.parseFloat(margin);
+                tagger.histogramSize = Integer.parseInt(histogramSize);
+                System.out.println(margin + "\t" + histogramSize + "\t" + TaggerBenchmark.run(tagger, sentences, seconds));
+            }
+        }
+    }
+}
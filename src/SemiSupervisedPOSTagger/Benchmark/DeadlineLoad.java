@@ -0,0 +1,133 @@
+package SemiSupervisedPOSTagger.Benchmark;
+
+import SemiSupervisedPOSTagger.Structures.Pair;
+import SemiSupervisedPOSTagger.Structures.Sentence;
+import SemiSupervisedPOSTagger.Tagging.DeadlinePolicy;
+import SemiSupervisedPOSTagger.Tagging.MicroBatcher;
+import SemiSupervisedPOSTagger.Tagging.TaggerModel;
+import SemiSupervisedPOSTagger.Tagging.TaggingSession;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An open-loop load test of the micro-batcher with and without degradation under deadlines (see DeadlinePolicy):
+ * for each offered load, the sentences of a gold file arrive at random (Poisson) times at that rate for the given
+ * time, and the p50/p99 latency, the accuracy against the gold tags and the degradation counters are printed.
+ * Without degradation the latency grows without bound once the load is above the throughput of the decoder; with it
+ * the tail should stay near the target while the accuracy goes down.
+ * usage: DeadlineLoad [model-file] [gold-file] [target ms (default:10)] [sentences per second, comma-separated] [seconds (default:10)] [threads (default:1)]
+ */
+public class DeadlineLoad {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("usage: DeadlineLoad [model-file] [gold-file] [target ms (default:10)] [sentences per second, comma-separated "
+                    + "(default:250,500,1000,2000,4000)] [seconds (default:10)] [threads (default:1)]");
+            return;
+        }
+        TaggerModel model = TaggerModel.load(args[0]);
+        float target = args.length > 2 ? Float.parseFloat(args[2]) : 10f;
+        String[] rates = (args.length > 3 ? args[3] : "250,500,1000,2000,4000").split(",");
+        int seconds = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+        int threads = args.length > 5 ? Integer.parseInt(args[5]) : 1;
+
+        TaggingSession session = model.newSession();
+        ArrayList<Sentence> sentences = new ArrayList<Sentence>();
+        ArrayList<String[]> gold = new ArrayList<String[]>();
+        read(args[1], session, sentences, gold);
+
+        // warm-up
+        run(model, sentences, gold, target, Double.parseDouble(rates[0]), Math.max(1, seconds / 2), threads, true);
+
+        System.out.println("target ms: " + target + ", seconds: " + seconds + ", threads: " + threads);
+        System.out.println("offered/s\tdegrade\tdone/s\tp50 ms\tp99 ms\taccuracy\tdegraded\tmissed");
+        for (String rate : rates) {
+            for (boolean degrade : new boolean[]{false, true})
+                System.out.println(run(model, sentences, gold, target, Double.parseDouble(rate), seconds, threads, degrade));
+        }
+    }
+
+    private static String run(TaggerModel model, final ArrayList<Sentence> sentences, final ArrayList<String[]> gold, float target, double rate,
+                              int seconds, int threads, boolean degrade) throws Exception {
+        final MicroBatcher batcher = new MicroBatcher(model, threads, 32, target, false, Float.POSITIVE_INFINITY, degrade, null);
+        final TaggingSession names = model.newSession();
+        final LinkedBlockingQueue<Pair<MicroBatcher.Request, Integer>> pending = new LinkedBlockingQueue<Pair<MicroBatcher.Request, Integer>>();
+        final long[] counts = new long[3]; // sentences, tokens, correct tokens
+
+        Thread collector = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Pair<MicroBatcher.Request, Integer> entry = pending.take();
+                        if (entry.first == null)
+                            return;
+                        String[] tags = names.tagNames(entry.first.get().first);
+                        String[] expected = gold.get(entry.second);
+                        counts[0]++;
+                        for (int i = 0; i < tags.length; i++) {
+                            counts[1]++;
+                            if (tags[i].equals(expected[i]))
+                                counts[2]++;
+                        }
+                    }
+                } catch (InterruptedException ignored) {
+                }
+            }
+        });
+        collector.start();
+
+        Random random = new Random(1);
+        long start = System.nanoTime();
+        long end = start + seconds * 1000000000L;
+        long next = start;
+        for (int s = 0; next < end; s = (s + 1) % sentences.size()) {
+            long wait = next - System.nanoTime();
+            if (wait > 0)
+                LockSupport.parkNanos(wait);
+            pending.add(new Pair<MicroBatcher.Request, Integer>(batcher.submit(sentences.get(s), false), s));
+            next += (long) (-Math.log(1 - random.nextDouble()) / rate * 1e9);
+        }
+        pending.add(new Pair<MicroBatcher.Request, Integer>(null, -1));
+        collector.join();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        batcher.shutdown();
+
+        DeadlinePolicy policy = batcher.policy();
+        return String.format("%.0f\t%s\t%.0f\t%.2f\t%.2f\t%.4f\t%.1f%%\t%.1f%%", rate, degrade ? "on" : "off", counts[0] / elapsed,
+                batcher.latencies().percentile(0.5), batcher.latencies().percentile(0.99), counts[2] / (double) counts[1],
+                policy == null ? 0 : 100.0 * policy.degraded() / counts[0], 100.0 * batcher.missedDeadlines() / counts[0]);
+    }
+
+    /**
+     * Reads the sentences of a CONLL file, mapped to the ids of the model, and their gold tags
+     */
+    private static void read(String path, TaggingSession session, ArrayList<Sentence> sentences, ArrayList<String[]> gold) throws Exception {
+        BufferedReader reader = new BufferedReader(new FileReader(path));
+        ArrayList<String> words = new ArrayList<String>();
+        ArrayList<String> langIds = new ArrayList<String>();
+        ArrayList<String> tags = new ArrayList<String>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.trim().length() == 0) {
+                if (words.size() > 0) {
+                    sentences.add(session.sentence(words.toArray(new String[words.size()]), langIds.toArray(new String[langIds.size()]), null));
+                    gold.add(tags.toArray(new String[tags.size()]));
+                }
+                words.clear();
+                langIds.clear();
+                tags.clear();
+            } else if (!line.startsWith("#")) {
+                String[] tokens = line.trim().split("\t");
+                words.add(tokens[1]);
+                langIds.add(tokens[2]);
+                tags.add(tokens[3]);
+            }
+        }
+        reader.close();
+    }
+}
@@ -0,0 +1,90 @@
+package SemiSupervisedPOSTagger.Benchmark;
+
+import SemiSupervisedPOSTagger.IO.FileManager;
+import SemiSupervisedPOSTagger.Structures.Sentence;
+import SemiSupervisedPOSTagger.Tagging.DecoderWorkspace;
+import SemiSupervisedPOSTagger.Tagging.Tagger;
+import SemiSupervisedPOSTagger.Tagging.Viterbi;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares Viterbi decoding with new scratch arrays for every sentence against a reused DecoderWorkspace per thread:
+ * all threads decode the input file over and over for a fixed time, and the throughput, the allocated bytes
+ * and the garbage collection count/time are reported for both.
+ * usage: DecoderBenchmark [model-file] [input-file] [#threads] [seconds]
+ */
+public class DecoderBenchmark {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("usage: DecoderBenchmark [model-file] [input-file] [#threads (default:1)] [seconds (default:10)]");
+            return;
+        }
+        Tagger tagger = new Tagger(args[0]);
+        ArrayList<Sentence> sentences = FileManager.readSentences(args[1], tagger.getMaps());
+        int numThreads = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+
+        // warm up both paths before measuring
+        run(tagger, sentences, numThreads, Math.max(1, seconds / 5), false);
+        run(tagger, sentences, numThreads, Math.max(1, seconds / 5), true);
+
+        System.out.println("threads: " + numThreads + ", seconds per run: " + seconds);
+        System.out.println("mode\tsentences/s\tKB allocated/sentence\tGC count\tGC ms");
+        System.out.println("allocating\t" + run(tagger, sentences, numThreads, seconds, false));
+        System.out.println("workspace\t" + run(tagger, sentences, numThreads, seconds, true));
+    }
+
+    private static String run(final Tagger tagger, final ArrayList<Sentence> sentences, int numThreads, int seconds, final boolean reuseWorkspace)
+            throws Exception {
+        final long deadline = System.nanoTime() + seconds * 1000000000L;
+        final AtomicLong decoded = new AtomicLong();
+        final AtomicLong allocated = new AtomicLong();
+        final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        final boolean countAllocations = threadBean instanceof com.sun.management.ThreadMXBean;
+
+        long gcCount = 0;
+        long gcTime = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount -= gc.getCollectionCount();
+            gcTime -= gc.getCollectionTime();
+        }
+
+        Thread[] threads = new Thread[numThreads];
+        for (int t = 0; t < numThreads; t++) {
+            final int offset = t * sentences.size() / numThreads;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    long startBytes = countAllocations ? ((com.sun.management.ThreadMXBean) threadBean).getThreadAllocatedBytes(getId()) : 0;
+                    DecoderWorkspace workspace = new DecoderWorkspace();
+                    long count = 0;
+                    for (int s = offset; System.nanoTime() < deadline; s = (s + 1) % sentences.size()) {
+                        if (reuseWorkspace)
+                            Viterbi.thirdOrder(sentences.get(s), tagger.perceptron, true, workspace);
+                        else
+                            Viterbi.thirdOrder(sentences.get(s), tagger.perceptron, true);
+                        count++;
+                    }
+                    if (countAllocations)
+                        allocated.addAndGet(((com.sun.management.ThreadMXBean) threadBean).getThreadAllocatedBytes(getId()) - startBytes);
+                    decoded.addAndGet(count);
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount += gc.getCollectionCount();
+            gcTime += gc.getCollectionTime();
+        }
+        String bytes = countAllocations ? String.format("%.2f", allocated.get() / 1024.0 / decoded.get()) : "n/a";
+        return String.format("%.1f", decoded.get() / (double) seconds) + "\t" + bytes + "\t" + gcCount + "\t" + gcTime;
+    }
+}
@@ -0,0 +1,126 @@
+package SemiSupervisedPOSTagger.Benchmark;
+
+import SemiSupervisedPOSTagger.Structures.LatencyHistogram;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A load generator for the serve command: a number of clients post the sentences of a file over and over (each one
+ * request at a time) for the given time, and the client-side throughput and p50/p99 latency are printed with the
+ * counters of the server.
+ * usage: ServerLoad [url] [input-file] [clients] [seconds] [sentences per request]
+ */
+public class ServerLoad {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("usage: ServerLoad [url e.g. http://localhost:8080] [input-file] [clients (default:16)] [seconds (default:10)] "
+                    + "[sentences per request (default:1)]");
+            return;
+        }
+        final String url = args[0];
+        int clients = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        final int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        int perRequest = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+        final ArrayList<String> requests = requests(args[1], perRequest);
+
+        // warm-up, with its own counters
+        run(url, requests, clients, Math.max(1, seconds / 5), new LatencyHistogram(), new AtomicLong(), new AtomicLong());
+
+        LatencyHistogram latencies = new LatencyHistogram();
+        AtomicLong done = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        run(url, requests, clients, seconds, latencies, done, failed);
+
+        System.out.println("clients: " + clients + ", sentences per request: " + perRequest + ", seconds: " + seconds);
+        System.out.println("requests per second: " + String.format("%.1f", done.get() / (double) seconds));
+        System.out.println("sentences per second: " + String.format("%.1f", done.get() * perRequest / (double) seconds));
+        System.out.println("failed requests: " + failed.get());
+        System.out.println("p50 latency ms: " + String.format("%.3f", latencies.percentile(0.5)));
+        System.out.println("p99 latency ms: " + String.format("%.3f", latencies.percentile(0.99)));
+        System.out.println("\nserver:");
+        System.out.print(send(url + "/stats", null));
+    }
+
+    private static void run(final String url, final ArrayList<String> requests, int clients, final int seconds, final LatencyHistogram latencies,
+                            final AtomicLong done, final AtomicLong failed) throws InterruptedException {
+        final long deadline = System.nanoTime() + seconds * 1000000000L;
+        Thread[] threads = new Thread[clients];
+        for (int c = 0; c < clients; c++) {
+            final int first = c;
+            threads[c] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int r = first; System.nanoTime() < deadline; r = (r + 1) % requests.size()) {
+                        long start = System.nanoTime();
+                        try {
+                            send(url + "/tag", requests.get(r));
+                            latencies.record(System.nanoTime() - start);
+                            done.incrementAndGet();
+                        } catch (IOException e) {
+                            failed.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            threads[c].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+    }
+
+    /**
+     * @return the sentences of the file, grouped by the given number per request
+     */
+    private static ArrayList<String> requests(String path, int perRequest) throws IOException {
+        ArrayList<String> requests = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new FileReader(path));
+        StringBuilder request = new StringBuilder();
+        int sentences = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            request.append(line).append("\n");
+            if (line.trim().length() == 0 && ++sentences == perRequest) {
+                requests.add(request.toString());
+                request.setLength(0);
+                sentences = 0;
+            }
+        }
+        reader.close();
+        if (request.toString().trim().length() > 0)
+            requests.add(request.toString());
+        return requests;
+    }
+
+    /**
+     * @param body the body of a POST request, or null for GET
+     */
+    private static String send(String url, String body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        if (body != null) {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            OutputStream output = connection.getOutputStream();
+            output.write(body.getBytes("UTF-8"));
+            output.close();
+        }
+        if (connection.getResponseCode() != 200)
+            throw new IOException("status " + connection.getResponseCode());
+        InputStream input = connection.getInputStream();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = input.read(buffer)) > 0)
+            bytes.write(buffer, 0, n);
+        input.close();
+        return bytes.toString("UTF-8");
+    }
+}
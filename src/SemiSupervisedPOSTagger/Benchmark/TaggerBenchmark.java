@@ -0,0 +1,86 @@
+package SemiSupervisedPOSTagger.Benchmark;
+
+import SemiSupervisedPOSTagger.IO.FileManager;
+import SemiSupervisedPOSTagger.Learning.EmissionCache;
+import SemiSupervisedPOSTagger.Structures.Sentence;
+import SemiSupervisedPOSTagger.Tagging.Tagger;
+
+import java.util.ArrayList;
+
+/**
+ * Compares the accuracy and single-thread throughput of the decoding modes of a model on a gold file:
+ * the full decoder, the full decoder with a large and a small emission score cache (the sentences are decoded over and
+ * over, so the large one ends up with all their windows), the decoder constrained by the tag dictionary of the model,
+ * and coarse-to-fine decoding with a list of pruning thresholds (the speed/accuracy curve).
+ * usage: TaggerBenchmark [model-file] [gold-file] [seconds] [thresholds]
+ */
+public class TaggerBenchmark {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("usage: TaggerBenchmark [model-file] [gold-file] [seconds (default:10)] [comma-separated pruning thresholds (default:1,2,5,10,20)]");
+            return;
+        }
+        Tagger tagger = new Tagger(args[0]);
+        ArrayList<Sentence> sentences = FileManager.readSentences(args[1], tagger.getMaps());
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        String[] thresholds = (args.length > 3 ? args[3] : "1,2,5,10,20").split(",");
+
+        System.out.println("seconds per run: " + seconds);
+        System.out.println("mode\taccuracy\tsentences/s\ttokens/s");
+        configure(tagger, false, Float.POSITIVE_INFINITY);
+        System.out.println("full\t" + run(tagger, sentences, seconds));
+        for (int capacity : new int[]{1 << 18, 1 << 12}) {
+            EmissionCache cache = new EmissionCache(capacity, tagger.perceptron.tagSize(), false);
+            tagger.perceptron.emissionCache = cache;
+            String result = run(tagger, sentences, seconds);
+            String stats = cache.stats();
+            System.out.println("emission_cache:" + capacity + "\t" + result + "\t" + stats.substring(0, stats.indexOf("\n")));
+        }
+        tagger.perceptron.emissionCache = null;
+        configure(tagger, true, Float.POSITIVE_INFINITY);
+        System.out.println("dictionary constrained\t" + run(tagger, sentences, seconds));
+        for (String threshold : thresholds) {
+            configure(tagger, false, Float.parseFloat(threshold));
+            System.out.println("prune:" + threshold + "\t" + run(tagger, sentences, seconds));
+        }
+    }
+
+    private static void configure(Tagger tagger, boolean constrainTags, float pruneThreshold) {
+        tagger.constrainTags = constrainTags;
+        tagger.pruneThreshold = pruneThreshold;
+    }
+
+    /**
+     * Tags the sentences once for the accuracy, then over and over for the given time (after a short warm-up)
+     */
+    static String run(Tagger tagger, ArrayList<Sentence> sentences, int seconds) {
+        int correct = 0;
+        int total = 0;
+        for (Sentence sentence : sentences) {
+            int[] tags = tagger.tag(sentence, false);
+            for (int i = 0; i < tags.length; i++) {
+                if (tags[i] == sentence.pos_tags[i])
+                    correct++;
+                total++;
+            }
+        }
+
+        decodeFor(tagger, sentences, Math.max(1, seconds / 5) * 1000000000L);
+        long[] counts = decodeFor(tagger, sentences, seconds * 1000000000L);
+        return String.format("%.4f\t%.1f\t%.1f", correct / (double) total, counts[0] / (double) seconds, counts[1] / (double) seconds);
+    }
+
+    /**
+     * @return the number of decoded sentences and tokens
+     */
+    private static long[] decodeFor(Tagger tagger, ArrayList<Sentence> sentences, long nanos) {
+        long deadline = System.nanoTime() + nanos;
+        long[] counts = new long[2];
+        for (int s = 0; System.nanoTime() < deadline; s = (s + 1) % sentences.size()) {
+            tagger.tag(sentences.get(s), false);
+            counts[0]++;
+            counts[1] += sentences.get(s).words.length;
+        }
+        return counts;
+    }
+}
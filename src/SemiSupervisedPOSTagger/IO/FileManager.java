@@ -4,7 +4,14 @@ import SemiSupervisedPOSTagger.Structures.IndexMaps;
 import SemiSupervisedPOSTagger.Structures.Sentence;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.nio.Buffer;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -23,37 +30,40 @@ public class FileManager {
 
     public final static HashSet<String> UNIVERSAL_POS_TAGSET = new HashSet<String>(Arrays.asList("ADP", "ADJ", "ADV", "AUX", "CONJ", "DET", "INTJ", "NOUN", "NUM", "PART", "PRON", "PROPN", "PUNCT", "SCONJ", "SYM", "UNK", "VERB", "X"));
     public final static HashSet<String> LANGID_TAGSET = new HashSet<String>(Arrays.asList("spa", "eng", "eng&spa", "fra", "ita", "UNK"));
+    /**
+     * The path that stands for the standard input or output
+     */
+    public final static String STANDARD_STREAM = "-";
+
+    /**
+     * @return a reader of the file, or of the standard input for STANDARD_STREAM
+     */
+    public static BufferedReader openReader(String filePath) throws IOException {
+        if (filePath.equals(STANDARD_STREAM))
+            return new BufferedReader(new InputStreamReader(System.in));
+        return new BufferedReader(new FileReader(filePath));
+    }
+
+    /**
+     * @return a writer of the file, or of the standard output for STANDARD_STREAM (the process output itself, even if
+     * System.out has been redirected)
+     */
+    public static BufferedWriter openWriter(String filePath) throws IOException {
+        if (filePath.equals(STANDARD_STREAM))
+            return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out)));
+        return new BufferedWriter(new FileWriter(filePath));
+    }
 
 
     public static ArrayList<Sentence> readSentences(String filePath, IndexMaps maps) throws Exception {
         System.out.print("Reading CONLL sentences...");
-        BufferedReader reader = new BufferedReader(new FileReader(filePath));
-        String line;
+        SentenceReader reader = new SentenceReader(filePath, maps);
         ArrayList<Sentence> sentences = new ArrayList<Sentence>();
 
-        ArrayList<String> words = new ArrayList<String>();
-        ArrayList<String> pos_tags = new ArrayList<String>();
-        ArrayList<String> lang_tags = new ArrayList<String>();
-
-        String id = "";
-        while ((line = reader.readLine()) != null) {
-            if (line.trim().length() == 0) {
-                sentences.add(new Sentence(id, words, pos_tags, lang_tags, maps));
-                words.clear();
-                pos_tags.clear();
-                lang_tags.clear();
-            } else {
-                if (line.startsWith("#")) {
-                    id = line;
-                } else {
-                    String[] tokens = line.trim().split("\t");
-                    words.add(tokens[1]);
-                    lang_tags.add(tokens[2]);
-                    pos_tags.add(tokens[3]);
-                }
-            }
-
-        }
+        Sentence sentence;
+        while ((sentence = reader.next()) != null)
+            sentences.add(sentence);
+        reader.close();
 
         System.out.print("Done!\n");
         return sentences;
@@ -193,4 +203,37 @@ public class FileManager {
 
         return new IndexMaps(tag_size, stringMap, reversedMap, clusterNMap, clusterMap, tagDictionary);
     }
+
+    /**
+     * Adds the vocabulary of a new training file (and optionally new tag dictionary entries) to existing index maps.
+     * Existing ids are never changed, so the weights of a trained model stay valid.
+     */
+    public static void extendIndexMaps(IndexMaps maps, String filePath, String tagDictionaryPath) throws Exception {
+        System.out.print("Extending index maps...");
+        int oldSize = maps.stringMap.size();
+
+        BufferedReader reader = new BufferedReader(new FileReader(filePath));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (!line.startsWith("#")) {
+                String[] tokens = line.trim().split("\t");
+                if (tokens.length == 4)
+                    maps.addWord(tokens[1], tokens[2]);
+            }
+        }
+        reader.close();
+
+        if (tagDictionaryPath != null && !tagDictionaryPath.equals("")) {
+            BufferedReader tagDictionaryReader = new BufferedReader(new FileReader(tagDictionaryPath));
+            while ((line = tagDictionaryReader.readLine()) != null) {
+                String[] spl = line.split("\t");
+                if (spl.length == 2)
+                    maps.addTagDictionaryEntry(spl[0], spl[1]);
+            }
+            tagDictionaryReader.close();
+        }
+
+        maps.updateReversedMap();
+        System.out.print("done! " + (maps.stringMap.size() - oldSize) + " new strings\n");
+    }
 }
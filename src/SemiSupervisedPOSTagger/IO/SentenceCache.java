@@ -0,0 +1,84 @@
+package SemiSupervisedPOSTagger.IO;
+
+import SemiSupervisedPOSTagger.Structures.IndexMaps;
+import SemiSupervisedPOSTagger.Structures.Sentence;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Binary cache of automatically tagged sentences, used between self-training rounds.
+ * The tokens are kept as strings so that the sentences can be indexed again with maps that grew in the meantime.
+ */
+public class SentenceCache {
+    public static DataOutputStream openWriter(String path) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(path))));
+    }
+
+    public static void write(DataOutputStream writer, Sentence sentence, int[] tags, IndexMaps maps) throws IOException {
+        writer.writeUTF(sentence.id);
+        writer.writeInt(tags.length);
+        for (int i = 0; i < tags.length; i++) {
+            writer.writeUTF(sentence.string_words[i]);
+            writer.writeUTF(sentence.lang_ids[i] >= 0 ? maps.reversedMap[sentence.lang_ids[i]] : "UNK");
+            writer.writeUTF(maps.reversedMap[tags[i]]);
+        }
+    }
+
+    /**
+     * Gives ids to the vocabulary of the cached sentences
+     */
+    public static void extendIndexMaps(String path, IndexMaps maps) throws IOException {
+        DataInputStream reader = openReader(path);
+        ArrayList<String> words = new ArrayList<String>();
+        ArrayList<String> pos_tags = new ArrayList<String>();
+        ArrayList<String> lang_tags = new ArrayList<String>();
+        while (readSentence(reader, words, pos_tags, lang_tags) != null) {
+            for (int i = 0; i < words.size(); i++)
+                maps.addWord(words.get(i), lang_tags.get(i));
+        }
+        reader.close();
+        maps.updateReversedMap();
+    }
+
+    public static ArrayList<Sentence> readSentences(String path, IndexMaps maps) throws IOException {
+        DataInputStream reader = openReader(path);
+        ArrayList<Sentence> sentences = new ArrayList<Sentence>();
+        ArrayList<String> words = new ArrayList<String>();
+        ArrayList<String> pos_tags = new ArrayList<String>();
+        ArrayList<String> lang_tags = new ArrayList<String>();
+        String id;
+        while ((id = readSentence(reader, words, pos_tags, lang_tags)) != null)
+            sentences.add(new Sentence(id, words, pos_tags, lang_tags, maps));
+        reader.close();
+        return sentences;
+    }
+
+    private static DataInputStream openReader(String path) throws IOException {
+        return new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(path))));
+    }
+
+    /**
+     * @return the id of the sentence, or null at the end of the cache
+     */
+    private static String readSentence(DataInputStream reader, ArrayList<String> words, ArrayList<String> pos_tags, ArrayList<String> lang_tags) throws IOException {
+        String id;
+        try {
+            id = reader.readUTF();
+        } catch (EOFException e) {
+            return null;
+        }
+        words.clear();
+        pos_tags.clear();
+        lang_tags.clear();
+        int length = reader.readInt();
+        for (int i = 0; i < length; i++) {
+            words.add(reader.readUTF());
+            lang_tags.add(reader.readUTF());
+            pos_tags.add(reader.readUTF());
+        }
+        return id;
+    }
+}
@@ -0,0 +1,65 @@
+package SemiSupervisedPOSTagger.IO;
+
+import SemiSupervisedPOSTagger.Structures.IndexMaps;
+import SemiSupervisedPOSTagger.Structures.Sentence;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+
+/**
+ * Reads CONLL sentences one at a time, so that large files never have to be fully in memory.
+ * Lines without the tag column (unlabeled data) get the unknown tag ***.
+ */
+public class SentenceReader {
+    private final BufferedReader reader;
+    private final IndexMaps maps;
+
+    private final ArrayList<String> words = new ArrayList<String>();
+    private final ArrayList<String> pos_tags = new ArrayList<String>();
+    private final ArrayList<String> lang_tags = new ArrayList<String>();
+    private String id = "";
+
+    /**
+     * @param filePath the file, or FileManager.STANDARD_STREAM for the standard input
+     */
+    public SentenceReader(String filePath, IndexMaps maps) throws IOException {
+        this(FileManager.openReader(filePath), maps);
+    }
+
+    public SentenceReader(Reader reader, IndexMaps maps) {
+        this.reader = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+        this.maps = maps;
+    }
+
+    /**
+     * @return the next sentence, or null at the end of the input (a last sentence not followed by an empty line is ignored)
+     */
+    public Sentence next() throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.trim().length() == 0) {
+                Sentence sentence = new Sentence(id, words, pos_tags, lang_tags, maps);
+                words.clear();
+                pos_tags.clear();
+                lang_tags.clear();
+                return sentence;
+            } else {
+                if (line.startsWith("#")) {
+                    id = line;
+                } else {
+                    String[] tokens = line.trim().split("\t");
+                    words.add(tokens[1]);
+                    lang_tags.add(tokens[2]);
+                    pos_tags.add(tokens.length > 3 ? tokens[3] : "***");
+                }
+            }
+        }
+        return null;
+    }
+
+    public void close() throws IOException {
+        reader.close();
+    }
+}
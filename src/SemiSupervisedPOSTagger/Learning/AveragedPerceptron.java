@@ -8,6 +8,7 @@ package SemiSupervisedPOSTagger.Learning;
 
 import SemiSupervisedPOSTagger.Structures.InfoStruct;
 import SemiSupervisedPOSTagger.Structures.SpecialWords;
+import SemiSupervisedPOSTagger.Structures.TrainingCheckpoint;
 
 import java.util.HashMap;
 import java.util.HashSet;
@@ -43,6 +44,36 @@ public class AveragedPerceptron {
 
     public HashMap<Integer, HashSet<Integer>> tagDictionary;
 
+    /**
+     * Dense copies of the two transition templates that the decoders read for every tag pair/triple:
+     * the bigram template (featSize - 3) keyed by the previous tag u and flattened as [u * tagSize + v], and
+     * the trigram template (featSize - 2) keyed by (w << 10) + u and flattened as [(w * tagSize + u) * tagSize + v].
+     * They are kept in sync by changeWeight, so the decoders never have to rebuild them.
+     * As with averagedWeights, the avg* tables hold the averaging accumulators while training
+     * and the final averaged values once the model is loaded from an InfoStruct.
+     */
+    public float[] bigramWeights;
+    public float[] trigramWeights;
+    public float[] avgBigramWeights;
+    public float[] avgTrigramWeights;
+
+    /**
+     * Primitive copy of the averaged weights for decoding; only built for models loaded from an InfoStruct
+     */
+    private EmissionTable emissionTable;
+
+    /**
+     * Cache of the emission scores of recurring feature vectors for decoding (isDecode = true), or null; it has to
+     * be the concurrent variant if several threads decode with this perceptron, and is only valid while the weights
+     * do not change
+     */
+    public EmissionCache emissionCache;
+
+    /**
+     * Tag dictionary entries as bitmasks indexed by word; only built for models loaded from an InfoStruct
+     */
+    private long[] tagMasks;
+
     public AveragedPerceptron(final int tagSize, final int featSize, HashMap<Integer, HashSet<Integer>> tagDictionary) {
         featureWeights = new HashMap[tagSize][featSize];
         for (int i = 0; i < featureWeights.length; i++)
@@ -57,9 +88,15 @@ public class AveragedPerceptron {
 
         penalizerWeight = new HashMap<Integer, Float>();
         avgPenalizerWeight = new HashMap<Integer, Float>();
+
+        bigramWeights = new float[tagSize * tagSize];
+        trigramWeights = new float[tagSize * tagSize * tagSize];
+        avgBigramWeights = new float[tagSize * tagSize];
+        avgTrigramWeights = new float[tagSize * tagSize * tagSize];
     }
 
-    private AveragedPerceptron(int tagSize, int featSize, HashMap<Integer, Float>[][] averagedWeights, HashMap<Integer, HashSet<Integer>> tagDictionary, HashMap<Integer, Float> avgPenalizerWeight) {
+    private AveragedPerceptron(int tagSize, int featSize, HashMap<Integer, Float>[][] averagedWeights, HashMap<Integer, HashSet<Integer>> tagDictionary, HashMap<Integer, Float> avgPenalizerWeight,
+                               float[] avgBigramWeights, float[] avgTrigramWeights) {
         featureWeights = new HashMap[tagSize][featSize];
         for (int i = 0; i < featureWeights.length; i++)
             for (int j = 0; j < featureWeights[i].length; j++)
@@ -69,10 +106,102 @@ public class AveragedPerceptron {
         this.averagedWeights = averagedWeights;
         this.tagDictionary = tagDictionary;
         this.avgPenalizerWeight = avgPenalizerWeight;
+
+        bigramWeights = new float[tagSize * tagSize];
+        trigramWeights = new float[tagSize * tagSize * tagSize];
+        if (avgBigramWeights != null && avgTrigramWeights != null) {
+            this.avgBigramWeights = avgBigramWeights;
+            this.avgTrigramWeights = avgTrigramWeights;
+        } else {
+            // models saved before the tables were stored: rebuild them once from the averaged maps
+            this.avgBigramWeights = new float[tagSize * tagSize];
+            this.avgTrigramWeights = new float[tagSize * tagSize * tagSize];
+            for (int v = 0; v < tagSize; v++) {
+                for (int u = 0; u < tagSize; u++) {
+                    this.avgBigramWeights[u * tagSize + v] = score(v, featSize - 3, u, true);
+                    for (int w = 0; w < tagSize; w++) {
+                        int bigram = (w << 10) + u;
+                        this.avgTrigramWeights[(w * tagSize + u) * tagSize + v] = score(v, featSize - 2, bigram, true);
+                    }
+                }
+            }
+        }
     }
 
     public AveragedPerceptron(InfoStruct info) {
-        this(info.tagSize, info.featSize, info.averagedWeights, info.tagDictionary, info.penalizerWeight);
+        this(info.tagSize, info.featSize, info.averagedWeights, info.tagDictionary, info.penalizerWeight, info.bigramScores, info.trigramScores);
+        emissionTable = new EmissionTable(averagedWeights);
+
+        int maxWord = -1;
+        for (int word : tagDictionary.keySet())
+            maxWord = Math.max(maxWord, word);
+        tagMasks = new long[maxWord + 1];
+        for (int word : tagDictionary.keySet())
+            tagMasks[word] = dictionaryMask(tagDictionary.get(word));
+    }
+
+    /**
+     * Starts a new training run from a saved model: its averaged weights become the raw weights and the averaging
+     * starts over, so the model can be trained further (e.g. on newly annotated data).
+     */
+    public static AveragedPerceptron warmStart(InfoStruct info, HashMap<Integer, HashSet<Integer>> tagDictionary) {
+        AveragedPerceptron model = new AveragedPerceptron(info);
+        AveragedPerceptron perceptron = new AveragedPerceptron(info.tagSize, info.featSize, tagDictionary);
+        for (int i = 0; i < perceptron.tagSize(); i++) {
+            for (int j = 0; j < perceptron.featureSize(); j++) {
+                for (int key : model.averagedWeights[i][j].keySet()) {
+                    perceptron.featureWeights[i][j].put(key, model.averagedWeights[i][j].get(key));
+                    perceptron.averagedWeights[i][j].put(key, 0f);
+                }
+            }
+        }
+        for (int key : model.avgPenalizerWeight.keySet()) {
+            perceptron.penalizerWeight.put(key, model.avgPenalizerWeight.get(key));
+            perceptron.avgPenalizerWeight.put(key, 0f);
+        }
+        perceptron.bigramWeights = model.avgBigramWeights.clone();
+        perceptron.trigramWeights = model.avgTrigramWeights.clone();
+        return perceptron;
+    }
+
+    /**
+     * Restores the training state saved in a checkpoint
+     */
+    public AveragedPerceptron(TrainingCheckpoint checkpoint) {
+        this.featureWeights = checkpoint.featureWeights;
+        this.averagedWeights = checkpoint.averagedWeights;
+        this.penalizerWeight = checkpoint.penalizerWeight;
+        this.avgPenalizerWeight = checkpoint.avgPenalizerWeight;
+        this.tagDictionary = checkpoint.maps.getTagDictionary();
+        this.iteration = checkpoint.iteration;
+        this.bigramWeights = checkpoint.bigramWeights;
+        this.trigramWeights = checkpoint.trigramWeights;
+        this.avgBigramWeights = checkpoint.avgBigramWeights;
+        this.avgTrigramWeights = checkpoint.avgTrigramWeights;
+    }
+
+    /**
+     * Shares all the weights of the given perceptron; used by AveragedView
+     */
+    protected AveragedPerceptron(AveragedPerceptron perceptron) {
+        this.featureWeights = perceptron.featureWeights;
+        this.averagedWeights = perceptron.averagedWeights;
+        this.penalizerWeight = perceptron.penalizerWeight;
+        this.avgPenalizerWeight = perceptron.avgPenalizerWeight;
+        this.tagDictionary = perceptron.tagDictionary;
+        this.iteration = perceptron.iteration;
+        this.bigramWeights = perceptron.bigramWeights;
+        this.trigramWeights = perceptron.trigramWeights;
+        this.avgBigramWeights = perceptron.avgBigramWeights;
+        this.avgTrigramWeights = perceptron.avgTrigramWeights;
+    }
+
+    /**
+     * Returns a read-only view that decodes (isDecode = true) with the averaged weights of the current
+     * iteration without copying the feature maps; it is only valid until the next weight change.
+     */
+    public AveragedPerceptron averagedView() {
+        return new AveragedView(this);
     }
 
     public float changeWeight(int tagIndex, int featIndex, int featureName, float change) {
@@ -102,9 +231,33 @@ public class AveragedPerceptron {
         else
             map.put(featureName, iteration * change);
         // }
+        updateTransitionTables(tagIndex, featIndex, featureName, change);
         return change;
     }
 
+    /**
+     * Mirrors a weight change on the transition templates into the dense tables
+     */
+    private void updateTransitionTables(int tagIndex, int featIndex, int featureName, float change) {
+        int tagSize = tagSize();
+        int cell;
+        if (featIndex == featureSize() - 3) {
+            if (featureName < 0 || featureName >= tagSize)
+                return;
+            cell = featureName * tagSize + tagIndex;
+            bigramWeights[cell] += change;
+            avgBigramWeights[cell] += iteration * change;
+        } else if (featIndex == featureSize() - 2) {
+            int w = featureName >> 10;
+            int u = featureName & 1023;
+            if (featureName < 0 || w >= tagSize || u >= tagSize)
+                return;
+            cell = (w * tagSize + u) * tagSize + tagIndex;
+            trigramWeights[cell] += change;
+            avgTrigramWeights[cell] += iteration * change;
+        }
+    }
+
     /**
      * Adds to the iterations
      */
@@ -138,6 +291,30 @@ public class AveragedPerceptron {
         return score;
     }
 
+    /**
+     * Writes score(features, t, isDecode) of every tag t >= 2 to scores[offset + t]
+     */
+    public void emissionScores(final int[] features, final boolean isDecode, final float[] scores, final int offset) {
+        if (isDecode && emissionCache != null) {
+            int hash = EmissionCache.hash(features);
+            if (!emissionCache.get(features, hash, scores, offset)) {
+                computeEmissionScores(features, true, scores, offset);
+                emissionCache.put(features, hash, scores, offset);
+            }
+        } else {
+            computeEmissionScores(features, isDecode, scores, offset);
+        }
+    }
+
+    private void computeEmissionScores(final int[] features, final boolean isDecode, final float[] scores, final int offset) {
+        if (isDecode && emissionTable != null) {
+            emissionTable.scores(features, scores, offset);
+        } else {
+            for (int t = 2; t < tagSize(); t++)
+                scores[offset + t] = score(features, t, isDecode);
+        }
+    }
+
     public float score(final int tagIndex, final int featIndex, final int feat, final boolean isDecode) {
         float score = 0f;
         if (featIndex == featureSize() - 1) {
@@ -155,6 +332,20 @@ public class AveragedPerceptron {
         return score;
     }
 
+    /**
+     * @return bigram transition scores flattened as [u * tagSize + v]
+     */
+    public float[] bigramScores(final boolean isDecode) {
+        return isDecode ? avgBigramWeights : bigramWeights;
+    }
+
+    /**
+     * @return trigram transition scores flattened as [(w * tagSize + u) * tagSize + v]
+     */
+    public float[] trigramScores(final boolean isDecode) {
+        return isDecode ? avgTrigramWeights : trigramWeights;
+    }
+
     public int size() {
         int size = 0;
         for (int i = 0; i < averagedWeights.length; i++)
@@ -191,6 +382,41 @@ public class AveragedPerceptron {
         return avg;
     }
 
+    public float[] getAveragedBigramWeights() {
+        return averageTable(bigramWeights, avgBigramWeights);
+    }
+
+    public float[] getAveragedTrigramWeights() {
+        return averageTable(trigramWeights, avgTrigramWeights);
+    }
+
+    private float[] averageTable(float[] weights, float[] accumulators) {
+        float[] avg = new float[weights.length];
+        for (int i = 0; i < weights.length; i++)
+            avg[i] = weights[i] - (accumulators[i] / iteration);
+        return avg;
+    }
+
+    /**
+     * @return the tags of a word in the tag dictionary as a bitmask (bit t for tag t), or 0 if it is not in the
+     * dictionary; dictCondition(word, t) is the t-th bit of the mask
+     */
+    public long tagMask(int word) {
+        if (tagMasks != null)
+            return word >= 0 && word < tagMasks.length ? tagMasks[word] : 0L;
+        return dictionaryMask(tagDictionary.get(word));
+    }
+
+    private long dictionaryMask(HashSet<Integer> tags) {
+        long mask = 0L;
+        if (tags != null) {
+            for (int tag : tags)
+                if (tag >= 0 && tag < Math.min(tagSize(), 64))
+                    mask |= 1L << tag;
+        }
+        return mask;
+    }
+
     public int dictCondition(int word, int tag) {
         int cond = 0;
         if (tagDictionary.containsKey(word)) {
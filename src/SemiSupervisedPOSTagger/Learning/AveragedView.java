@@ -0,0 +1,52 @@
+package SemiSupervisedPOSTagger.Learning;
+
+import java.util.HashMap;
+
+/**
+ * Decoding view of a perceptron in the middle of training.
+ * The averaged value of a feature is computed on the fly as w - (a / iteration), exactly as
+ * AveragedPerceptron.getAveragedWeights() does, so decoding through the view gives the same
+ * results as saving the averaged model and loading it back.
+ * Only the small tables (transitions and the dictionary penalizer) are materialized.
+ * Scoring with isDecode = false still reads the raw training weights.
+ */
+class AveragedView extends AveragedPerceptron {
+    AveragedView(AveragedPerceptron perceptron) {
+        super(perceptron);
+        this.avgBigramWeights = perceptron.getAveragedBigramWeights();
+        this.avgTrigramWeights = perceptron.getAveragedTrigramWeights();
+        this.avgPenalizerWeight = perceptron.getAvgPenalizerWeight();
+    }
+
+    @Override
+    public float score(final int[] features, int tagIndex, boolean isDecode) {
+        if (!isDecode)
+            return super.score(features, tagIndex, false);
+
+        float score = 0;
+        final HashMap<Integer, Float>[] weights = featureWeights[tagIndex];
+        final HashMap<Integer, Float>[] accumulators = averagedWeights[tagIndex];
+        for (int i = 0; i < features.length; i++) {
+            Float value = weights[i].get(features[i]);
+            if (value != null)
+                score += value - (accumulators[i].get(features[i]) / iteration);
+        }
+        return score;
+    }
+
+    @Override
+    public float score(final int tagIndex, final int featIndex, final int feat, final boolean isDecode) {
+        if (!isDecode)
+            return super.score(tagIndex, featIndex, feat, false);
+
+        float score = 0f;
+        if (featIndex == featureSize() - 1) {
+            if (avgPenalizerWeight.containsKey(feat))
+                score = avgPenalizerWeight.get(feat);
+        }
+        Float value = featureWeights[tagIndex][featIndex].get(feat);
+        if (value != null)
+            score += value - (averagedWeights[tagIndex][featIndex].get(feat) / iteration);
+        return score;
+    }
+}
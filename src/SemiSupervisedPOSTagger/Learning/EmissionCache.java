@@ -0,0 +1,163 @@
+package SemiSupervisedPOSTagger.Learning;
+
+import java.util.Arrays;
+
+/**
+ * A bounded cache of the emission scores of all tags for an emission feature vector, for decoding with a model that
+ * does not change. The features of a word only depend on the word, its two neighbours on each side, their clusters
+ * and its shape, and such windows recur across sentences, so the scores of a recurring window come from one probe
+ * instead of a lookup per feature. The tag dictionary term is not part of it (see AveragedPerceptron.emissionScores).
+ * The entries are kept in a set-associative table: a feature vector can only be in the WAYS slots of the set of its
+ * hash, and a new one replaces the least recently used of them. A hit is verified on the whole feature vector.
+ * The concurrent variant, which the threads of a shared model can use, locks one of a number of stripes of sets for
+ * each access; the other one does no locking and is for a single thread.
+ */
+public class EmissionCache {
+    private static final int WAYS = 4;
+    private static final int STRIPES = 64;
+    /**
+     * Counters of each stripe, at [stripe * COUNTERS + ...], updated under its lock; 8 longs keep stripes on separate
+     * cache lines
+     */
+    private static final int COUNTERS = 8;
+    private static final int CLOCK = 0;
+    private static final int HITS = 1;
+    private static final int MISSES = 2;
+    private static final int EVICTIONS = 3;
+    private static final int ENTRIES = 4;
+
+    private final int tagSize;
+    private final int sets;
+    private final int[][] keys;
+    private final int[] hashes;
+    /**
+     * Access times of the slots for the replacement; 0 for an empty slot
+     */
+    private final long[] stamps;
+    /**
+     * Scores of each slot, indexed [slot * tagSize + t]
+     */
+    private final float[] scores;
+    private final Object[] locks;
+    private final long[] counters;
+    private volatile int keyLength;
+
+    /**
+     * @param capacity   maximum number of cached feature vectors (rounded up to a power of two)
+     * @param concurrent whether several threads use the cache
+     */
+    public EmissionCache(int capacity, int tagSize, boolean concurrent) {
+        this.tagSize = tagSize;
+        int slots = WAYS;
+        while (slots < capacity)
+            slots <<= 1;
+        sets = slots / WAYS;
+        keys = new int[sets * WAYS][];
+        hashes = new int[sets * WAYS];
+        stamps = new long[sets * WAYS];
+        scores = new float[sets * WAYS * tagSize];
+        int stripes = concurrent ? Math.min(STRIPES, sets) : 1;
+        locks = new Object[stripes];
+        for (int s = 0; s < stripes; s++)
+            locks[s] = new Object();
+        counters = new long[stripes * COUNTERS];
+    }
+
+    public static int hash(int[] features) {
+        int h = 1;
+        for (int feature : features)
+            h = 31 * h + feature;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Copies the cached scores of all tags of the feature vector to target[offset..offset + tagSize)
+     *
+     * @return false if they are not cached
+     */
+    public boolean get(int[] features, int hash, float[] target, int offset) {
+        int set = hash & (sets - 1);
+        int stripe = set & (locks.length - 1);
+        if (locks.length == 1)
+            return find(features, hash, set, stripe, target, offset);
+        synchronized (locks[stripe]) {
+            return find(features, hash, set, stripe, target, offset);
+        }
+    }
+
+    /**
+     * Caches the scores of all tags of the feature vector, from source[offset..offset + tagSize)
+     */
+    public void put(int[] features, int hash, float[] source, int offset) {
+        int set = hash & (sets - 1);
+        int stripe = set & (locks.length - 1);
+        if (locks.length == 1) {
+            store(features, hash, set, stripe, source, offset);
+            return;
+        }
+        synchronized (locks[stripe]) {
+            store(features, hash, set, stripe, source, offset);
+        }
+    }
+
+    private boolean find(int[] features, int hash, int set, int stripe, float[] target, int offset) {
+        for (int slot = set * WAYS; slot < set * WAYS + WAYS; slot++) {
+            if (stamps[slot] != 0 && hashes[slot] == hash && Arrays.equals(keys[slot], features)) {
+                System.arraycopy(scores, slot * tagSize, target, offset, tagSize);
+                stamps[slot] = ++counters[stripe * COUNTERS + CLOCK];
+                counters[stripe * COUNTERS + HITS]++;
+                return true;
+            }
+        }
+        counters[stripe * COUNTERS + MISSES]++;
+        return false;
+    }
+
+    private void store(int[] features, int hash, int set, int stripe, float[] source, int offset) {
+        int victim = set * WAYS;
+        for (int slot = set * WAYS; slot < set * WAYS + WAYS; slot++) {
+            if (stamps[slot] != 0 && hashes[slot] == hash && Arrays.equals(keys[slot], features))
+                return;
+            if (stamps[slot] < stamps[victim])
+                victim = slot;
+        }
+        if (stamps[victim] != 0)
+            counters[stripe * COUNTERS + EVICTIONS]++;
+        else
+            counters[stripe * COUNTERS + ENTRIES]++;
+        if (keys[victim] == null || keys[victim].length != features.length)
+            keys[victim] = new int[features.length];
+        keyLength = features.length;
+        System.arraycopy(features, 0, keys[victim], 0, features.length);
+        hashes[victim] = hash;
+        System.arraycopy(source, offset, scores, victim * tagSize, tagSize);
+        stamps[victim] = ++counters[stripe * COUNTERS + CLOCK];
+    }
+
+    /**
+     * @return the counters, one "name: value" per line
+     */
+    public String stats() {
+        long hits = 0;
+        long misses = 0;
+        long evictions = 0;
+        long entries = 0;
+        for (int stripe = 0; stripe < locks.length; stripe++) {
+            synchronized (locks[stripe]) {
+                hits += counters[stripe * COUNTERS + HITS];
+                misses += counters[stripe * COUNTERS + MISSES];
+                evictions += counters[stripe * COUNTERS + EVICTIONS];
+                entries += counters[stripe * COUNTERS + ENTRIES];
+            }
+        }
+        long bytes = (long) scores.length * 4 + hashes.length * 4L + stamps.length * 8L + keys.length * 4L + entries * (16 + 4L * keyLength);
+        long all = hits + misses;
+        StringBuilder output = new StringBuilder();
+        output.append("emission cache hits: " + hits + " of " + all + String.format(" (%.2f%%)", all == 0 ? 0 : 100.0 * hits / all) + "\n");
+        output.append("emission cache evictions: " + evictions + "\n");
+        output.append("emission cache entries: " + entries + " (capacity " + keys.length + ", " + (locks.length > 1 ? "concurrent" : "single-threaded")
+                + ")\n");
+        output.append("emission cache memory MB (approximate): " + String.format("%.2f", bytes / (1024.0 * 1024.0)) + "\n");
+        return output.toString();
+    }
+}
@@ -0,0 +1,78 @@
+package SemiSupervisedPOSTagger.Learning;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Read-only copy of the averaged weights of a loaded model, used to compute emission scores while decoding.
+ * For every feature template, an open-addressing hash table maps a feature value to the weights of all tags,
+ * so the scores of all tags come from one lookup per feature and without boxing the keys.
+ * The sums are done in the same order as AveragedPerceptron.score, so the scores are identical.
+ */
+class EmissionTable {
+    // feature values are never -1 in the weights (see AveragedPerceptron.changeWeight)
+    private static final int EMPTY = -1;
+
+    private final int tagSize;
+    private final int[][] keys;
+    /**
+     * Weights of each template, indexed [slot * tagSize + tag]
+     */
+    private final float[][] weights;
+
+    EmissionTable(HashMap<Integer, Float>[][] averagedWeights) {
+        tagSize = averagedWeights.length;
+        int featSize = averagedWeights[0].length;
+        keys = new int[featSize][];
+        weights = new float[featSize][];
+
+        for (int f = 0; f < featSize; f++) {
+            HashSet<Integer> values = new HashSet<Integer>();
+            for (int t = 0; t < tagSize; t++)
+                values.addAll(averagedWeights[t][f].keySet());
+
+            int capacity = Integer.highestOneBit(Math.max(2, values.size() * 2 - 1)) << 1;
+            keys[f] = new int[capacity];
+            weights[f] = new float[capacity * tagSize];
+            Arrays.fill(keys[f], EMPTY);
+            for (int t = 0; t < tagSize; t++) {
+                for (int value : averagedWeights[t][f].keySet()) {
+                    int slot = find(keys[f], value);
+                    keys[f][slot] = value;
+                    weights[f][slot * tagSize + t] = averagedWeights[t][f].get(value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the emission scores of all tags to scores[offset..offset + tagSize)
+     */
+    void scores(final int[] features, final float[] scores, final int offset) {
+        for (int t = 0; t < tagSize; t++)
+            scores[offset + t] = 0f;
+        for (int f = 0; f < features.length; f++) {
+            int[] templateKeys = keys[f];
+            int slot = find(templateKeys, features[f]);
+            if (templateKeys[slot] == EMPTY)
+                continue;
+            float[] templateWeights = weights[f];
+            int start = slot * tagSize;
+            for (int t = 0; t < tagSize; t++)
+                scores[offset + t] += templateWeights[start + t];
+        }
+    }
+
+    /**
+     * @return the slot of the value, or the empty slot where it would go
+     */
+    private static int find(int[] keys, int value) {
+        int mask = keys.length - 1;
+        int h = value * 0x9E3779B9;
+        int slot = (h ^ (h >>> 16)) & mask;
+        while (keys[slot] != value && keys[slot] != EMPTY)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+}
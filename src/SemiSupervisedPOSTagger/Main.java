@@ -1,8 +1,14 @@
 package SemiSupervisedPOSTagger;
 
+import SemiSupervisedPOSTagger.IO.FileManager;
+import SemiSupervisedPOSTagger.Learning.EmissionCache;
 import SemiSupervisedPOSTagger.Structures.Options;
 import SemiSupervisedPOSTagger.Structures.UpdateMode;
+import SemiSupervisedPOSTagger.Tagging.ResultCache;
 import SemiSupervisedPOSTagger.Tagging.Tagger;
+import SemiSupervisedPOSTagger.Tagging.TaggerModel;
+import SemiSupervisedPOSTagger.Tagging.TaggingServer;
+import SemiSupervisedPOSTagger.Training.SelfTrainer;
 import SemiSupervisedPOSTagger.Training.Trainer;
 
 /**
@@ -16,17 +22,52 @@ public class Main {
     // Victor started.
     public static void main(String[] args) throws Exception {
         Options options = new Options(args);
+        // the standard output carries the tagged sentences, so the messages go to the standard error
+        if ((options.tag || options.tagPartial) && options.outputPath.equals(FileManager.STANDARD_STREAM))
+            System.setOut(System.err);
 
         System.out.println(options);
 
         if (options.train && options.trainPath != "" && options.modelPath != "")
             Trainer.train(options);
+        else if (options.selfTrain && options.trainPath != "" && options.unlabeledPath != "" && options.modelPath != "")
+            SelfTrainer.selfTrain(options);
+        else if (options.update && options.trainPath != "" && options.modelPath != "")
+            Trainer.update(options);
         else if (options.tag && options.inputPath != "" && options.modelPath != "" && options.outputPath != "") {
             Tagger tagger = new Tagger(options.modelPath);
+            tagger.constrainTags = options.constrainTags;
+            tagger.pruneThreshold = options.pruneThreshold;
+            tagger.nbest = options.nbest;
+            tagger.numThreads = options.numThreads;
+            if (options.cacheSize > 0)
+                tagger.cache = new ResultCache(options.cacheSize);
+            if (options.emissionCacheSize > 0)
+                tagger.perceptron.emissionCache = new EmissionCache(options.emissionCacheSize, tagger.perceptron.tagSize(), options.numThreads > 1);
             tagger.tag(options.inputPath, options.outputPath, options.scoreFile);
         } else if (options.tagPartial && options.inputPath != "" && options.modelPath != "" && options.outputPath != "") {
             Tagger tagger = new Tagger(options.modelPath);
+            tagger.constrainTags = options.constrainTags;
+            tagger.pruneThreshold = options.pruneThreshold;
+            tagger.numThreads = options.numThreads;
+            if (options.cacheSize > 0)
+                tagger.cache = new ResultCache(options.cacheSize);
+            if (options.emissionCacheSize > 0)
+                tagger.perceptron.emissionCache = new EmissionCache(options.emissionCacheSize, tagger.perceptron.tagSize(), options.numThreads > 1);
             tagger.partialTag(options.inputPath, options.outputPath, options.scoreFile);
+        } else if (options.serve && options.modelPath != "") {
+            Tagger tagger = new Tagger(options.modelPath);
+            if (options.emissionCacheSize > 0)
+                tagger.perceptron.emissionCache = new EmissionCache(options.emissionCacheSize, tagger.perceptron.tagSize(), options.numThreads > 1);
+            final TaggingServer server = new TaggingServer(new TaggerModel(tagger), options.port, options.numThreads, options.maxBatch,
+                    options.latencyTarget, options.constrainTags, options.pruneThreshold, options.degrade, options.cacheSize);
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run() {
+                    System.out.print(server.stats());
+                }
+            });
+            server.start();
         } else {
             System.out.println(options.showHelp());
         }
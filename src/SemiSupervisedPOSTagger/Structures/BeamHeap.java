@@ -0,0 +1,125 @@
+package SemiSupervisedPOSTagger.Structures;
+
+/**
+ * Keeps the best candidates (tag decision, score, beam number) of a beam step in a fixed-capacity min-heap
+ * over primitive arrays, so that no object is allocated per candidate and the heap can be reused for every position.
+ * Candidates are ordered by score, then by beam number, then by tag decision.
+ */
+public class BeamHeap {
+    private final int capacity;
+    private final float[] scores;
+    private final int[] beamNums;
+    private final int[] tagDecisions;
+    private int size;
+
+    public BeamHeap(int capacity) {
+        this.capacity = capacity;
+        scores = new float[capacity];
+        beamNums = new int[capacity];
+        tagDecisions = new int[capacity];
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Adds a candidate; when the heap is full, the worst of the candidates and the new one is dropped
+     */
+    public void add(int tagDecision, float score, int beamNum) {
+        if (size < capacity) {
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >> 1;
+                if (compare(score, beamNum, tagDecision, parent) >= 0)
+                    break;
+                set(i, parent);
+                i = parent;
+            }
+            set(i, tagDecision, score, beamNum);
+        } else if (capacity > 0 && compare(score, beamNum, tagDecision, 0) > 0) {
+            siftDown(0, tagDecision, score, beamNum, size);
+        }
+    }
+
+    /**
+     * Sorts the candidates in ascending order (the best one last); the heap must be cleared before adding again
+     */
+    public void sort() {
+        for (int end = size - 1; end > 0; end--) {
+            float score = scores[end];
+            int beamNum = beamNums[end];
+            int tagDecision = tagDecisions[end];
+            set(end, 0);
+            siftDown(0, tagDecision, score, beamNum, end);
+        }
+        // the min-heap sort leaves the candidates in descending order
+        for (int i = 0, j = size - 1; i < j; i++, j--) {
+            float score = scores[i];
+            int beamNum = beamNums[i];
+            int tagDecision = tagDecisions[i];
+            set(i, j);
+            set(j, tagDecision, score, beamNum);
+        }
+    }
+
+    public float score(int i) {
+        return scores[i];
+    }
+
+    public int beamNum(int i) {
+        return beamNums[i];
+    }
+
+    public int tagDecision(int i) {
+        return tagDecisions[i];
+    }
+
+    private void siftDown(int i, int tagDecision, float score, int beamNum, int end) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= end)
+                break;
+            if (child + 1 < end && compare(child + 1, child) < 0)
+                child++;
+            if (compare(score, beamNum, tagDecision, child) <= 0)
+                break;
+            set(i, child);
+            i = child;
+        }
+        set(i, tagDecision, score, beamNum);
+    }
+
+    private int compare(int i, int j) {
+        return compare(scores[i], beamNums[i], tagDecisions[i], j);
+    }
+
+    /**
+     * Same order as the former BeamElement.compareTo
+     */
+    private int compare(float score, int beamNum, int tagDecision, int j) {
+        float diff = score - scores[j];
+        if (diff > 0)
+            return 1;
+        else if (diff < 0)
+            return -1;
+        else if (beamNum != beamNums[j])
+            return beamNum > beamNums[j] ? 1 : -1;
+        else
+            return tagDecision - tagDecisions[j];
+    }
+
+    private void set(int i, int j) {
+        set(i, tagDecisions[j], scores[j], beamNums[j]);
+    }
+
+    private void set(int i, int tagDecision, float score, int beamNum) {
+        tagDecisions[i] = tagDecision;
+        scores[i] = score;
+        beamNums[i] = beamNum;
+    }
+}
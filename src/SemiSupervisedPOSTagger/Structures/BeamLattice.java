@@ -0,0 +1,114 @@
+package SemiSupervisedPOSTagger.Structures;
+
+/**
+ * Back pointers of a beam search: level 0 holds the initial state and level l the states after tagging l words.
+ * Every state only stores its last tag, its score and the index of its parent in the previous level, so a step
+ * costs O(beam) instead of copying whole tag prefixes; full sequences are recovered by following the parents.
+ * With hypothesis recombination, a state can also keep a few merged alternatives (parent and score) for n-best lists.
+ */
+public class BeamLattice {
+    private final int length;
+    private final int beamWidth;
+    private final int[] tags;
+    private final int[] parents;
+    private final float[] scores;
+    private final int[] sizes;
+    private final int alternatives;
+    private final int[] alternativeParents;
+    private final float[] alternativeScores;
+    private final int[] alternativeCounts;
+
+    public BeamLattice(int length, int beamWidth) {
+        this(length, beamWidth, 0);
+    }
+
+    public BeamLattice(int length, int beamWidth, int alternatives) {
+        this.length = length;
+        this.beamWidth = beamWidth;
+        this.alternatives = alternatives;
+        tags = new int[(length + 1) * beamWidth];
+        parents = new int[(length + 1) * beamWidth];
+        scores = new float[(length + 1) * beamWidth];
+        sizes = new int[length + 1];
+        alternativeParents = new int[(length + 1) * beamWidth * alternatives];
+        alternativeScores = new float[(length + 1) * beamWidth * alternatives];
+        alternativeCounts = new int[(length + 1) * beamWidth];
+        // the initial state: start tags with score 0
+        sizes[0] = 1;
+    }
+
+    /**
+     * Appends a state to a level; its parent is a state index in the previous level
+     */
+    public void add(int level, int tag, int parent, float score) {
+        int i = level * beamWidth + sizes[level]++;
+        tags[i] = tag;
+        parents[i] = parent;
+        scores[i] = score;
+    }
+
+    /**
+     * Keeps a merged alternative of the last added state of a level: the same last tag with another parent
+     */
+    public void addAlternative(int level, int parent, float score) {
+        int i = level * beamWidth + sizes[level] - 1;
+        if (alternativeCounts[i] < alternatives) {
+            int j = i * alternatives + alternativeCounts[i]++;
+            alternativeParents[j] = parent;
+            alternativeScores[j] = score;
+        }
+    }
+
+    public int alternativeCount(int level, int k) {
+        return alternativeCounts[level * beamWidth + k];
+    }
+
+    public float alternativeScore(int level, int k, int j) {
+        return alternativeScores[(level * beamWidth + k) * alternatives + j];
+    }
+
+    public int size(int level) {
+        return sizes[level];
+    }
+
+    public float score(int level, int k) {
+        return scores[level * beamWidth + k];
+    }
+
+    /**
+     * @return the last tag of a state (0 for the initial state)
+     */
+    public int prevTag(int level, int k) {
+        return tags[level * beamWidth + k];
+    }
+
+    /**
+     * @return the tag before the last tag of a state (0 if there is none)
+     */
+    public int prev2Tag(int level, int k) {
+        return level > 1 ? tags[(level - 1) * beamWidth + parents[level * beamWidth + k]] : 0;
+    }
+
+    /**
+     * @return the tags of a state for the whole sentence; positions after the level are 0
+     */
+    public int[] tags(int level, int k) {
+        int[] sequence = new int[length];
+        for (int l = level; l > 0; l--) {
+            sequence[l - 1] = tags[l * beamWidth + k];
+            k = parents[l * beamWidth + k];
+        }
+        return sequence;
+    }
+
+    public TaggingState state(int level, int k) {
+        return new TaggingState(tags(level, k), level, score(level, k));
+    }
+
+    public TaggingState alternativeState(int level, int k, int j) {
+        int i = (level * beamWidth + k) * alternatives + j;
+        int[] sequence = tags(level - 1, alternativeParents[i]);
+        sequence[level - 1] = prevTag(level, k);
+        return new TaggingState(sequence, level, alternativeScores[i]);
+    }
+}
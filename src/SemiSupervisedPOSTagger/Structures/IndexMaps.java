@@ -12,6 +12,9 @@ import java.util.HashSet;
  * To report any bugs or problems contact rasooli@cs.columbia.edu
  */
 public class IndexMaps implements Serializable {
+    // kept at the value of the original class so that older model files can still be read
+    private static final long serialVersionUID = 3157765592166294432L;
+
     public HashMap<String, Integer> stringMap;
     public String[] reversedMap;
     public final int tagSize;
@@ -53,4 +56,49 @@ public class IndexMaps implements Serializable {
     public HashMap<Integer, HashSet<Integer>> getTagDictionary() {
         return tagDictionary;
     }
+
+    /**
+     * Gives ids to a word of new data, its affixes, their lowercased forms and its language id.
+     * Existing ids are never changed; call updateReversedMap() after the last addition.
+     */
+    public void addWord(String word, String langId) {
+        for (int p = 0; p < Math.min(Sentence.MAX_AFFIX_LENGTH, word.length()); p++) {
+            String prefix = word.substring(0, p + 1);
+            String suffix = word.substring(word.length() - p - 1);
+            addString(prefix);
+            addString(suffix);
+            addString(prefix.toLowerCase());
+            addString(suffix.toLowerCase());
+        }
+        addString(word);
+        addString(word.toLowerCase());
+        addString(langId);
+    }
+
+    public void addTagDictionaryEntry(String word, String tag) {
+        int wi = addString(word.toLowerCase());
+        int ti = addString(tag);
+        if (!tagDictionary.containsKey(wi))
+            tagDictionary.put(wi, new HashSet<Integer>());
+        tagDictionary.get(wi).add(ti);
+    }
+
+    private int addString(String s) {
+        Integer id = stringMap.get(s);
+        if (id == null) {
+            // ids are consecutive, so the next one is the size of the map
+            id = stringMap.size();
+            stringMap.put(s, id);
+        }
+        return id;
+    }
+
+    public void updateReversedMap() {
+        if (reversedMap.length == stringMap.size())
+            return;
+        reversedMap = new String[stringMap.size()];
+        for (String k : stringMap.keySet()) {
+            reversedMap[stringMap.get(k)] = k;
+        }
+    }
 }
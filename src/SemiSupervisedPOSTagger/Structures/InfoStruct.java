@@ -15,25 +15,50 @@ import java.util.HashSet;
  */
 
 public class InfoStruct implements Serializable {
+    // kept at the value of the original class so that older model files can still be read
+    private static final long serialVersionUID = -7218660049650090353L;
+
     public HashMap<Integer, Float>[][] averagedWeights;
     public HashMap<Integer, Float> penalizerWeight;
+    /**
+     * Dense transition tables (see AveragedPerceptron); null in models saved before they were stored
+     */
+    public float[] bigramScores;
+    public float[] trigramScores;
 
     public HashMap<Integer, HashSet<Integer>> tagDictionary;
     public int tagSize;
     public int featSize;
     public int beamSize;
     public boolean useBeamSearch;
+    /**
+     * Hypothesis recombination in beam search; false in older models
+     */
+    public boolean recombine;
+    /**
+     * Beam pruning by score margin and by the number of hypotheses per pair of last two tags; 0 (off) in older models
+     */
+    public float beamMargin;
+    public int histogramSize;
 
-    public InfoStruct(AveragedPerceptron perceptron, boolean useBeamSearch, int beamSize, HashMap<Integer, HashSet<Integer>> tagDictionary, HashMap<Integer, Float> penalizerWeight, boolean doAveraging) {
-        if (doAveraging)
+    public InfoStruct(AveragedPerceptron perceptron, boolean useBeamSearch, int beamSize, boolean recombine, float beamMargin, int histogramSize, HashMap<Integer, HashSet<Integer>> tagDictionary, HashMap<Integer, Float> penalizerWeight, boolean doAveraging) {
+        if (doAveraging) {
             averagedWeights = perceptron.getAveragedWeights();
-        else
+            bigramScores = perceptron.getAveragedBigramWeights();
+            trigramScores = perceptron.getAveragedTrigramWeights();
+        } else {
             averagedWeights = perceptron.featureWeights;
+            bigramScores = perceptron.bigramWeights;
+            trigramScores = perceptron.trigramWeights;
+        }
 
         tagSize = perceptron.tagSize();
         featSize = perceptron.featureSize();
         this.beamSize = beamSize;
         this.useBeamSearch = useBeamSearch;
+        this.recombine = recombine;
+        this.beamMargin = beamMargin;
+        this.histogramSize = histogramSize;
         this.tagDictionary = tagDictionary;
         this.penalizerWeight = penalizerWeight;
     }
@@ -0,0 +1,60 @@
+package SemiSupervisedPOSTagger.Structures;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies in microseconds: eight buckets per power of two, so the percentiles are within
+ * 12.5% of the recorded values, in a fixed amount of memory whatever the number of recorded values.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKETS = 8;
+    private final AtomicLongArray counts = new AtomicLongArray(SUB_BUCKETS * 62);
+
+    public void record(long nanos) {
+        counts.incrementAndGet(bucket(Math.max(0, nanos / 1000)));
+    }
+
+    public long count() {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++)
+            count += counts.get(i);
+        return count;
+    }
+
+    /**
+     * @param quantile e.g. 0.99
+     * @return the latency under which that fraction of the recorded values fall, in milliseconds (0 if there are none)
+     */
+    public double percentile(double quantile) {
+        long[] snapshot = new long[counts.length()];
+        long total = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank)
+                return (lowerBound(i) + lowerBound(i + 1)) / 2000.0;
+        }
+        return lowerBound(snapshot.length) / 1000.0;
+    }
+
+    private static int bucket(long micros) {
+        if (micros < SUB_BUCKETS)
+            return (int) micros;
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        return SUB_BUCKETS * (exponent - 2) + (int) ((micros >> (exponent - 3)) & (SUB_BUCKETS - 1));
+    }
+
+    private static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int exponent = bucket / SUB_BUCKETS + 2;
+        return (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - 3);
+    }
+}
@@ -11,19 +11,42 @@ package SemiSupervisedPOSTagger.Structures;
 public class Options {
     public boolean useBeamSearch;
     public boolean train;
+    public boolean update;
+    public boolean selfTrain;
     public boolean tag;
     public boolean tagPartial;
+    public boolean serve;
     public int beamWidth;
+    public boolean recombine;
+    public float beamMargin;
+    public int histogramSize;
+    public boolean constrainTags;
+    public float pruneThreshold;
+    public int nbest;
     public int trainingIter;
     public String delim;
     public String modelPath;
     public String trainPath;
     public String devPath;
+    public String replayPath;
+    public String unlabeledPath;
+    public double replayRatio;
+    public int selfTrainingRounds;
+    public float confidence;
+    public int numThreads;
+    public int port;
+    public float latencyTarget;
+    public int maxBatch;
+    public boolean degrade;
+    public int cacheSize;
+    public int emissionCacheSize;
     public String inputPath;
     public String outputPath;
     public String clusterFile;
     public String scoreFile;
     public UpdateMode updateMode;
+    public boolean checkpoint;
+    public boolean resume;
     public String tagDictionaryPath;
     public double C;
 
@@ -33,16 +56,36 @@ public class Options {
         tag=false;
         tagPartial=false;
         beamWidth = 20;
+        recombine = false;
+        beamMargin = 0f;
+        histogramSize = 0;
+        constrainTags = false;
+        pruneThreshold = Float.POSITIVE_INFINITY;
+        nbest = 1;
         trainingIter = 20;
         delim="_";
         modelPath="";
         clusterFile="";
         trainPath="";
         devPath="";
+        replayPath="";
+        replayRatio=1.0;
+        unlabeledPath="";
+        selfTrainingRounds=3;
+        confidence=0f;
+        numThreads=Runtime.getRuntime().availableProcessors();
+        port=8080;
+        latencyTarget=10f;
+        maxBatch=32;
+        degrade=false;
+        cacheSize=0;
+        emissionCacheSize=0;
         inputPath="";
         outputPath="";
         tagDictionaryPath="";
         updateMode = UpdateMode.maxViolation;
+        checkpoint = false;
+        resume = false;
         C= -10;
     }
 
@@ -51,16 +94,32 @@ public class Options {
         for(int i=0;i<args.length;i++){
             if(args[i].equals("-viterbi"))
                 useBeamSearch=false;
+            if(args[i].equals("-constrain"))
+                constrainTags=true;
+            if(args[i].startsWith("prune:"))
+                pruneThreshold = Float.parseFloat(args[i].substring(args[i].indexOf("prune:")+6));
+            if(args[i].equals("-recombine"))
+                recombine=true;
+            if(args[i].startsWith("margin:"))
+                beamMargin = Float.parseFloat(args[i].substring(args[i].indexOf("margin:")+7));
+            if(args[i].startsWith("histogram:"))
+                histogramSize = Integer.parseInt(args[i].substring(args[i].indexOf("histogram:")+10));
             if(args[i].startsWith("beam:"))
                 beamWidth = Integer.parseInt(args[i].substring(args[i].indexOf("beam:")+5));
             if(args[i].startsWith("iter:"))
                 trainingIter = Integer.parseInt(args[i].substring(args[i].indexOf("iter:")+5));
             if(args[i].equals("train"))
                 train=true;
+            if(args[i].equals("update"))
+                update=true;
+            if(args[i].equals("self_train"))
+                selfTrain=true;
             if(args[i].equals("tag"))
                 tag=true;
             if(args[i].equals("partial_tag"))
                 tagPartial=true;
+            if(args[i].equals("serve"))
+                serve=true;
             if(args[i].equals("-model") && i<args.length-1)
                 modelPath=args[i+1];
             if(args[i].equals("-input") && i<args.length-1) {
@@ -74,6 +133,10 @@ public class Options {
                 C=Double.parseDouble(args[i + 1]);
             if(args[i].equals("-output") && i<args.length-1)
                 outputPath = args[i + 1];
+            if(args[i].equals("-pipe")) {
+                inputPath = "-";
+                outputPath = "-";
+            }
             if(args[i].equals("-cluster") && i<args.length-1)
                 clusterFile = args[i + 1];
             if(args[i].equals("-dict") && i<args.length-1)
@@ -82,6 +145,32 @@ public class Options {
                 scoreFile = args[i + 1];
             if(args[i].equals("-dev") && i<args.length-1)
                 devPath = args[i + 1];
+            if(args[i].equals("-replay") && i<args.length-1)
+                replayPath = args[i + 1];
+            if(args[i].startsWith("replay:"))
+                replayRatio = Double.parseDouble(args[i].substring(args[i].indexOf("replay:")+7));
+            if(args[i].equals("-unlabeled") && i<args.length-1)
+                unlabeledPath = args[i + 1];
+            if(args[i].startsWith("rounds:"))
+                selfTrainingRounds = Integer.parseInt(args[i].substring(args[i].indexOf("rounds:")+7));
+            if(args[i].startsWith("confidence:"))
+                confidence = Float.parseFloat(args[i].substring(args[i].indexOf("confidence:")+11));
+            if(args[i].equals("-nbest") && i<args.length-1)
+                nbest = Integer.parseInt(args[i + 1]);
+            if(args[i].equals("-threads") && i<args.length-1)
+                numThreads = Integer.parseInt(args[i + 1]);
+            if(args[i].equals("-port") && i<args.length-1)
+                port = Integer.parseInt(args[i + 1]);
+            if(args[i].startsWith("latency:"))
+                latencyTarget = Float.parseFloat(args[i].substring(args[i].indexOf("latency:")+8));
+            if(args[i].startsWith("emission_cache:"))
+                emissionCacheSize = Integer.parseInt(args[i].substring(args[i].indexOf("emission_cache:")+15));
+            if(args[i].startsWith("cache:"))
+                cacheSize = Integer.parseInt(args[i].substring(args[i].indexOf("cache:")+6));
+            if(args[i].equals("-degrade"))
+                degrade=true;
+            if(args[i].startsWith("batch:"))
+                maxBatch = Integer.parseInt(args[i].substring(args[i].indexOf("batch:")+6));
             if(args[i].equals("-delim") && i<args.length-1)
                 delim = args[i + 1];
             if (args[i].equals("-update:max_viol"))
@@ -90,13 +179,19 @@ public class Options {
                 updateMode = UpdateMode.early;
             if (args[i].equals("-update:standard"))
                 updateMode = UpdateMode.standard;
+            if (args[i].equals("-checkpoint"))
+                checkpoint = true;
+            if (args[i].equals("-resume")) {
+                resume = true;
+                checkpoint = true;
+            }
         }
     }
 
     @Override
     public String toString() {
         StringBuilder output = new StringBuilder();
-        if (train) {
+        if (train || selfTrain) {
             output.append("train iterations: " + trainingIter + "\n");
             output.append("train file: " + trainPath + "\n");
             output.append("model file: " + modelPath + "\n");
@@ -104,17 +199,60 @@ public class Options {
             output.append("dev file: " + devPath + "\n");
             output.append("cluster file: " + clusterFile + "\n");
             output.append("tag dict file: " + tagDictionaryPath + "\n");
+            if (selfTrain) {
+                output.append("unlabeled file: " + unlabeledPath + "\n");
+                output.append("self-training rounds: " + selfTrainingRounds + " with confidence threshold " + confidence + "\n");
+                output.append("threads: " + numThreads + "\n");
+            }
+            if (checkpoint)
+                output.append("checkpoint file: " + modelPath + ".checkpoint" + (resume ? " (resuming)" : "") + "\n");
             if (!useBeamSearch)
                 output.append("using Viterbi algorithm\n");
             else {
-                output.append("using beam search algorithm with beam size:" + beamWidth + " with " + updateMode + "\n");
+                output.append("using beam search algorithm with beam size:" + beamWidth + " with " + updateMode + (recombine ? " and hypothesis recombination" : "") + "\n");
+                if (beamMargin > 0 || histogramSize > 0)
+                    output.append("beam pruning with margin: " + beamMargin + " and histogram size: " + histogramSize + "\n");
             }
+        } else if (update) {
+            output.append("update iterations: " + trainingIter + "\n");
+            output.append("new train file: " + inputPath + "\n");
+            output.append("model file: " + modelPath + "\n");
+            output.append("output model file: " + (outputPath.equals("") ? modelPath : outputPath) + "\n");
+            output.append("replay file: " + replayPath + " (ratio " + replayRatio + ")\n");
+            output.append("dev file: " + devPath + "\n");
+            output.append("tag dict file: " + tagDictionaryPath + "\n");
         } else if (tag || tagPartial) {
             output.append("input file: " + inputPath + "\n");
             output.append("output file: " + outputPath + "\n");
             output.append("model file: " + modelPath + "\n");
             output.append("tag dict file: " + tagDictionaryPath + "\n");
             output.append("score file: " + scoreFile + "\n");
+            output.append("threads: " + numThreads + "\n");
+            if (constrainTags)
+                output.append("tags constrained by the tag dictionary of the model\n");
+            if (pruneThreshold < Float.POSITIVE_INFINITY)
+                output.append("coarse-to-fine pruning threshold: " + pruneThreshold + "\n");
+            if (cacheSize > 0)
+                output.append("result cache: " + cacheSize + " sentences\n");
+            if (emissionCacheSize > 0)
+                output.append("emission score cache: " + emissionCacheSize + " feature vectors\n");
+            if (nbest > 1)
+                output.append("n-best sequences: " + nbest + "\n");
+        } else if (serve) {
+            output.append("model file: " + modelPath + "\n");
+            output.append("port: " + port + "\n");
+            output.append("threads: " + numThreads + "\n");
+            output.append("latency target: " + latencyTarget + " ms with batches of at most " + maxBatch + " sentences\n");
+            if (degrade)
+                output.append("decoder degraded under load to meet the deadlines\n");
+            if (constrainTags)
+                output.append("tags constrained by the tag dictionary of the model\n");
+            if (pruneThreshold < Float.POSITIVE_INFINITY)
+                output.append("coarse-to-fine pruning threshold: " + pruneThreshold + "\n");
+            if (cacheSize > 0)
+                output.append("result cache: " + cacheSize + " sentences\n");
+            if (emissionCacheSize > 0)
+                output.append("emission score cache: " + emissionCacheSize + " feature vectors\n");
         }
         return output.toString();
     }
@@ -132,25 +270,81 @@ public class Options {
         output.append("     -update:[mode]  for beam training; three #modes: max_viol, early, standard (default: max_viol)\n");
         output.append("     -delim [delim]   put delimiter string in [delim] for word tag separator (default _) e.g. -delim / \n");
         output.append("     beam:[#b]  put a number [#b] for beam size (default:5); e.g. beam:10\n");
+        output.append("     -recombine   in beam search, keep only the best hypothesis of those that end in the same two tags (stored in the model)\n");
+        output.append("     margin:[d]   in beam search, drop the hypotheses more than [d] below the best one (default: off; stored in the model); e.g. margin:20\n");
+        output.append("     histogram:[#k]   in beam search, keep at most [#k] hypotheses that end in the same two tags (default: off; stored in the model); e.g. histogram:2\n");
         output.append("     iter:[#i]  put a number [#i] for training iterations (default:20); e.g. iter:10\n");
+        output.append("     -checkpoint   write the full training state to [model-file].checkpoint after every iteration\n");
+        output.append("     -resume   continue training from [model-file].checkpoint (the other options should match the interrupted run)\n");
         output.append("\nNOTE: in every iteration the model file for that iteration will have the format [model-file].iter_#iter e.g. model.iter_3");
         output.append("\n\n");
 
+        output.append("* Self-train a tagger with unlabeled data:\n");
+        output.append(">>  java -jar SemiSupervisedTagger.jar self_train -input [input-file] -unlabeled [unlabeled-file] -model [model-file]\n");
+        output.append("** The unlabeled file has the same format as the input file; the tag column can be left out\n");
+        output.append("** Other Options (in addition to the training options):\n");
+        output.append("     rounds:[#r]  number of self-training rounds (default:3); e.g. rounds:5\n");
+        output.append("     confidence:[s]  minimum normalized score (as in the score file) of a selected sentence (default:0); e.g. confidence:2.5\n");
+        output.append("     -threads [#t]  number of tagging threads (default: number of cores)\n");
+        output.append("\n\n");
+
+        output.append("* Update a trained tagger with new data:\n");
+        output.append(">>  java -jar SemiSupervisedTagger.jar update -input [new-data-file] -model [model-file]\n");
+        output.append("** Other Options:\n");
+        output.append("     -output [model-file]  where to write the updated model (default: overwrite the input model)\n");
+        output.append("     -replay [old-data-file]  old training data to mix with the new data\n");
+        output.append("     replay:[r]  fraction of the old data to replay (default:1.0); e.g. replay:0.2\n");
+        output.append("     -dev [dev-file]  dev file address\n");
+        output.append("     -dict [tag-dict-file]  new tag dictionary entries\n");
+        output.append("     iter:[#i]  number of update iterations; e.g. iter:5\n");
+        output.append("\n\n");
+
         output.append("* Tag a file:\n");
         output.append(">>  java -jar SemiSupervisedTagger.jar tag -input [input-file] -model [model-file] -output [output-file]\n");
+        output.append("** Put - as [input-file] or [output-file] for the standard input or output\n");
         output.append("** Other Options:\n");
+        output.append("     -pipe   same as -input - -output -: read sentences from the standard input and write every tagged sentence to the standard output as soon as it is ready (the messages go to the standard error)\n");
         output.append("     -score [score-file]   score file path\n");
+        output.append("     -constrain   for words in the tag dictionary of the model, only consider their dictionary tags\n");
+        output.append("     prune:[t]   coarse-to-fine decoding: prune the tags whose first-order max-marginal is more than [t] below the best one; e.g. prune:10\n");
+        output.append("     cache:[#n]   keep the results of the last [#n] distinct sentences and answer exact duplicates from them (default: off; not with -nbest); e.g. cache:100000\n");
+        output.append("     emission_cache:[#n]   keep the emission scores of the last [#n] distinct feature windows (a word with two words on each side) and reuse them (default: off); e.g. emission_cache:262144\n");
+        output.append("     -nbest [#k]   write the exact [#k] best tag sequences (the first one is that of Viterbi): one tag column per sequence and tab-separated scores in the score file; a sentence with fewer sequences gets _ tags and -Infinity scores for the missing ones\n");
+        output.append("     -threads [#t]  number of tagging threads (default: number of cores); the output keeps the input order\n");
         output.append("     -delim [delim]   put delimiter string in [delim] for word tag separator (default _) e.g. -delim / \n");
         output.append("\n\n");
 
         output.append("* Tag a partially tagged file:\n");
         output.append(">>  java -jar SemiSupervisedTagger.jar partial_tag -input [input-file] -model [model-file] -output [output-file]\n");
         output.append("** For words with no tag information, put *** as the tag; e.g. After_IN our_*** discussion_*** ._.\n");
+        output.append("** Put - as [input-file] or [output-file] for the standard input or output\n");
         output.append("** Other Options:\n");
+        output.append("     -pipe   same as -input - -output -\n");
         output.append("     -score [score-file]   score file path\n");
+        output.append("     -constrain   for words in the tag dictionary of the model, only consider their dictionary tags\n");
+        output.append("     prune:[t]   coarse-to-fine decoding: prune the tags whose first-order max-marginal is more than [t] below the best one; e.g. prune:10\n");
+        output.append("     cache:[#n]   keep the results of the last [#n] distinct sentences and answer exact duplicates from them (default: off); e.g. cache:100000\n");
+        output.append("     emission_cache:[#n]   keep the emission scores of the last [#n] distinct feature windows (a word with two words on each side) and reuse them (default: off); e.g. emission_cache:262144\n");
+        output.append("     -threads [#t]  number of tagging threads (default: number of cores); the output keeps the input order\n");
         output.append("     -delim [delim]   put delimiter string in [delim] for word tag separator (default _) e.g. -delim / \n");
         output.append("\n\n");
 
+        output.append("* Serve a tagger over HTTP on localhost:\n");
+        output.append(">>  java -jar SemiSupervisedTagger.jar serve -model [model-file]\n");
+        output.append("** POST the input of tag (or partial_tag) to /tag (or /partial_tag) and get the output of tag; GET /stats for the counters\n");
+        output.append("** The deadline of the sentences of a request is the latency target, or the milliseconds in its X-Deadline-Ms header\n");
+        output.append("** Other Options:\n");
+        output.append("     -port [#p]   port (default: 8080)\n");
+        output.append("     -threads [#t]  number of decoding threads (default: number of cores)\n");
+        output.append("     latency:[ms]   target latency of a sentence in milliseconds, to which the batch window adapts (default:10); e.g. latency:5\n");
+        output.append("     batch:[#n]   maximum number of sentences in a batch (default:32); e.g. batch:64\n");
+        output.append("     -degrade   under load, decode with smaller beams down to greedy decoding when the decoder of the model would miss the deadlines\n");
+        output.append("     -constrain   for words in the tag dictionary of the model, only consider their dictionary tags\n");
+        output.append("     prune:[t]   coarse-to-fine decoding: prune the tags whose first-order max-marginal is more than [t] below the best one; e.g. prune:10\n");
+        output.append("     cache:[#n]   keep the results of the last [#n] distinct sentences and answer exact duplicates from them (default: off); e.g. cache:100000\n");
+        output.append("     emission_cache:[#n]   keep the emission scores of the last [#n] distinct feature windows (a word with two words on each side) and reuse them (default: off); e.g. emission_cache:262144\n");
+        output.append("\n\n");
+
         return output.toString();
     }
 }
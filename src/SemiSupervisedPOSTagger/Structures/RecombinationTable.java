@@ -0,0 +1,114 @@
+package SemiSupervisedPOSTagger.Structures;
+
+import java.util.Arrays;
+
+/**
+ * Merges the candidates of a beam step that end in the same two tags: in a third-order model their future scores
+ * are the same, so only the best one per (prevTag, tagDecision) needs to stay in the beam.
+ * Optionally, the best few merged candidates of every pair are kept as alternatives, either for n-best lists or,
+ * with flushAll, to cap the number of candidates per pair (histogram pruning) instead of merging them.
+ */
+public class RecombinationTable {
+    private final int tagSize;
+    private final int alternatives;
+    private final float[] scores;
+    private final int[] beamNums;
+    private final float[] alternativeScores;
+    private final int[] alternativeBeamNums;
+    private final int[] alternativeCounts;
+    private final int[] signatures;
+    private int size;
+
+    public RecombinationTable(int tagSize, int alternatives) {
+        this.tagSize = tagSize;
+        this.alternatives = alternatives;
+        scores = new float[tagSize * tagSize];
+        beamNums = new int[tagSize * tagSize];
+        alternativeScores = new float[tagSize * tagSize * alternatives];
+        alternativeBeamNums = new int[tagSize * tagSize * alternatives];
+        alternativeCounts = new int[tagSize * tagSize];
+        signatures = new int[tagSize * tagSize];
+        Arrays.fill(beamNums, -1);
+    }
+
+    public void add(int prevTag, int tagDecision, float score, int beamNum) {
+        int signature = prevTag * tagSize + tagDecision;
+        if (beamNums[signature] == -1) {
+            signatures[size++] = signature;
+            scores[signature] = score;
+            beamNums[signature] = beamNum;
+        } else if (!(score - scores[signature] < 0)) {
+            // same order as in BeamHeap: beams are visited in order, so on a tie the later beam wins
+            addAlternative(signature, scores[signature], beamNums[signature]);
+            scores[signature] = score;
+            beamNums[signature] = beamNum;
+        } else {
+            addAlternative(signature, score, beamNum);
+        }
+    }
+
+    /**
+     * Adds the best candidate of every pair to the heap
+     */
+    public void flush(BeamHeap heap) {
+        for (int i = 0; i < size; i++) {
+            int signature = signatures[i];
+            heap.add(signature % tagSize, scores[signature], beamNums[signature]);
+        }
+    }
+
+    /**
+     * Adds the best candidate and the alternatives of every pair to the heap
+     */
+    public void flushAll(BeamHeap heap) {
+        for (int i = 0; i < size; i++) {
+            int signature = signatures[i];
+            heap.add(signature % tagSize, scores[signature], beamNums[signature]);
+            for (int j = 0; j < alternativeCounts[signature]; j++)
+                heap.add(signature % tagSize, alternativeScores[signature * alternatives + j], alternativeBeamNums[signature * alternatives + j]);
+        }
+    }
+
+    public int alternativeCount(int prevTag, int tagDecision) {
+        return alternativeCounts[prevTag * tagSize + tagDecision];
+    }
+
+    /**
+     * @return the j-th best merged candidate of a pair (in descending order of score)
+     */
+    public float alternativeScore(int prevTag, int tagDecision, int j) {
+        return alternativeScores[(prevTag * tagSize + tagDecision) * alternatives + j];
+    }
+
+    public int alternativeBeamNum(int prevTag, int tagDecision, int j) {
+        return alternativeBeamNums[(prevTag * tagSize + tagDecision) * alternatives + j];
+    }
+
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            beamNums[signatures[i]] = -1;
+            alternativeCounts[signatures[i]] = 0;
+        }
+        size = 0;
+    }
+
+    private void addAlternative(int signature, float score, int beamNum) {
+        int offset = signature * alternatives;
+        int count = alternativeCounts[signature];
+        if (count == alternatives) {
+            // full (or no alternatives kept): replace the worst one if the new one is better
+            if (alternatives == 0 || !(score > alternativeScores[offset + count - 1]))
+                return;
+            count--;
+        }
+        int j = count;
+        while (j > 0 && score > alternativeScores[offset + j - 1]) {
+            alternativeScores[offset + j] = alternativeScores[offset + j - 1];
+            alternativeBeamNums[offset + j] = alternativeBeamNums[offset + j - 1];
+            j--;
+        }
+        alternativeScores[offset + j] = score;
+        alternativeBeamNums[offset + j] = beamNum;
+        alternativeCounts[signature] = count + 1;
+    }
+}
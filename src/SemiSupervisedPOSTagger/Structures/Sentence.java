@@ -1,6 +1,7 @@
 package SemiSupervisedPOSTagger.Structures;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * Created by Mohammad Sadegh Rasooli.
@@ -121,7 +122,13 @@ public class Sentence {
     }
 
     public int[] get_emission_features(final int position) {
-        int[] features = new int[NUM_FEATURES];
+        return get_emission_features(position, new int[NUM_FEATURES]);
+    }
+
+    /**
+     * Fills the given array (of size NUM_FEATURES) with the emission features, so that decoders can reuse it
+     */
+    public int[] get_emission_features(final int position, final int[] features) {
         int index = 0;
         int length = words.length;
 
@@ -196,6 +203,7 @@ public class Sentence {
                 features[index++] = SpecialWords.unknown.value;
             }
         }
+        Arrays.fill(features, index, NUM_FEATURES, 0);
         return features;
     }
 
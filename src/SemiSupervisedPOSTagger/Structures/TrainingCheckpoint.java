@@ -0,0 +1,61 @@
+package SemiSupervisedPOSTagger.Structures;
+
+import SemiSupervisedPOSTagger.Learning.AveragedPerceptron;
+
+import java.io.Serializable;
+import java.util.HashMap;
+
+/**
+ * The full training state after an epoch, written next to the model so that training can be resumed.
+ * Unlike InfoStruct, it keeps the raw weights and the averaging accumulators, not the averaged weights.
+ * The constructor deep-copies everything, so the snapshot stays consistent while training goes on.
+ * Training visits the sentences in file order, so there is no random state to keep beyond the epoch.
+ */
+public class TrainingCheckpoint implements Serializable {
+    // the value of the first version, so that -resume keeps reading the checkpoints it wrote
+    private static final long serialVersionUID = 6566246287221180364L;
+
+    public HashMap<Integer, Float>[][] featureWeights;
+    public HashMap<Integer, Float>[][] averagedWeights;
+    public HashMap<Integer, Float> penalizerWeight;
+    public HashMap<Integer, Float> avgPenalizerWeight;
+    public float[] bigramWeights;
+    public float[] trigramWeights;
+    public float[] avgBigramWeights;
+    public float[] avgTrigramWeights;
+    public int iteration;
+
+    public IndexMaps maps;
+    /**
+     * The last finished epoch
+     */
+    public int epoch;
+    public double bestDevAccuracy;
+
+    public TrainingCheckpoint(AveragedPerceptron perceptron, IndexMaps maps, int epoch, double bestDevAccuracy) {
+        featureWeights = copy(perceptron.featureWeights);
+        averagedWeights = copy(perceptron.averagedWeights);
+        penalizerWeight = new HashMap<Integer, Float>(perceptron.penalizerWeight);
+        avgPenalizerWeight = new HashMap<Integer, Float>(perceptron.avgPenalizerWeight);
+        bigramWeights = perceptron.bigramWeights.clone();
+        trigramWeights = perceptron.trigramWeights.clone();
+        avgBigramWeights = perceptron.avgBigramWeights.clone();
+        avgTrigramWeights = perceptron.avgTrigramWeights.clone();
+        iteration = perceptron.iteration;
+
+        this.maps = maps;
+        this.epoch = epoch;
+        this.bestDevAccuracy = bestDevAccuracy;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static HashMap<Integer, Float>[][] copy(HashMap<Integer, Float>[][] weights) {
+        HashMap<Integer, Float>[][] copy = new HashMap[weights.length][];
+        for (int i = 0; i < weights.length; i++) {
+            copy[i] = new HashMap[weights[i].length];
+            for (int j = 0; j < weights[i].length; j++)
+                copy[i][j] = new HashMap<Integer, Float>(weights[i][j]);
+        }
+        return copy;
+    }
+}
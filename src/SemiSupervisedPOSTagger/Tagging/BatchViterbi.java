@@ -0,0 +1,203 @@
+package SemiSupervisedPOSTagger.Tagging;
+
+import SemiSupervisedPOSTagger.Learning.AveragedPerceptron;
+import SemiSupervisedPOSTagger.Structures.Pair;
+import SemiSupervisedPOSTagger.Structures.Sentence;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Viterbi decoding of many sentences at once: the sentences are sorted by length and cut into buckets of similar
+ * lengths, and the levels of all the sentences of a bucket are computed together, position by position. The tables
+ * are laid out with the sentence as the innermost dimension, so the innermost loop of the max-plus step runs over the
+ * bucket on contiguous floats with the transition scores hoisted out of it, instead of over a handful of tags per
+ * sentence; a sentence shorter than the longest of its bucket is finished at its own last level.
+ * The scores are added in the same order and the ties are broken in the same way as in Viterbi.forward, so the tags
+ * and scores are identical to those of Viterbi.thirdOrderWithScore with all tags allowed.
+ * An instance keeps its scratch space and is not thread-safe.
+ */
+public class BatchViterbi {
+    /**
+     * Maximum number of sentences in a bucket
+     */
+    public static final int MAX_BATCH = 32;
+    /**
+     * Smaller buckets are decoded one sentence at a time, which is faster for them
+     */
+    private static final int MIN_BATCH = 4;
+
+    private final AveragedPerceptron perceptron;
+    private final int tagSize;
+    private final long allTags;
+    private final DecoderWorkspace workspace;
+
+    /**
+     * Two levels of pai and the back pointers of all levels, indexed [(level * tagSize^2 + u * tagSize + v) * batch + s]
+     */
+    private float[] pai = new float[0];
+    private int[] bp = new int[0];
+    /**
+     * Emission scores, indexed [(position * tagSize + t) * batch + s]
+     */
+    private float[] emissionScore = new float[0];
+    private final float[] best = new float[MAX_BATCH];
+    private final int[] argmax = new int[MAX_BATCH];
+    private final float[] lastLevel;
+    private long[] allowedTags = new long[0];
+
+    BatchViterbi(AveragedPerceptron perceptron, DecoderWorkspace workspace) {
+        this.perceptron = perceptron;
+        this.workspace = workspace;
+        tagSize = perceptron.tagSize();
+        allTags = DecoderWorkspace.allTags(tagSize);
+        lastLevel = new float[tagSize * tagSize];
+    }
+
+    /**
+     * @return the best tag sequence of every sentence with its score, in the order of the sentences
+     */
+    public ArrayList<Pair<int[], Float>> decode(final List<Sentence> sentences) {
+        ArrayList<Pair<int[], Float>> results = new ArrayList<Pair<int[], Float>>(sentences.size());
+        ArrayList<Integer> order = new ArrayList<Integer>(sentences.size());
+        for (int s = 0; s < sentences.size(); s++) {
+            results.add(null);
+            int length = sentences.get(s).words.length;
+            if (length == 0 || length > Viterbi.CHECKPOINT_LENGTH)
+                results.set(s, Viterbi.thirdOrderWithScore(sentences.get(s), perceptron, true, workspace.allowedTags(sentences.get(s), perceptron, false),
+                        Float.POSITIVE_INFINITY, workspace));
+            else
+                order.add(s);
+        }
+        java.util.Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return sentences.get(a).words.length - sentences.get(b).words.length;
+            }
+        });
+
+        Sentence[] bucket = new Sentence[MAX_BATCH];
+        int[] indices = new int[MAX_BATCH];
+        for (int first = 0; first < order.size(); ) {
+            // the padding of a bucket is at most an eighth of its shortest sentence (and 2 words)
+            int shortest = sentences.get(order.get(first)).words.length;
+            int size = 0;
+            while (first + size < order.size() && size < MAX_BATCH
+                    && sentences.get(order.get(first + size)).words.length <= shortest + Math.max(2, shortest / 8)) {
+                indices[size] = order.get(first + size);
+                bucket[size] = sentences.get(indices[size]);
+                size++;
+            }
+            if (size < MIN_BATCH) {
+                for (int s = 0; s < size; s++)
+                    results.set(indices[s], Viterbi.thirdOrderWithScore(bucket[s], perceptron, true, workspace.allowedTags(bucket[s], perceptron, false),
+                            Float.POSITIVE_INFINITY, workspace));
+            } else {
+                Pair<int[], Float>[] bucketResults = decodeBucket(bucket, size);
+                for (int s = 0; s < size; s++)
+                    results.set(indices[s], bucketResults[s]);
+            }
+            first += size;
+        }
+        return results;
+    }
+
+    private Pair<int[], Float>[] decodeBucket(Sentence[] sentences, int batch) {
+        int maxLength = 0;
+        for (int s = 0; s < batch; s++)
+            maxLength = Math.max(maxLength, sentences[s].words.length);
+        int layer = tagSize * tagSize;
+        prepare(maxLength, batch);
+        float[] bigramScore = perceptron.bigramScores(true);
+        float[] trigramScore = perceptron.trigramScores(true);
+
+        for (int s = 0; s < batch; s++) {
+            int length = sentences[s].words.length;
+            float[] scores = Viterbi.emissionScores(sentences[s], perceptron, true, workspace.allowedTags(sentences[s], perceptron, false), workspace);
+            for (int i = 0; i < length * tagSize; i++)
+                emissionScore[i * batch + s] = scores[i];
+        }
+
+        // level 0 as Viterbi.initialize leaves it in a cleared table
+        Arrays.fill(pai, 0, layer * batch, 0f);
+        for (int u = 1; u < tagSize; u++)
+            Arrays.fill(pai, (u * tagSize + 1) * batch, (u * tagSize + tagSize) * batch, Float.NEGATIVE_INFINITY);
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Pair<int[], Float>[] results = new Pair[batch];
+        for (int k = 1; k <= maxLength; k++) {
+            forward(k, batch, bigramScore, trigramScore, ((k - 1) & 1) * layer * batch, (k & 1) * layer * batch, k * layer * batch);
+            for (int s = 0; s < batch; s++) {
+                int length = sentences[s].words.length;
+                if (length != k)
+                    continue;
+                for (int cell = 0; cell < layer; cell++)
+                    lastLevel[cell] = pai[((k & 1) * layer + cell) * batch + s];
+                int[] tags = new int[length];
+                float score = Viterbi.lastTwoTags(length, allowedTags, allTags, tagSize, bigramScore, trigramScore, lastLevel, 0, tags);
+                for (int m = length; m >= 3; m--)
+                    tags[m - 3] = bp[(m * layer + tags[m - 2] * tagSize + tags[m - 1]) * batch + s];
+                results[s] = new Pair<int[], Float>(tags, score);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Level k of all the sentences, as in Viterbi.forward with all tags allowed
+     */
+    private void forward(int k, int batch, float[] bigramScore, float[] trigramScore, int prevOffset, int offset, int bpOffset) {
+        Arrays.fill(pai, offset, offset + tagSize * tagSize * batch, 0f);
+        long uTags = k == 1 ? allTags | 1L : allTags;
+        long wTags = k == 1 ? 1L : allTags;
+        float[] best = this.best;
+        int[] argmax = this.argmax;
+        float[] pai = this.pai;
+        float[] emissionScore = this.emissionScore;
+        for (long vs = allTags; vs != 0; vs &= vs - 1) {
+            int v = Long.numberOfTrailingZeros(vs);
+            int emission = ((k - 1) * tagSize + v) * batch;
+            for (long us = uTags; us != 0; us &= us - 1) {
+                int u = Long.numberOfTrailingZeros(us);
+                float bigram = bigramScore[u * tagSize + v];
+                Arrays.fill(best, 0, batch, Float.NEGATIVE_INFINITY);
+                Arrays.fill(argmax, 0, batch, 0);
+                for (long ws = wTags; ws != 0; ws &= ws - 1) {
+                    int w = Long.numberOfTrailingZeros(ws);
+                    float transition = trigramScore[(w * tagSize + u) * tagSize + v] + bigram;
+                    int previous = prevOffset + (w * tagSize + u) * batch;
+                    for (int s = 0; s < batch; s++) {
+                        float score = transition + emissionScore[emission + s] + pai[previous + s];
+                        if (score > best[s]) {
+                            best[s] = score;
+                            argmax[s] = w;
+                        }
+                    }
+                }
+                int cell = (u * tagSize + v) * batch;
+                System.arraycopy(best, 0, pai, offset + cell, batch);
+                System.arraycopy(argmax, 0, bp, bpOffset + cell, batch);
+            }
+        }
+    }
+
+    private void prepare(int maxLength, int batch) {
+        int layer = tagSize * tagSize;
+        if (pai.length < 2 * layer * batch)
+            pai = new float[2 * layer * MAX_BATCH];
+        int size = (maxLength + 1) * layer * batch;
+        if (bp.length < size)
+            bp = new int[Math.max(size, 2 * bp.length)];
+        size = maxLength * tagSize * batch;
+        if (emissionScore.length < size)
+            emissionScore = new float[Math.max(size, 2 * emissionScore.length)];
+        // the positions after the end of a shorter sentence
+        Arrays.fill(emissionScore, 0, size, 0f);
+        if (allowedTags.length < maxLength) {
+            allowedTags = new long[Math.max(maxLength, 2 * allowedTags.length)];
+            Arrays.fill(allowedTags, allTags);
+        }
+    }
+}
@@ -4,9 +4,6 @@ import SemiSupervisedPOSTagger.Learning.AveragedPerceptron;
 import SemiSupervisedPOSTagger.Structures.*;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.TreeSet;
 
 /**
  * Created by Mohammad Sadegh Rasooli.
@@ -16,400 +13,165 @@ import java.util.TreeSet;
  * To report any bugs or problems contact rasooli@cs.columbia.edu
  */
 public class BeamTagger {
-    public static int[] thirdOrder(final Sentence sentence, final AveragedPerceptron perceptron, final boolean isDecode, int beamWidth, final boolean usePartialInfo, final Tagger tagger) {
-        int len = sentence.words.length + 1;
-
-        int tagSize = perceptron.tagSize();
-        int featSize = perceptron.featureSize();
-
-        ArrayList<Integer> allTags = new ArrayList<Integer>(tagSize - 2);
-        for (int i = 2; i < tagSize; i++)
-            allTags.add(i);
-
-        // pai score values
-        float emission_score[][] = new float[len - 1][tagSize];
-        float bigramScore[][] = new float[tagSize][tagSize];
-        float trigramScore[][][] = new float[tagSize][tagSize][tagSize];
-        if (!isDecode) {
-            for (int v = 0; v < tagSize; v++) {
-                for (int u = 0; u < tagSize; u++) {
-                    bigramScore[u][v] = perceptron.score(v, featSize - 3, u, isDecode);
-                    for (int w = 0; w < tagSize; w++) {
-                        int bigram = (w << 10) + u;
-                        trigramScore[w][u][v] = perceptron.score(v, featSize - 2, bigram, isDecode);
-                    }
-                }
-            }
-        } else {
-            bigramScore = tagger.bigramScore;
-            trigramScore = tagger.trigramScore;
-        }
-
-        for (int position = 0; position < sentence.words.length; position++) {
-            int[] emissionFeatures = sentence.get_emission_features(position);
-            for (int t = 2; t < tagSize; t++) {
-                emission_score[position][t] = perceptron.score(emissionFeatures, t, isDecode);
-                // int cond=perceptron.dictCondition(sentence.lowerWords[position],t);
-                int cond = perceptron.dictCondition(sentence.lowercase_words[position], t);
-                if (cond != -1)
-                    emission_score[position][t] += perceptron.score(t, perceptron.featureSize() - 1, cond, isDecode);
-            }
-        }
-
-        ArrayList<TaggingState> beam = new ArrayList<TaggingState>();
-        TaggingState initialState = new TaggingState(sentence.words.length);
-        beam.add(initialState);
-
-        for (int i = 0; i < sentence.words.length; i++) {
-            TreeSet<BeamElement> elements = new TreeSet<BeamElement>();
-
-            for (int b = 0; b < beam.size(); b++) {
-                TaggingState state = beam.get(b);
-                int currentPosition = state.currentPosition;
-                int prevTag = currentPosition > 0 ? state.tags[currentPosition - 1] : 0;
-                int prev2Tag = currentPosition > 1 ? state.tags[currentPosition - 2] : 0;
-                int prev3Tag = currentPosition > 2 ? state.tags[currentPosition - 3] : 0;
-
-                ArrayList<Integer> possibleTags = new ArrayList<Integer>();
-                if (sentence.pos_tags[i] == -1 || !usePartialInfo)
-                    possibleTags = allTags;
-                else
-                    possibleTags.add(sentence.pos_tags[i]);
-
-                for (int tagDecision : possibleTags) {
-                    float es = emission_score[currentPosition][tagDecision];
-                    float bs = bigramScore[prevTag][tagDecision];
-                    float ts = trigramScore[prev2Tag][prevTag][tagDecision];
-                    float score = es + bs + ts + state.score;
-                    BeamElement element = new BeamElement(tagDecision, score, b);
-                    elements.add(element);
-                    if (elements.size() > beamWidth)
-                        elements.pollFirst();
-                }
-            }
-
-            ArrayList<TaggingState> newBeam = new ArrayList<TaggingState>();
-
-            for (BeamElement element : elements) {
-                TaggingState state = beam.get(element.beamNum).clone();
-                state.tags[state.currentPosition++] = element.tagDecision;
-                state.score = element.score;
-                newBeam.add(state);
-            }
-            beam = newBeam;
-        }
-
-
-        TreeSet<BeamElement> elements = new TreeSet<BeamElement>();
-        for (int b = 0; b < beam.size(); b++) {
-            TaggingState state = beam.get(b);
-            int currentPosition = state.currentPosition;
-            int prevTag = currentPosition > 0 ? state.tags[currentPosition - 1] : 0;
-            int prev2Tag = currentPosition > 1 ? state.tags[currentPosition - 2] : 0;
-            int prev3Tag = currentPosition > 2 ? state.tags[currentPosition - 3] : 0;
-            int tagDecision = SpecialWords.stop.value;
-            float bs = bigramScore[prevTag][tagDecision];
-            float ts = trigramScore[prev2Tag][prevTag][tagDecision];
-            float score = bs + ts + state.score;
-            BeamElement element = new BeamElement(tagDecision, score, b);
-            elements.add(element);
-            if (elements.size() > beamWidth)
-                elements.pollFirst();
-        }
-
-        int beamNum = elements.last().beamNum;
-        return beam.get(beamNum).tags;
+    public static int[] thirdOrder(final Sentence sentence, final AveragedPerceptron perceptron, final boolean isDecode, int beamWidth, final boolean usePartialInfo) {
+        return thirdOrder(sentence, perceptron, isDecode, beamWidth, usePartialInfo, false);
     }
 
+    public static int[] thirdOrder(final Sentence sentence, final AveragedPerceptron perceptron, final boolean isDecode, int beamWidth, final boolean usePartialInfo,
+                                   final boolean recombine) {
+        return thirdOrderWithScore(sentence, perceptron, isDecode, beamWidth, usePartialInfo, recombine).first;
+    }
 
-    public static Pair<int[], Float> thirdOrderWithScore(final Sentence sentence, final AveragedPerceptron perceptron, final boolean isDecode, int beamWidth, final boolean usePartialInfo, final Tagger tagger) {
-        int len = sentence.words.length + 1;
-
-        int tagSize = perceptron.tagSize();
-        int featSize = perceptron.featureSize();
-
-        ArrayList<Integer> allTags = new ArrayList<Integer>(tagSize - 2);
-        for (int i = 2; i < tagSize; i++)
-            allTags.add(i);
-
-        // pai score values
-        float emission_score[][] = new float[len - 1][tagSize];
-        float bigramScore[][] = new float[tagSize][tagSize];
-        float trigramScore[][][] = new float[tagSize][tagSize][tagSize];
-        if (!isDecode) {
-            for (int v = 0; v < tagSize; v++) {
-                for (int u = 0; u < tagSize; u++) {
-                    bigramScore[u][v] = perceptron.score(v, featSize - 3, u, isDecode);
-                    for (int w = 0; w < tagSize; w++) {
-                        int bigram = (w << 10) + u;
-                        trigramScore[w][u][v] = perceptron.score(v, featSize - 2, bigram, isDecode);
-                    }
-                }
-            }
-        } else {
-            bigramScore = tagger.bigramScore;
-            trigramScore = tagger.trigramScore;
-        }
-
-        for (int position = 0; position < sentence.words.length; position++) {
-            int[] emissionFeatures = sentence.get_emission_features(position);
-            for (int t = 2; t < tagSize; t++) {
-                emission_score[position][t] = perceptron.score(emissionFeatures, t, isDecode);
-                //  int cond=perceptron.dictCondition(sentence.lowerWords[position],t);
-                int cond = perceptron.dictCondition(sentence.lowercase_words[position], t);
-                if (cond != -1)
-                    emission_score[position][t] += perceptron.score(t, perceptron.featureSize() - 1, cond, isDecode);
-            }
-        }
-
-        ArrayList<TaggingState> beam = new ArrayList<TaggingState>();
-        TaggingState initialState = new TaggingState(sentence.words.length);
-        beam.add(initialState);
-
-        for (int i = 0; i < sentence.words.length; i++) {
-            TreeSet<BeamElement> elements = new TreeSet<BeamElement>();
-
-            for (int b = 0; b < beam.size(); b++) {
-                TaggingState state = beam.get(b);
-                int currentPosition = state.currentPosition;
-                int prevTag = currentPosition > 0 ? state.tags[currentPosition - 1] : 0;
-                int prev2Tag = currentPosition > 1 ? state.tags[currentPosition - 2] : 0;
-                int prev3Tag = currentPosition > 2 ? state.tags[currentPosition - 3] : 0;
-
-                ArrayList<Integer> possibleTags = new ArrayList<Integer>();
-                if (sentence.pos_tags[i] == -1 || !usePartialInfo)
-                    possibleTags = allTags;
-                else
-                    possibleTags.add(sentence.pos_tags[i]);
-
-                for (int tagDecision : possibleTags) {
-                    float es = emission_score[currentPosition][tagDecision];
-                    float bs = bigramScore[prevTag][tagDecision];
-                    float ts = trigramScore[prev2Tag][prevTag][tagDecision];
-                    float score = es + bs + ts + state.score;
-                    BeamElement element = new BeamElement(tagDecision, score, b);
-                    elements.add(element);
-                    if (elements.size() > beamWidth)
-                        elements.pollFirst();
-                }
-            }
-
-            ArrayList<TaggingState> newBeam = new ArrayList<TaggingState>();
-
-            for (BeamElement element : elements) {
-                TaggingState state = beam.get(element.beamNum).clone();
-                state.tags[state.currentPosition++] = element.tagDecision;
-                state.score = element.score;
-                newBeam.add(state);
-            }
-            beam = newBeam;
-        }
-
-
-        TreeSet<BeamElement> elements = new TreeSet<BeamElement>();
-        for (int b = 0; b < beam.size(); b++) {
-            TaggingState state = beam.get(b);
-            int currentPosition = state.currentPosition;
-            int prevTag = currentPosition > 0 ? state.tags[currentPosition - 1] : 0;
-            int prev2Tag = currentPosition > 1 ? state.tags[currentPosition - 2] : 0;
-            int prev3Tag = currentPosition > 2 ? state.tags[currentPosition - 3] : 0;
-            int tagDecision = SpecialWords.stop.value;
-            float bs = bigramScore[prevTag][tagDecision];
-            float ts = trigramScore[prev2Tag][prevTag][tagDecision];
-            float score = bs + ts + state.score;
-            BeamElement element = new BeamElement(tagDecision, score, b);
-            elements.add(element);
-            if (elements.size() > beamWidth)
-                elements.pollFirst();
-        }
-
-        int beamNum = elements.last().beamNum;
-        return new Pair<int[], Float>(beam.get(beamNum).tags, elements.last().score);
+    public static Pair<int[], Float> thirdOrderWithScore(final Sentence sentence, final AveragedPerceptron perceptron, final boolean isDecode, int beamWidth, final boolean usePartialInfo) {
+        return thirdOrderWithScore(sentence, perceptron, isDecode, beamWidth, usePartialInfo, false);
     }
 
+    public static Pair<int[], Float> thirdOrderWithScore(final Sentence sentence, final AveragedPerceptron perceptron, final boolean isDecode, int beamWidth, final boolean usePartialInfo,
+                                                         final boolean recombine) {
+        long[] allowedTags = new DecoderWorkspace().allowedTags(sentence, perceptron, false);
+        return thirdOrderWithScore(sentence, perceptron, isDecode, beamWidth, usePartialInfo, recombine, 0f, 0, allowedTags, Float.POSITIVE_INFINITY);
+    }
 
     /**
-     * This is useful for pruning some tags for specific manually
-     *
-     * @param exceptedTags list of excepted tags that should be pruned
-     * @return
+     * @param recombine      keep only the best of the hypotheses that end in the same two tags
+     * @param beamMargin     if positive, drop the hypotheses more than this below the best one of their position
+     * @param histogramSize  if positive (and without recombination), keep at most this many hypotheses that end in the same two tags
+     * @param allowedTags    tags that are considered at each position (bitmasks, see DecoderWorkspace.allowedTags)
+     * @param pruneThreshold if finite, a first-order pass first prunes the allowed tags (see CoarseToFine)
      */
-    public static Pair<int[], Float> thirdOrderWithPruning(final Sentence sentence, final AveragedPerceptron perceptron, int beamWidth, final Tagger tagger, HashMap<Integer, HashSet<Integer>> exceptedTags) {
-        int len = sentence.words.length + 1;
-
+    public static Pair<int[], Float> thirdOrderWithScore(final Sentence sentence, final AveragedPerceptron perceptron, final boolean isDecode, int beamWidth, final boolean usePartialInfo,
+                                                         final boolean recombine, final float beamMargin, final int histogramSize, long[] allowedTags,
+                                                         final float pruneThreshold) {
         int tagSize = perceptron.tagSize();
-        int featSize = perceptron.featureSize();
 
-        ArrayList<Integer> allTags = new ArrayList<Integer>(tagSize - 2);
-        for (int i = 2; i < tagSize; i++)
-            allTags.add(i);
+        float emission_score[] = emissionScores(sentence, perceptron, isDecode);
+        float bigramScore[] = perceptron.bigramScores(isDecode);
+        float trigramScore[] = perceptron.trigramScores(isDecode);
 
-        // pai score values
-        float emission_score[][] = new float[len - 1][tagSize];
-
-        float bigramScore[][] = tagger.bigramScore;
-        float trigramScore[][][] = tagger.trigramScore;
-
-        for (int position = 0; position < sentence.words.length; position++) {
-            int[] emissionFeatures = sentence.get_emission_features(position);
-            for (int t = 2; t < tagSize; t++) {
-                emission_score[position][t] = perceptron.score(emissionFeatures, t, true);
-                //     int cond=perceptron.dictCondition(sentence.lowerWords[position],t);
-                int cond = perceptron.dictCondition(sentence.lowercase_words[position], t);
-                if (cond != -1)
-                    emission_score[position][t] += perceptron.score(t, perceptron.featureSize() - 1, cond, true);
-            }
+        if (pruneThreshold < Float.POSITIVE_INFINITY && sentence.words.length > 0) {
+            long[] prunedTags = new long[sentence.words.length];
+            CoarseToFine.prune(emission_score, bigramScore, tagSize, sentence.words.length, allowedTags, pruneThreshold, prunedTags,
+                    new float[sentence.words.length * tagSize], new float[sentence.words.length * tagSize]);
+            allowedTags = prunedTags;
         }
 
-        ArrayList<TaggingState> beam = new ArrayList<TaggingState>();
-        TaggingState initialState = new TaggingState(sentence.words.length);
-        beam.add(initialState);
-
+        BeamLattice lattice = new BeamLattice(sentence.words.length, beamWidth);
+        BeamHeap elements = new BeamHeap(beamWidth);
+        RecombinationTable merged = mergeTable(tagSize, recombine, 0, histogramSize);
         for (int i = 0; i < sentence.words.length; i++) {
-            TreeSet<BeamElement> elements = new TreeSet<BeamElement>();
-
-            for (int b = 0; b < beam.size(); b++) {
-                TaggingState state = beam.get(b);
-                int currentPosition = state.currentPosition;
-                int prevTag = currentPosition > 0 ? state.tags[currentPosition - 1] : 0;
-                int prev2Tag = currentPosition > 1 ? state.tags[currentPosition - 2] : 0;
-                int prev3Tag = currentPosition > 2 ? state.tags[currentPosition - 3] : 0;
-
-                ArrayList<Integer> possibleTags = new ArrayList<Integer>();
-                if (exceptedTags.containsKey(i)) {
-                    for (int t : allTags)
-                        if (!exceptedTags.get(i).contains(t))
-                            possibleTags.add(t);
-                } else
-                    possibleTags = allTags;
-
-                for (int tagDecision : possibleTags) {
-                    float es = emission_score[currentPosition][tagDecision];
-                    float bs = bigramScore[prevTag][tagDecision];
-                    float ts = trigramScore[prev2Tag][prevTag][tagDecision];
-                    float score = es + bs + ts + state.score;
-                    BeamElement element = new BeamElement(tagDecision, score, b);
-                    elements.add(element);
-                    if (elements.size() > beamWidth)
-                        elements.pollFirst();
+            elements.clear();
+
+            long possibleTags = allowedTags[i];
+            if (sentence.pos_tags[i] != -1 && usePartialInfo)
+                possibleTags = 1L << sentence.pos_tags[i];
+
+            for (int b = 0; b < lattice.size(i); b++) {
+                int prevTag = lattice.prevTag(i, b);
+                int prev2Tag = lattice.prev2Tag(i, b);
+                float stateScore = lattice.score(i, b);
+
+                for (long candidates = possibleTags; candidates != 0; candidates &= candidates - 1) {
+                    int tagDecision = Long.numberOfTrailingZeros(candidates);
+                    float es = emission_score[i * tagSize + tagDecision];
+                    float bs = bigramScore[prevTag * tagSize + tagDecision];
+                    float ts = trigramScore[(prev2Tag * tagSize + prevTag) * tagSize + tagDecision];
+                    float score = es + bs + ts + stateScore;
+                    if (merged != null)
+                        merged.add(prevTag, tagDecision, score, b);
+                    else
+                        elements.add(tagDecision, score, b);
                 }
             }
-
-            ArrayList<TaggingState> newBeam = new ArrayList<TaggingState>();
-
-            for (BeamElement element : elements) {
-                TaggingState state = beam.get(element.beamNum).clone();
-                state.tags[state.currentPosition++] = element.tagDecision;
-                state.score = element.score;
-                newBeam.add(state);
-            }
-            beam = newBeam;
+            addToLattice(lattice, i + 1, elements, merged, recombine, beamMargin);
         }
 
+        return bestFinalState(lattice, sentence.words.length, bigramScore, trigramScore, tagSize, elements);
+    }
 
-        TreeSet<BeamElement> elements = new TreeSet<BeamElement>();
-        for (int b = 0; b < beam.size(); b++) {
-            TaggingState state = beam.get(b);
-            int currentPosition = state.currentPosition;
-            int prevTag = currentPosition > 0 ? state.tags[currentPosition - 1] : 0;
-            int prev2Tag = currentPosition > 1 ? state.tags[currentPosition - 2] : 0;
-            int prev3Tag = currentPosition > 2 ? state.tags[currentPosition - 3] : 0;
-            int tagDecision = SpecialWords.stop.value;
-            float bs = bigramScore[prevTag][tagDecision];
-            float ts = trigramScore[prev2Tag][prevTag][tagDecision];
-            float score = bs + ts + state.score;
-            BeamElement element = new BeamElement(tagDecision, score, b);
-            elements.add(element);
-            if (elements.size() > beamWidth)
-                elements.pollFirst();
-        }
-
-        int beamNum = elements.last().beamNum;
-        return new Pair<int[], Float>(beam.get(beamNum).tags, elements.last().score);
+    public static TaggingState thirdOrder(final Sentence sentence, final AveragedPerceptron perceptron, int beamWidth, UpdateMode updateMode, int unknownIndex) {
+        int[] selection = new int[2];
+        BeamLattice lattice = trainingSearch(sentence, perceptron, beamWidth, updateMode, unknownIndex, false, 0f, 0, 0, selection);
+        int level = selection[0];
+        if (level == -1)
+            return new TaggingState(sentence.words.length);
+        // for the full sentence, the best state after the stop transition
+        if (level == sentence.words.length)
+            return lattice.state(level, selection[1]);
+        return lattice.state(level, lattice.size(level) - 1);
     }
 
-    public static ArrayList<Pair<int[], Float>> getPossibleTagsByOneReplacement(final Sentence sentence, final AveragedPerceptron perceptron, int beamWidth, final Tagger tagger) {
-        ArrayList<Pair<int[], Float>> allTags = new ArrayList<Pair<int[], Float>>();
-        Pair<int[], Float> bestTags = thirdOrderWithPruning(sentence, perceptron, beamWidth, tagger, new HashMap<Integer, HashSet<Integer>>());
-        allTags.add(bestTags);
-
-        for (int i = 0; i < bestTags.first.length; i++) {
-            HashMap<Integer, HashSet<Integer>> exceptedTags = new HashMap<Integer, HashSet<Integer>>();
-            HashSet<Integer> exceptions = new HashSet<Integer>();
-            exceptions.add(bestTags.first[i]);
-            exceptedTags.put(i, exceptions);
-            allTags.add(thirdOrderWithPruning(sentence, perceptron, beamWidth, tagger, exceptedTags));
-        }
-        return allTags;
+    /**
+     * Beam search for training: returns the n best states of the prefix with the maximum violation (or of the
+     * full sentence for standard updates and partial data), the best one first; fewer than n if the beam of that
+     * level has fewer states.
+     */
+    public static ArrayList<TaggingState> thirdOrderNBest(final Sentence sentence, final AveragedPerceptron perceptron, int beamWidth, UpdateMode updateMode, int unknownIndex, int n) {
+        return thirdOrderNBest(sentence, perceptron, beamWidth, updateMode, unknownIndex, n, false, 0f, 0);
     }
 
+    /**
+     * @param recombine     keep only the best of the hypotheses that end in the same two tags; the n-best list
+     *                      still includes the merged ones
+     * @param beamMargin    if positive, drop the hypotheses more than this below the best one of their position
+     * @param histogramSize if positive (and without recombination), keep at most this many hypotheses that end in the same two tags
+     */
+    public static ArrayList<TaggingState> thirdOrderNBest(final Sentence sentence, final AveragedPerceptron perceptron, int beamWidth, UpdateMode updateMode, int unknownIndex, int n,
+                                                          final boolean recombine, final float beamMargin, final int histogramSize) {
+        int[] selection = new int[2];
+        BeamLattice lattice = trainingSearch(sentence, perceptron, beamWidth, updateMode, unknownIndex, recombine, beamMargin, histogramSize, n - 1, selection);
+        if (selection[0] == -1)
+            return new ArrayList<TaggingState>(n);
+        return bestStates(lattice, selection[0], n);
+    }
 
-    public static TaggingState thirdOrder(final Sentence sentence, final AveragedPerceptron perceptron, int beamWidth, UpdateMode updateMode, int unknownIndex) {
-        int len = sentence.words.length + 1;
+    /**
+     * Runs the beam search of training against the gold tags.
+     *
+     * @param selection output: the level of the lattice to update with (-1 if none), and the index of the best
+     *                  state of the full sentence after the stop transition
+     */
+    private static BeamLattice trainingSearch(final Sentence sentence, final AveragedPerceptron perceptron, int beamWidth, UpdateMode updateMode, int unknownIndex,
+                                              final boolean recombine, final float beamMargin, final int histogramSize, int alternatives, int[] selection) {
         int tagSize = perceptron.tagSize();
-        int featSize = perceptron.featureSize();
+        int length = sentence.words.length;
 
         boolean isPartial = false;
-        for (int tag : sentence.pos_tags)
+        for (int tag : sentence.pos_tags) {
             if (tag == unknownIndex) {
                 isPartial = true;
                 break;
             }
-
-        float maxViolation = Float.NEGATIVE_INFINITY;
-        TaggingState maxViolState = new TaggingState(sentence.words.length);
-        TaggingState goldState = new TaggingState(sentence.words.length);
-
-
-        // pai score values
-        float emission_score[][] = new float[len - 1][tagSize];
-        float bigramScore[][] = new float[tagSize][tagSize];
-        float trigramScore[][][] = new float[tagSize][tagSize][tagSize];
-
-        for (int v = 0; v < tagSize; v++) {
-            for (int u = 0; u < tagSize; u++) {
-                bigramScore[u][v] = perceptron.score(v, featSize - 3, u, false);
-                for (int w = 0; w < tagSize; w++) {
-                    int bigram = (w << 10) + u;
-                    trigramScore[w][u][v] = perceptron.score(v, featSize - 2, bigram, false);
-                }
-            }
-        }
-
-        for (int position = 0; position < sentence.words.length; position++) {
-            int[] emissionFeatures = sentence.get_emission_features(position);
-            for (int t = 2; t < tagSize; t++) {
-                emission_score[position][t] = perceptron.score(emissionFeatures, t, false);
-                //   int cond=perceptron.dictCondition(sentence.lowerWords[position],t);
-                int cond = perceptron.dictCondition(sentence.lowercase_words[position], t);
-                if (cond != -1)
-                    emission_score[position][t] += perceptron.score(t, perceptron.featureSize() - 1, cond, false);
-            }
         }
 
-        ArrayList<TaggingState> beam = new ArrayList<TaggingState>();
-        TaggingState initialState = new TaggingState(sentence.words.length);
-        beam.add(initialState);
+        // the level of the lattice with the maximum violation; -1 if there is none
+        int maxViolationLevel = -1;
+        float maxViolation = Float.NEGATIVE_INFINITY;
+        TaggingState goldState = new TaggingState(length);
 
-        for (int i = 0; i < sentence.words.length; i++) {
-            TreeSet<BeamElement> elements = new TreeSet<BeamElement>();
+        float emission_score[] = emissionScores(sentence, perceptron, false);
+        float bigramScore[] = perceptron.bigramScores(false);
+        float trigramScore[] = perceptron.trigramScores(false);
 
+        BeamLattice lattice = new BeamLattice(length, beamWidth, recombine ? alternatives : 0);
+        BeamHeap elements = new BeamHeap(beamWidth);
+        RecombinationTable merged = mergeTable(tagSize, recombine, alternatives, histogramSize);
+        for (int i = 0; i < length; i++) {
+            elements.clear();
 
-            for (int b = 0; b < beam.size(); b++) {
-                TaggingState state = beam.get(b);
-                int currentPosition = state.currentPosition;
-                int prevTag = currentPosition > 0 ? state.tags[currentPosition - 1] : 0;
-                int prev2Tag = currentPosition > 1 ? state.tags[currentPosition - 2] : 0;
+            for (int b = 0; b < lattice.size(i); b++) {
+                int prevTag = lattice.prevTag(i, b);
+                int prev2Tag = lattice.prev2Tag(i, b);
+                float stateScore = lattice.score(i, b);
 
                 for (int tagDecision = 2; tagDecision < tagSize; tagDecision++) {
-                    float es = emission_score[currentPosition][tagDecision];
-                    float bs = bigramScore[prevTag][tagDecision];
-                    float ts = trigramScore[prev2Tag][prevTag][tagDecision];
-                    float score = es + bs + ts + state.score;
-                    BeamElement element = new BeamElement(tagDecision, score, b);
-                    elements.add(element);
-                    if (elements.size() > beamWidth)
-                        elements.pollFirst();
+                    float es = emission_score[i * tagSize + tagDecision];
+                    float bs = bigramScore[prevTag * tagSize + tagDecision];
+                    float ts = trigramScore[(prev2Tag * tagSize + prevTag) * tagSize + tagDecision];
+                    float score = es + bs + ts + stateScore;
+                    if (merged != null)
+                        merged.add(prevTag, tagDecision, score, b);
+                    else
+                        elements.add(tagDecision, score, b);
                 }
             }
 
@@ -417,9 +179,9 @@ public class BeamTagger {
                 int prevTag = goldState.currentPosition > 0 ? goldState.tags[goldState.currentPosition - 1] : 0;
                 int prev2Tag = goldState.currentPosition > 1 ? goldState.tags[goldState.currentPosition - 2] : 0;
                 if (prevTag != unknownIndex && prev2Tag != unknownIndex) {
-                    float es = emission_score[goldState.currentPosition][sentence.pos_tags[goldState.currentPosition]];
-                    float bs = bigramScore[prevTag][goldState.tags[goldState.currentPosition]];
-                    float ts = trigramScore[prev2Tag][prevTag][sentence.pos_tags[goldState.currentPosition]];
+                    float es = emission_score[goldState.currentPosition * tagSize + sentence.pos_tags[goldState.currentPosition]];
+                    float bs = bigramScore[prevTag * tagSize + goldState.tags[goldState.currentPosition]];
+                    float ts = trigramScore[(prev2Tag * tagSize + prevTag) * tagSize + sentence.pos_tags[goldState.currentPosition]];
                     float score = es + bs + ts + goldState.score;
                     goldState.score = score;
                 }
@@ -427,255 +189,163 @@ public class BeamTagger {
             goldState.tags[goldState.currentPosition] = sentence.pos_tags[goldState.currentPosition];
             goldState.currentPosition++;
 
-            ArrayList<TaggingState> newBeam = new ArrayList<TaggingState>();
-
-            boolean oracleInBeam = false;
-            for (BeamElement element : elements) {
-                TaggingState state = beam.get(element.beamNum).clone();
-                state.tags[state.currentPosition++] = element.tagDecision;
-                state.score = element.score;
-                newBeam.add(state);
-                if (updateMode.value != updateMode.standard.value && !oracleInBeam) {
-                    boolean same = true;
-                    for (int j = 0; j <= state.currentPosition; j++) {
-                        if (sentence.pos_tags[i] != state.tags[i] && sentence.pos_tags[i] != unknownIndex) {
-                            same = false;
-                            break;
-                        }
-                    }
-                    if (same)
+            addToLattice(lattice, i + 1, elements, merged, recombine, beamMargin);
+
+            if (updateMode.value != updateMode.standard.value) {
+                // the oracle is taken to be in the beam if any state agrees with the gold tag of this position
+                boolean oracleInBeam = false;
+                for (int k = 0; k < lattice.size(i + 1) && !oracleInBeam; k++) {
+                    if (sentence.pos_tags[i] == lattice.prevTag(i + 1, k) || sentence.pos_tags[i] == unknownIndex)
                         oracleInBeam = true;
                 }
-            }
 
-            if (updateMode.value != updateMode.standard.value && !oracleInBeam) {
-                float viol = elements.last().score - goldState.score;
-                if (viol > maxViolation) {
-                    maxViolation = viol;
-                    maxViolState = newBeam.get(newBeam.size() - 1);
-                    if (updateMode.value == updateMode.early.value) {
-                        return maxViolState;
+                if (!oracleInBeam) {
+                    float viol = elements.score(elements.size() - 1) - goldState.score;
+                    if (viol > maxViolation) {
+                        maxViolation = viol;
+                        maxViolationLevel = i + 1;
+                        if (updateMode.value == updateMode.early.value) {
+                            selection[0] = maxViolationLevel;
+                            return lattice;
+                        }
                     }
                 }
             }
-
-            beam = newBeam;
-        }
-
-
-        TreeSet<BeamElement> elements = new TreeSet<BeamElement>();
-        for (int b = 0; b < beam.size(); b++) {
-            TaggingState state = beam.get(b);
-            int currentPosition = state.currentPosition;
-            int prevTag = currentPosition > 0 ? state.tags[currentPosition - 1] : 0;
-            int prev2Tag = currentPosition > 1 ? state.tags[currentPosition - 2] : 0;
-            int tagDecision = SpecialWords.stop.value;
-            float bs = bigramScore[prevTag][tagDecision];
-            float ts = trigramScore[prev2Tag][prevTag][tagDecision];
-            float score = bs + ts + state.score;
-            BeamElement element = new BeamElement(tagDecision, score, b);
-            elements.add(element);
-            if (elements.size() > beamWidth)
-                elements.pollFirst();
         }
 
         int prevTag = goldState.currentPosition > 0 ? goldState.tags[goldState.currentPosition - 1] : 0;
         int prev2Tag = goldState.currentPosition > 1 ? goldState.tags[goldState.currentPosition - 2] : 0;
         if (prev2Tag != unknownIndex && prevTag != unknownIndex) {
-            float bs = bigramScore[prevTag][1];
-            float ts = trigramScore[prev2Tag][prevTag][1];
+            float bs = bigramScore[prevTag * tagSize + 1];
+            float ts = trigramScore[(prev2Tag * tagSize + prevTag) * tagSize + 1];
             float score = bs + ts + goldState.score;
             goldState.score = score;
         }
 
+        // the violation of the full sentence is measured with the best state before the stop transition
+        int beamNum = bestFinalStateIndex(lattice, length, bigramScore, trigramScore, tagSize, elements);
+        float viol = lattice.score(length, beamNum) - goldState.score;
+        if (viol > maxViolation || updateMode.value != updateMode.maxViolation.value || isPartial)
+            maxViolationLevel = length;
 
-        int beamNum = elements.last().beamNum;
-        TaggingState lastState = beam.get(beamNum);
-        float viol = lastState.score - goldState.score;
-        if (viol > maxViolation) {
-            maxViolState = lastState;
-        }
-
-        if (updateMode.value != updateMode.maxViolation.value || isPartial)
-            return lastState;
-
-        return maxViolState;
+        selection[0] = maxViolationLevel;
+        selection[1] = beamNum;
+        return lattice;
     }
 
-    public static ArrayList<TaggingState> thirdOrderNBest(final Sentence sentence, final AveragedPerceptron perceptron, int beamWidth, UpdateMode updateMode, int unknownIndex, int n) {
-        int len = sentence.words.length + 1;
+    /**
+     * Emission scores of every position and tag, including the tag dictionary feature, indexed [position * tagSize + t]
+     */
+    private static float[] emissionScores(final Sentence sentence, final AveragedPerceptron perceptron, final boolean isDecode) {
         int tagSize = perceptron.tagSize();
-        int featSize = perceptron.featureSize();
-
-        boolean isPartial = false;
-        for (int tag : sentence.pos_tags) {
-            if (tag == unknownIndex) {
-                isPartial = true;
-                break;
-            }
-        }
-
-
-        ArrayList<TaggingState> maxStates = new ArrayList<TaggingState>(n);
-
-
-        float maxViolation = Float.NEGATIVE_INFINITY;
-        TaggingState goldState = new TaggingState(sentence.words.length);
-
-
-        // pai score values
-        float emission_score[][] = new float[len - 1][tagSize];
-        float bigramScore[][] = new float[tagSize][tagSize];
-        float trigramScore[][][] = new float[tagSize][tagSize][tagSize];
-
-        for (int v = 0; v < tagSize; v++) {
-            for (int u = 0; u < tagSize; u++) {
-                bigramScore[u][v] = perceptron.score(v, featSize - 3, u, false);
-                for (int w = 0; w < tagSize; w++) {
-                    int bigram = (w << 10) + u;
-                    trigramScore[w][u][v] = perceptron.score(v, featSize - 2, bigram, false);
-                }
-            }
-        }
-
+        float emission_score[] = new float[sentence.words.length * tagSize];
+        int[] emissionFeatures = new int[Sentence.NUM_FEATURES];
         for (int position = 0; position < sentence.words.length; position++) {
-            int[] emissionFeatures = sentence.get_emission_features(position);
+            sentence.get_emission_features(position, emissionFeatures);
+            perceptron.emissionScores(emissionFeatures, isDecode, emission_score, position * tagSize);
+            long dictTags = perceptron.tagMask(sentence.lowercase_words[position]);
             for (int t = 2; t < tagSize; t++) {
-                emission_score[position][t] = perceptron.score(emissionFeatures, t, false);
-                int cond = perceptron.dictCondition(sentence.lowercase_words[position], t);
-                if (cond != -1)
-                    emission_score[position][t] += perceptron.score(t, perceptron.featureSize() - 1, cond, false);
+                int cond = (int) (dictTags >>> t) & 1;
+                emission_score[position * tagSize + t] += perceptron.score(t, perceptron.featureSize() - 1, cond, isDecode);
             }
         }
+        return emission_score;
+    }
 
-        ArrayList<TaggingState> beam = new ArrayList<TaggingState>();
-        TaggingState initialState = new TaggingState(sentence.words.length);
-        beam.add(initialState);
-
-        for (int i = 0; i < sentence.words.length; i++) {
-            TreeSet<BeamElement> elements = new TreeSet<BeamElement>();
-
-
-            for (int b = 0; b < beam.size(); b++) {
-                TaggingState state = beam.get(b);
-                int currentPosition = state.currentPosition;
-                int prevTag = currentPosition > 0 ? state.tags[currentPosition - 1] : 0;
-                int prev2Tag = currentPosition > 1 ? state.tags[currentPosition - 2] : 0;
-
-                for (int tagDecision = 2; tagDecision < tagSize; tagDecision++) {
-                    float es = emission_score[currentPosition][tagDecision];
-                    float bs = bigramScore[prevTag][tagDecision];
-                    float ts = trigramScore[prev2Tag][prevTag][tagDecision];
-                    float score = es + bs + ts + state.score;
-                    BeamElement element = new BeamElement(tagDecision, score, b);
-                    elements.add(element);
-                    if (elements.size() > beamWidth)
-                        elements.pollFirst();
-                }
-            }
-
-            if (sentence.pos_tags[goldState.currentPosition] != unknownIndex) {
-                int prevTag = goldState.currentPosition > 0 ? goldState.tags[goldState.currentPosition - 1] : 0;
-                int prev2Tag = goldState.currentPosition > 1 ? goldState.tags[goldState.currentPosition - 2] : 0;
-                if (prevTag != unknownIndex && prev2Tag != unknownIndex) {
-                    float es = emission_score[goldState.currentPosition][sentence.pos_tags[goldState.currentPosition]];
-                    float bs = bigramScore[prevTag][goldState.tags[goldState.currentPosition]];
-                    float ts = trigramScore[prev2Tag][prevTag][sentence.pos_tags[goldState.currentPosition]];
-                    float score = es + bs + ts + goldState.score;
-                    goldState.score = score;
-                }
-            }
-            goldState.tags[goldState.currentPosition] = sentence.pos_tags[goldState.currentPosition];
-            goldState.currentPosition++;
-
-            ArrayList<TaggingState> newBeam = new ArrayList<TaggingState>();
-
-            boolean oracleInBeam = false;
-            for (BeamElement element : elements) {
-                TaggingState state = beam.get(element.beamNum).clone();
-                state.tags[state.currentPosition++] = element.tagDecision;
-                state.score = element.score;
-                newBeam.add(state);
-                if (updateMode.value != updateMode.standard.value && !oracleInBeam) {
-                    boolean same = true;
-                    for (int j = 0; j <= state.currentPosition; j++) {
-                        if (sentence.pos_tags[i] != state.tags[i] && sentence.pos_tags[i] != unknownIndex) {
-                            same = false;
-                            break;
-                        }
-                    }
-                    if (same)
-                        oracleInBeam = true;
-                }
-            }
-
-            if (updateMode.value != updateMode.standard.value && !oracleInBeam) {
-                float viol = elements.last().score - goldState.score;
-                if (viol > maxViolation) {
-                    maxViolation = viol;
-                    maxStates = new ArrayList<TaggingState>(n);
+    /**
+     * @return the table that merges candidates for recombination or histogram pruning, or null if neither is used
+     */
+    private static RecombinationTable mergeTable(int tagSize, boolean recombine, int alternatives, int histogramSize) {
+        if (recombine)
+            return new RecombinationTable(tagSize, alternatives);
+        if (histogramSize > 0)
+            return new RecombinationTable(tagSize, histogramSize - 1);
+        return null;
+    }
 
-                    for (int j = 1; j <= n; j++) {
-                        maxStates.add(newBeam.get(newBeam.size() - j));
-                    }
-                    if (updateMode.value == updateMode.early.value) {
-                        return maxStates;
-                    }
-                }
+    /**
+     * Stores the selected candidates in ascending order of score as the states of a level, with their merged
+     * alternatives if the candidates were recombined; with a positive margin, the candidates more than the margin
+     * below the best one are dropped
+     */
+    private static void addToLattice(BeamLattice lattice, int level, BeamHeap elements, RecombinationTable merged, boolean recombine, float beamMargin) {
+        if (merged != null) {
+            if (recombine)
+                merged.flush(elements);
+            else
+                merged.flushAll(elements);
+        }
+        elements.sort();
+        int first = 0;
+        if (beamMargin > 0) {
+            float best = elements.score(elements.size() - 1);
+            while (elements.score(first) < best - beamMargin)
+                first++;
+        }
+        for (int e = first; e < elements.size(); e++) {
+            lattice.add(level, elements.tagDecision(e), elements.beamNum(e), elements.score(e));
+            if (merged != null && recombine) {
+                int prevTag = lattice.prevTag(level - 1, elements.beamNum(e));
+                for (int j = 0; j < merged.alternativeCount(prevTag, elements.tagDecision(e)); j++)
+                    lattice.addAlternative(level, merged.alternativeBeamNum(prevTag, elements.tagDecision(e), j),
+                            merged.alternativeScore(prevTag, elements.tagDecision(e), j));
             }
-
-            beam = newBeam;
         }
+        if (merged != null)
+            merged.clear();
+    }
 
-
-        TreeSet<BeamElement> elements = new TreeSet<BeamElement>();
-        for (int b = 0; b < beam.size(); b++) {
-            TaggingState state = beam.get(b);
-            int currentPosition = state.currentPosition;
-            int prevTag = currentPosition > 0 ? state.tags[currentPosition - 1] : 0;
-            int prev2Tag = currentPosition > 1 ? state.tags[currentPosition - 2] : 0;
+    /**
+     * @return the index of the state in the last level with the best score after the stop transition;
+     * the candidates are left sorted in the heap
+     */
+    private static int bestFinalStateIndex(BeamLattice lattice, int level, float[] bigramScore, float[] trigramScore, int tagSize, BeamHeap elements) {
+        elements.clear();
+        for (int b = 0; b < lattice.size(level); b++) {
+            int prevTag = lattice.prevTag(level, b);
+            int prev2Tag = lattice.prev2Tag(level, b);
             int tagDecision = SpecialWords.stop.value;
-            float bs = bigramScore[prevTag][tagDecision];
-            float ts = trigramScore[prev2Tag][prevTag][tagDecision];
-            float score = bs + ts + state.score;
-            BeamElement element = new BeamElement(tagDecision, score, b);
-            elements.add(element);
-            if (elements.size() > beamWidth)
-                elements.pollFirst();
-        }
-
-        int prevTag = goldState.currentPosition > 0 ? goldState.tags[goldState.currentPosition - 1] : 0;
-        int prev2Tag = goldState.currentPosition > 1 ? goldState.tags[goldState.currentPosition - 2] : 0;
-        if (prev2Tag != unknownIndex && prevTag != unknownIndex) {
-            float bs = bigramScore[prevTag][1];
-            float ts = trigramScore[prev2Tag][prevTag][1];
-            float score = bs + ts + goldState.score;
-            goldState.score = score;
+            float bs = bigramScore[prevTag * tagSize + tagDecision];
+            float ts = trigramScore[(prev2Tag * tagSize + prevTag) * tagSize + tagDecision];
+            float score = bs + ts + lattice.score(level, b);
+            elements.add(tagDecision, score, b);
         }
+        elements.sort();
+        return elements.beamNum(elements.size() - 1);
+    }
 
+    private static Pair<int[], Float> bestFinalState(BeamLattice lattice, int level, float[] bigramScore, float[] trigramScore, int tagSize, BeamHeap elements) {
+        int beamNum = bestFinalStateIndex(lattice, level, bigramScore, trigramScore, tagSize, elements);
+        return new Pair<int[], Float>(lattice.tags(level, beamNum), elements.score(elements.size() - 1));
+    }
 
-        int beamNum = elements.last().beamNum;
-        TaggingState lastState = beam.get(beamNum);
-        float viol = lastState.score - goldState.score;
-        if (viol > maxViolation) {
-            maxStates = new ArrayList<TaggingState>(n);
-
-            for (int j = 1; j <= n; j++) {
-                maxStates.add(beam.get(beam.size() - j));
-            }
+    /**
+     * @return the n best states of a level (including merged alternatives), the best one first; fewer if the level
+     * has fewer (margin pruning can leave a single state)
+     */
+    private static ArrayList<TaggingState> bestStates(BeamLattice lattice, int level, int n) {
+        ArrayList<TaggingState> states = new ArrayList<TaggingState>(n);
+        int alternatives = 0;
+        for (int k = 0; k < lattice.size(level); k++)
+            alternatives += lattice.alternativeCount(level, k);
+        if (alternatives == 0) {
+            for (int j = 1; j <= Math.min(n, lattice.size(level)); j++)
+                states.add(lattice.state(level, lattice.size(level) - j));
+            return states;
         }
 
-        if (updateMode.value != updateMode.maxViolation.value || isPartial) {
-            maxStates = new ArrayList<TaggingState>(n);
-
-            for (int i = 1; i <= n; i++) {
-                maxStates.add(beam.get(beam.size() - i));
-            }
-            return maxStates;
+        // the tag decision slot of the heap ranks the state itself (n) above its j-th alternative (n - 1 - j) on ties
+        BeamHeap best = new BeamHeap(n);
+        for (int k = 0; k < lattice.size(level); k++) {
+            best.add(n, lattice.score(level, k), k);
+            for (int j = 0; j < lattice.alternativeCount(level, k); j++)
+                best.add(n - 1 - j, lattice.alternativeScore(level, k, j), k);
         }
-
-        return maxStates;
+        best.sort();
+        for (int e = best.size() - 1; e >= 0; e--) {
+            int slot = best.tagDecision(e);
+            states.add(slot == n ? lattice.state(level, best.beamNum(e)) : lattice.alternativeState(level, best.beamNum(e), n - 1 - slot));
+        }
+        return states;
     }
-
-
 }
@@ -0,0 +1,77 @@
+package SemiSupervisedPOSTagger.Tagging;
+
+/**
+ * The coarse pass of coarse-to-fine decoding: a first-order model with only the emission and bigram scores
+ * gives the max-marginal of every tag at every position (the best first-order score of a sequence through it),
+ * and tags whose max-marginal is more than a threshold below the best one of their position are pruned before
+ * the third-order decoder runs.
+ */
+class CoarseToFine {
+    /**
+     * @param emissionScore emission scores, indexed [position * tagSize + t]
+     * @param allowedTags   tags considered at each position (bitmasks)
+     * @param prunedTags    output: the allowed tags that survive; the best tag of a position always does
+     * @param alpha         scratch space of length * tagSize floats
+     * @param beta          scratch space of length * tagSize floats
+     */
+    static void prune(final float[] emissionScore, final float[] bigramScore, final int tagSize, final int length, final long[] allowedTags,
+                      final float threshold, final long[] prunedTags, final float[] alpha, final float[] beta) {
+        float inf = Float.POSITIVE_INFINITY;
+
+        // forward: best score of a prefix ending in t, including the emission of t
+        for (int i = 0; i < length; i++) {
+            for (long ts = allowedTags[i]; ts != 0; ts &= ts - 1) {
+                int t = Long.numberOfTrailingZeros(ts);
+                float best;
+                if (i == 0) {
+                    best = bigramScore[t];
+                } else {
+                    best = -inf;
+                    for (long us = allowedTags[i - 1]; us != 0; us &= us - 1) {
+                        int u = Long.numberOfTrailingZeros(us);
+                        best = Math.max(best, alpha[(i - 1) * tagSize + u] + bigramScore[u * tagSize + t]);
+                    }
+                }
+                alpha[i * tagSize + t] = best + emissionScore[i * tagSize + t];
+            }
+        }
+
+        // backward: best score of a suffix after t, up to the stop tag
+        for (int i = length - 1; i >= 0; i--) {
+            for (long ts = allowedTags[i]; ts != 0; ts &= ts - 1) {
+                int t = Long.numberOfTrailingZeros(ts);
+                float best;
+                if (i == length - 1) {
+                    best = bigramScore[t * tagSize + 1];
+                } else {
+                    best = -inf;
+                    for (long vs = allowedTags[i + 1]; vs != 0; vs &= vs - 1) {
+                        int v = Long.numberOfTrailingZeros(vs);
+                        best = Math.max(best, bigramScore[t * tagSize + v] + emissionScore[(i + 1) * tagSize + v] + beta[(i + 1) * tagSize + v]);
+                    }
+                }
+                beta[i * tagSize + t] = best;
+            }
+        }
+
+        for (int i = 0; i < length; i++) {
+            float best = -inf;
+            int bestTag = Long.numberOfTrailingZeros(allowedTags[i]);
+            for (long ts = allowedTags[i]; ts != 0; ts &= ts - 1) {
+                int t = Long.numberOfTrailingZeros(ts);
+                float maxMarginal = alpha[i * tagSize + t] + beta[i * tagSize + t];
+                if (maxMarginal > best) {
+                    best = maxMarginal;
+                    bestTag = t;
+                }
+            }
+            long survivors = 1L << bestTag;
+            for (long ts = allowedTags[i]; ts != 0; ts &= ts - 1) {
+                int t = Long.numberOfTrailingZeros(ts);
+                if (alpha[i * tagSize + t] + beta[i * tagSize + t] >= best - threshold)
+                    survivors |= 1L << t;
+            }
+            prunedTags[i] = survivors;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package SemiSupervisedPOSTagger.Tagging;
+
+import SemiSupervisedPOSTagger.Structures.Pair;
+import SemiSupervisedPOSTagger.Structures.Sentence;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Anytime decoding under deadlines: a ladder of decoders from the decoder of the model (level 0) down to beam
+ * search with smaller and smaller beams and finally greedy decoding (a beam of one), with a running estimate of the
+ * cost per token of each level. A sentence is decoded with the most accurate level that is expected to finish the
+ * work ahead of it (its own words, and those queued before it, shared by the workers) before its deadline; under
+ * pressure the accuracy degrades instead of the latency.
+ * The counters tell how often and how far the decoding was degraded.
+ */
+public class DeadlinePolicy {
+    /**
+     * The first degraded beam of a Viterbi model
+     */
+    public static final int VITERBI_FALLBACK_BEAM = 8;
+
+    private final TaggerModel model;
+    /**
+     * Beam widths of the levels 1, 2, ...
+     */
+    private final int[] beamWidths;
+    /**
+     * Running estimates of the decoding time of a token at each level in nanoseconds; 0 until the first measurement
+     */
+    private final double[] nanosPerToken;
+    private final AtomicLongArray sentences;
+    private final AtomicLongArray tokens;
+
+    public DeadlinePolicy(TaggerModel model) {
+        this.model = model;
+        ArrayList<Integer> widths = new ArrayList<Integer>();
+        for (int width = model.useBeamSearch() ? model.beamSize() / 2 : VITERBI_FALLBACK_BEAM; width > 1; width /= 2)
+            widths.add(width);
+        widths.add(1);
+        beamWidths = new int[widths.size()];
+        for (int i = 0; i < beamWidths.length; i++)
+            beamWidths[i] = widths.get(i);
+        nanosPerToken = new double[beamWidths.length + 1];
+        sentences = new AtomicLongArray(nanosPerToken.length);
+        tokens = new AtomicLongArray(nanosPerToken.length);
+    }
+
+    public int levels() {
+        return nanosPerToken.length;
+    }
+
+    /**
+     * @param tokensAhead the number of words to decode before the deadline, this sentence included
+     * @param budget      the time left before the deadline in nanoseconds
+     * @return the most accurate level that is expected to make it, or the fastest one
+     */
+    public synchronized int level(long tokensAhead, long budget) {
+        double estimate = 0;
+        for (int level = 0; level < nanosPerToken.length; level++) {
+            // a level that was never measured is taken to be twice as fast as the one before
+            estimate = nanosPerToken[level] > 0 ? nanosPerToken[level] : estimate / 2;
+            if (estimate * tokensAhead <= budget)
+                return level;
+        }
+        return nanosPerToken.length - 1;
+    }
+
+    /**
+     * Decodes with the given level
+     */
+    public Pair<int[], Float> decode(TaggingSession session, Sentence sentence, boolean usePartialInfo, int level) {
+        if (level == 0)
+            return session.tagWithScore(sentence, usePartialInfo);
+        return session.tagWithBeam(sentence, usePartialInfo, beamWidths[level - 1]);
+    }
+
+    /**
+     * Updates the cost estimate of the level and the counters with a decoded sentence. The estimates of the more
+     * accurate levels, which are not measured while they are not used, slowly go down, so that a level that once
+     * looked too slow (e.g. before the JIT compilation, or during a burst) is tried again.
+     */
+    public void record(int level, int length, long nanos) {
+        sentences.incrementAndGet(level);
+        tokens.addAndGet(level, length);
+        if (length > 0) {
+            synchronized (this) {
+                double cost = nanos / (double) length;
+                nanosPerToken[level] = nanosPerToken[level] == 0 ? cost : 0.9 * nanosPerToken[level] + 0.1 * cost;
+                for (int better = 0; better < level; better++)
+                    nanosPerToken[better] *= 0.99;
+            }
+        }
+    }
+
+    /**
+     * @return the counters, one "name: value" per line
+     */
+    public String stats() {
+        long all = 0;
+        long degraded = 0;
+        long levelSum = 0;
+        StringBuilder levels = new StringBuilder();
+        for (int level = 0; level < nanosPerToken.length; level++) {
+            long count = sentences.get(level);
+            all += count;
+            if (level > 0)
+                degraded += count;
+            levelSum += count * level;
+            levels.append("level " + level + " (" + name(level) + "): " + count + " sentences, " + tokens.get(level) + " tokens, "
+                    + String.format("%.0f", nanosPerTokenOf(level)) + " ns per token\n");
+        }
+        StringBuilder output = new StringBuilder();
+        output.append("degraded sentences: " + degraded + String.format(" (%.2f%%)", all == 0 ? 0 : 100.0 * degraded / all) + "\n");
+        output.append("mean degradation level: " + String.format("%.3f", all == 0 ? 0 : levelSum / (double) all) + "\n");
+        output.append(levels);
+        return output.toString();
+    }
+
+    public long degraded() {
+        long degraded = 0;
+        for (int level = 1; level < nanosPerToken.length; level++)
+            degraded += sentences.get(level);
+        return degraded;
+    }
+
+    /**
+     * @return the number of sentences decoded with the given level
+     */
+    public long sentences(int level) {
+        return sentences.get(level);
+    }
+
+    /**
+     * @return the decoder of a level, e.g. "beam 4"
+     */
+    public String name(int level) {
+        if (level == 0)
+            return model.useBeamSearch() ? "beam " + model.beamSize() : "viterbi";
+        return beamWidths[level - 1] == 1 ? "greedy" : "beam " + beamWidths[level - 1];
+    }
+
+    private synchronized double nanosPerTokenOf(int level) {
+        return nanosPerToken[level];
+    }
+}
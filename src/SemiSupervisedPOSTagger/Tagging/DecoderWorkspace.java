@@ -0,0 +1,128 @@
+package SemiSupervisedPOSTagger.Tagging;
+
+import SemiSupervisedPOSTagger.Learning.AveragedPerceptron;
+import SemiSupervisedPOSTagger.Structures.Sentence;
+
+import java.util.Arrays;
+
+/**
+ * Scratch space of the decoders, flattened into primitive arrays that grow with the longest sentence seen.
+ * A workspace is not thread-safe: every decoding thread should have its own (see Tagger), and
+ * reusing it makes decoding allocation-free apart from the returned tags.
+ */
+public class DecoderWorkspace {
+    /**
+     * Viterbi scores and back pointers, indexed [(k * tagSize + u) * tagSize + v]
+     */
+    float[] pai;
+    int[] bp;
+    /**
+     * Checkpoint levels of pai for long sentences (see Viterbi.checkpointed)
+     */
+    float[] checkpoints;
+    /**
+     * Emission scores, indexed [position * tagSize + t]
+     */
+    float[] emissionScore;
+    /**
+     * Tags allowed at each position as bitmasks (bit t for tag t)
+     */
+    long[] allowedTags;
+    /**
+     * First-order forward/backward scores of the coarse pass and the tags that survive it
+     */
+    float[] alpha;
+    float[] beta;
+    long[] prunedTags;
+    /**
+     * Emission features of one position
+     */
+    final int[] features;
+    /**
+     * Score of the last decoded sequence
+     */
+    float score;
+
+    public DecoderWorkspace() {
+        pai = new float[0];
+        bp = new int[0];
+        checkpoints = new float[0];
+        emissionScore = new float[0];
+        allowedTags = new long[0];
+        alpha = new float[0];
+        beta = new float[0];
+        prunedTags = new long[0];
+        features = new int[Sentence.NUM_FEATURES];
+    }
+
+    /**
+     * Makes room for a sentence and clears the part of the Viterbi tables it uses (the emissions are prepared separately)
+     *
+     * @param len number of words + 1
+     */
+    void prepareViterbi(int len, int tagSize) {
+        int size = len * tagSize * tagSize;
+        if (pai.length < size) {
+            int capacity = Math.max(size, pai.length * 2);
+            pai = new float[capacity];
+            bp = new int[capacity];
+        } else {
+            Arrays.fill(pai, 0, size, 0f);
+            Arrays.fill(bp, 0, size, 0);
+        }
+    }
+
+    /**
+     * Makes room for checkpointed decoding: two levels of pai, the checkpoint levels and the back pointers of one block
+     */
+    void prepareCheckpoints(int len, int tagSize, int blockSize) {
+        int layer = tagSize * tagSize;
+        if (pai.length < 2 * layer)
+            pai = new float[2 * layer];
+        if (bp.length < blockSize * layer)
+            bp = new int[blockSize * layer];
+        int size = ((len - 1) / blockSize + 1) * layer;
+        if (checkpoints.length < size)
+            checkpoints = new float[size];
+    }
+
+    void prepareEmissions(int length, int tagSize) {
+        int size = length * tagSize;
+        if (emissionScore.length < size)
+            emissionScore = new float[Math.max(size, emissionScore.length * 2)];
+        else
+            Arrays.fill(emissionScore, 0, size, 0f);
+    }
+
+    void prepareCoarsePass(int length, int tagSize) {
+        if (alpha.length < length * tagSize) {
+            alpha = new float[Math.max(length * tagSize, alpha.length * 2)];
+            beta = new float[alpha.length];
+        }
+        if (prunedTags.length < length)
+            prunedTags = new long[Math.max(length, prunedTags.length * 2)];
+    }
+
+    /**
+     * Fills the allowed tags of every position of a sentence: all tags, or with constrainTags only the tag
+     * dictionary entries of the words that are in the dictionary (the tag set has to fit in 64 bits)
+     */
+    public long[] allowedTags(final Sentence sentence, final AveragedPerceptron perceptron, final boolean constrainTags) {
+        int length = sentence.words.length;
+        if (allowedTags.length < length)
+            allowedTags = new long[Math.max(length, allowedTags.length * 2)];
+        long allTags = allTags(perceptron.tagSize());
+        for (int position = 0; position < length; position++) {
+            long mask = constrainTags ? perceptron.tagMask(sentence.lowercase_words[position]) & allTags : 0L;
+            allowedTags[position] = mask != 0 ? mask : allTags;
+        }
+        return allowedTags;
+    }
+
+    /**
+     * @return the mask of the real tags 2..tagSize-1
+     */
+    public static long allTags(int tagSize) {
+        return (tagSize >= 64 ? -1L : (1L << tagSize) - 1) & ~3L;
+    }
+}
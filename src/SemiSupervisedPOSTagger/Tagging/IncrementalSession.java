@@ -0,0 +1,292 @@
+package SemiSupervisedPOSTagger.Tagging;
+
+import SemiSupervisedPOSTagger.Learning.AveragedPerceptron;
+import SemiSupervisedPOSTagger.Structures.Sentence;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Tags a sentence while its words arrive one at a time (e.g. a live transcript), with the Viterbi decoder.
+ * The emission features of a word look at most two words ahead, so the Viterbi level of a word is computed as soon as
+ * the second word after it arrives (or the sentence ends). After every level, the best paths into the live states of
+ * the frontier are followed back, and the words on which they have all met can no longer change: they are committed.
+ * In the exact mode that is the only rule, so the committed tags are those of Viterbi on the whole sentence, but a
+ * word may wait for many words. With a maximum lag, a word that is more than maxLag levels behind the frontier is also
+ * committed with its tag on the best path so far and the frontier states that disagree with it are dropped, so every
+ * tag is out at most maxLag + 2 words after its word, at some cost in accuracy.
+ * The decoder settings of the model (beam search) are not used; coarse-to-fine pruning needs the whole sentence and
+ * is not supported. A session is not thread-safe.
+ */
+public class IncrementalSession {
+    /**
+     * The maximum lag of the exact mode: commit only where the paths have met
+     */
+    public static final int EXACT = -1;
+    private static final float NEG_INF = Float.NEGATIVE_INFINITY;
+
+    private final TaggerModel model;
+    private final AveragedPerceptron perceptron;
+    private final int tagSize;
+    private final int layer;
+    private final long allTags;
+    private final int maxLag;
+    private final float[] bigramScore;
+    private final float[] trigramScore;
+    /**
+     * Only consider the tag dictionary entries of the words that are in the dictionary
+     */
+    public boolean constrainTags;
+
+    private final ArrayList<String> words = new ArrayList<String>();
+    private final ArrayList<String> langIds = new ArrayList<String>();
+    private final int[] features = new int[Sentence.NUM_FEATURES];
+    private float[] emissionScore = new float[0];
+    private long[] allowedTags = new long[0];
+    /**
+     * The last two levels of pai (level k at (k & 1) * layer), and the back pointers of the levels from bpBase on
+     * (those below the first uncommitted word + 2 are not needed anymore)
+     */
+    private final float[] pai;
+    private final ArrayList<int[]> bp = new ArrayList<int[]>();
+    private int bpBase = 1;
+    private int levels;
+    private int[] tags = new int[0];
+    private int committed;
+
+    // scratch space of the backtraces
+    private int[] states;
+    private int[] previousStates;
+    private final boolean[] marked;
+    private int coalescedState;
+
+    IncrementalSession(TaggerModel model, int maxLag) {
+        this.model = model;
+        this.perceptron = model.perceptron();
+        this.maxLag = maxLag;
+        tagSize = perceptron.tagSize();
+        layer = tagSize * tagSize;
+        allTags = DecoderWorkspace.allTags(tagSize);
+        bigramScore = perceptron.bigramScores(true);
+        trigramScore = perceptron.trigramScores(true);
+        pai = new float[2 * layer];
+        states = new int[layer];
+        previousStates = new int[layer];
+        marked = new boolean[layer];
+    }
+
+    /**
+     * Adds the next word of the sentence
+     *
+     * @return the tags that are committed by it (of the words right after those committed before), possibly none
+     */
+    public String[] add(String word, String langId) {
+        int from = committed;
+        words.add(word);
+        langIds.add(langId);
+        while (levels + 2 < words.size())
+            advance();
+        return tagNames(from, committed);
+    }
+
+    /**
+     * Ends the sentence; the session is then ready for the next one
+     *
+     * @return the tags of the words that were not committed yet
+     */
+    public String[] finish() {
+        int from = committed;
+        while (levels < words.size())
+            advance();
+        int length = words.size();
+        if (committed < length) {
+            int[] last = new int[length];
+            Viterbi.lastTwoTags(length, allowedTags, allTags, tagSize, bigramScore, trigramScore, pai, (levels & 1) * layer, last);
+            int u = length > 1 ? last[length - 2] : 0;
+            commitThrough(length, u * tagSize + last[length - 1]);
+        }
+        String[] result = tagNames(from, length);
+        words.clear();
+        langIds.clear();
+        bp.clear();
+        bpBase = 1;
+        levels = 0;
+        committed = 0;
+        return result;
+    }
+
+    /**
+     * @return the number of words that wait for their tags
+     */
+    public int pending() {
+        return words.size() - committed;
+    }
+
+    /**
+     * Computes the next Viterbi level, from the words around it, then commits what can be
+     */
+    private void advance() {
+        int position = levels;
+        int first = Math.max(0, position - 2);
+        int end = Math.min(words.size(), position + 3);
+        ArrayList<String> unknownTags = new ArrayList<String>();
+        for (int i = first; i < end; i++)
+            unknownTags.add(TaggingSession.UNKNOWN_TAG);
+        Sentence window = new Sentence("", new ArrayList<String>(words.subList(first, end)), unknownTags, new ArrayList<String>(langIds.subList(first, end)),
+                model.maps());
+        int p = position - first;
+
+        if (allowedTags.length <= position) {
+            allowedTags = Arrays.copyOf(allowedTags, Math.max(16, 2 * allowedTags.length));
+            emissionScore = Arrays.copyOf(emissionScore, allowedTags.length * tagSize);
+        }
+        long mask = constrainTags ? perceptron.tagMask(window.lowercase_words[p]) & allTags : 0L;
+        allowedTags[position] = mask != 0 ? mask : allTags;
+        // as in Viterbi.emissionScores
+        perceptron.emissionScores(window.get_emission_features(p, features), true, emissionScore, position * tagSize);
+        long dictTags = perceptron.tagMask(window.lowercase_words[p]);
+        for (long ts = allowedTags[position]; ts != 0; ts &= ts - 1) {
+            int t = Long.numberOfTrailingZeros(ts);
+            int cond = (int) (dictTags >>> t) & 1;
+            emissionScore[position * tagSize + t] += perceptron.score(t, perceptron.featureSize() - 1, cond, true);
+        }
+
+        int k = position + 1;
+        if (k == 1) {
+            Arrays.fill(pai, 0, layer, 0f);
+            Viterbi.initialize(pai, 0, tagSize);
+        }
+        Arrays.fill(pai, (k & 1) * layer, (k & 1) * layer + layer, 0f);
+        int[] levelBp = new int[layer];
+        Viterbi.forward(k, allowedTags, allTags, tagSize, emissionScore, bigramScore, trigramScore, pai, ((k - 1) & 1) * layer, (k & 1) * layer, levelBp, 0);
+        bp.add(levelBp);
+        levels = k;
+
+        commitCoalesced();
+        while (maxLag != EXACT && levels - committed > maxLag) {
+            forceCommit();
+            commitCoalesced();
+        }
+    }
+
+    private void commitCoalesced() {
+        int level = coalescence();
+        if (level > 0)
+            commitThrough(level, coalescedState);
+    }
+
+    /**
+     * Follows the best paths into the live states of the frontier back to the first uncommitted word
+     *
+     * @return the highest level at which they all go through one state (left in coalescedState), or 0 if they do not
+     * meet after the committed words
+     */
+    private int coalescence() {
+        int count = liveStates(states);
+        for (int m = levels; m > committed && count > 0; m--) {
+            if (count == 1) {
+                coalescedState = states[0];
+                return m;
+            }
+            if (m == committed + 1)
+                break;
+            int[] levelBp = bp.get(m - bpBase);
+            int previous = 0;
+            for (int i = 0; i < count; i++) {
+                int state = states[i];
+                int previousState = levelBp[state] * tagSize + state / tagSize;
+                if (!marked[previousState]) {
+                    marked[previousState] = true;
+                    previousStates[previous++] = previousState;
+                }
+            }
+            for (int i = 0; i < previous; i++)
+                marked[previousStates[i]] = false;
+            int[] swap = states;
+            states = previousStates;
+            previousStates = swap;
+            count = previous;
+        }
+        return 0;
+    }
+
+    /**
+     * Commits the first uncommitted word with its tag on the best path into the frontier, and drops the frontier
+     * states whose paths have another tag there
+     */
+    private void forceCommit() {
+        int offset = (levels & 1) * layer;
+        int count = liveStates(states);
+        int best = states[0];
+        for (int i = 1; i < count; i++)
+            if (pai[offset + states[i]] > pai[offset + best])
+                best = states[i];
+        int tag = tagAtFirstUncommitted(best);
+        for (int i = 0; i < count; i++)
+            if (tagAtFirstUncommitted(states[i]) != tag)
+                pai[offset + states[i]] = NEG_INF;
+        ensureTags(committed + 1);
+        tags[committed] = tag;
+        committed++;
+        dropBackPointers();
+    }
+
+    private int tagAtFirstUncommitted(int state) {
+        for (int m = levels; m > committed + 1; m--)
+            state = bp.get(m - bpBase)[state] * tagSize + state / tagSize;
+        return state % tagSize;
+    }
+
+    /**
+     * @return the number of frontier states with a finite score, put in the given array
+     */
+    private int liveStates(int[] result) {
+        int k = levels;
+        int offset = (k & 1) * layer;
+        long uTags = k == 1 ? allTags | 1L : allowedTags[k - 2];
+        int count = 0;
+        for (long vs = allowedTags[k - 1]; vs != 0; vs &= vs - 1) {
+            int v = Long.numberOfTrailingZeros(vs);
+            for (long us = uTags; us != 0; us &= us - 1) {
+                int u = Long.numberOfTrailingZeros(us);
+                if (pai[offset + u * tagSize + v] > NEG_INF)
+                    result[count++] = u * tagSize + v;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Commits the words up to the last one of the given state of a level, following its best path back
+     */
+    private void commitThrough(int level, int state) {
+        ensureTags(level);
+        for (int m = level; m > committed; m--) {
+            tags[m - 1] = state % tagSize;
+            if (m - 1 > committed)
+                state = bp.get(m - bpBase)[state] * tagSize + state / tagSize;
+        }
+        committed = level;
+        dropBackPointers();
+    }
+
+    private void dropBackPointers() {
+        int drop = Math.min(bp.size(), committed + 2 - bpBase);
+        if (drop > 0) {
+            bp.subList(0, drop).clear();
+            bpBase += drop;
+        }
+    }
+
+    private void ensureTags(int length) {
+        if (tags.length < length)
+            tags = Arrays.copyOf(tags, Math.max(length, 2 * tags.length));
+    }
+
+    private String[] tagNames(int from, int to) {
+        String[] names = new String[to - from];
+        for (int i = from; i < to; i++)
+            names[i - from] = model.tagName(tags[i]);
+        return names;
+    }
+}
@@ -0,0 +1,317 @@
+package SemiSupervisedPOSTagger.Tagging;
+
+import SemiSupervisedPOSTagger.Learning.AveragedPerceptron;
+import SemiSupervisedPOSTagger.Structures.Pair;
+import SemiSupervisedPOSTagger.Structures.Sentence;
+import SemiSupervisedPOSTagger.Structures.SpecialWords;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Exact k-best decoding of the third-order model with lazy k-best extraction (Huang and Chiang, 2005): after the
+ * 1-best Viterbi pass, the i-th best derivation of a state (pair of last two tags) is only computed when a later
+ * state asks for it, from a candidate heap of (previous tag, rank in the previous state) pairs. The next-best
+ * sequences then cost about the sentence length times log(tagSize) each on top of the Viterbi pass, and only the
+ * states on their paths keep derivation lists.
+ * The lattice is that of Viterbi, including the tags it allows before the first word, so the best sequence and its
+ * score are those of Viterbi.thirdOrderWithScore.
+ */
+public class KBestViterbi {
+    private final int length;
+    private final int tagSize;
+    private final long allTags;
+    private final long[] allowedTags;
+    private final float[] emissionScore;
+    private final float[] bigramScore;
+    private final float[] trigramScore;
+    private final float[] pai;
+    private final int[] bp;
+    /**
+     * Derivation lists of the visited states, indexed [(k * tagSize + u) * tagSize + v]; the last entry is the
+     * final state, whose derivations end with the stop tag
+     */
+    private final Derivations[] derivations;
+
+    private KBestViterbi(final Sentence sentence, final AveragedPerceptron perceptron, final long[] allowedTags, final DecoderWorkspace workspace) {
+        length = sentence.words.length;
+        tagSize = perceptron.tagSize();
+        allTags = DecoderWorkspace.allTags(tagSize);
+        this.allowedTags = allowedTags;
+        emissionScore = Viterbi.emissionScores(sentence, perceptron, true, allowedTags, workspace);
+        bigramScore = perceptron.bigramScores(true);
+        trigramScore = perceptron.trigramScores(true);
+        workspace.prepareViterbi(length + 1, tagSize);
+        pai = workspace.pai;
+        bp = workspace.bp;
+        int layer = tagSize * tagSize;
+        Viterbi.initialize(pai, 0, tagSize);
+        for (int k = 1; k <= length; k++)
+            Viterbi.forward(k, allowedTags, allTags, tagSize, emissionScore, bigramScore, trigramScore, pai, (k - 1) * layer, k * layer, bp, k * layer);
+        derivations = new Derivations[(length + 1) * tagSize * tagSize + 1];
+    }
+
+    /**
+     * @param allowedTags tags that are considered at each position (bitmasks, see DecoderWorkspace.allowedTags)
+     * @return the k best tag sequences (fewer if there are not that many) with their scores, best first
+     */
+    public static ArrayList<Pair<int[], Float>> kBest(final Sentence sentence, final AveragedPerceptron perceptron, final int k, final long[] allowedTags,
+                                                      final DecoderWorkspace workspace) {
+        ArrayList<Pair<int[], Float>> sequences = new ArrayList<Pair<int[], Float>>(k);
+        if (sentence.words.length == 0) {
+            sequences.add(Viterbi.thirdOrderWithScore(sentence, perceptron, true, allowedTags, Float.POSITIVE_INFINITY, workspace));
+            return sequences;
+        }
+        KBestViterbi decoder = new KBestViterbi(sentence, perceptron, allowedTags, workspace);
+        int last = decoder.derivations.length - 1;
+        for (int rank = 0; rank < k && decoder.extend(last, rank + 1); rank++)
+            sequences.add(new Pair<int[], Float>(decoder.sequence(rank), decoder.derivations[last].scores[rank]));
+        return sequences;
+    }
+
+    /**
+     * Makes sure that a state has the given number of derivations if it can; without recursion, since the chain of
+     * previous states is as long as the sentence
+     *
+     * @return whether it has them
+     */
+    private boolean extend(int state, int count) {
+        int[] stack = new int[2 * (length + 2)];
+        int top = 0;
+        stack[top++] = state;
+        stack[top++] = count;
+        while (top > 0) {
+            int s = stack[top - 2];
+            int needed = stack[top - 1];
+            Derivations d = derivations(s);
+            if (d.size >= needed || d.exhausted) {
+                top -= 2;
+                continue;
+            }
+            // the successor of the last derivation (same previous tag, next rank of the previous state) becomes a candidate
+            if (!d.successorAdded) {
+                int lastEdge = d.edges[d.size - 1];
+                int tail = tail(s, lastEdge);
+                int rank = d.ranks[d.size - 1] + 1;
+                Derivations t = derivations(tail);
+                if (t.size <= rank && !t.exhausted) {
+                    stack[top++] = tail;
+                    stack[top++] = rank + 1;
+                    continue;
+                }
+                if (rank < t.size)
+                    d.push(edgeScore(s, lastEdge) + t.scores[rank], lastEdge, rank);
+                d.successorAdded = true;
+            }
+            if (!d.pop())
+                d.exhausted = true;
+        }
+        return derivations(state).size >= count;
+    }
+
+    /**
+     * @return the derivations of a state, starting with the 1-best of the Viterbi pass and the other first-rank candidates
+     */
+    private Derivations derivations(int state) {
+        if (derivations[state] != null)
+            return derivations[state];
+        int layer = tagSize * tagSize;
+        Derivations d = new Derivations();
+        derivations[state] = d;
+        if (state < layer) {
+            // the state before the sentence
+            d.add(0f, 0, 0);
+            d.exhausted = true;
+            return d;
+        }
+
+        int bestEdge;
+        float bestScore;
+        if (state == derivations.length - 1) {
+            bestEdge = -1;
+            bestScore = Float.NEGATIVE_INFINITY;
+            // in the order of Viterbi.lastTwoTags, which breaks the ties the same way
+            for (long us = lastTags(length - 2); us != 0; us &= us - 1) {
+                int u = Long.numberOfTrailingZeros(us);
+                for (long vs = allowedTags[length - 1]; vs != 0; vs &= vs - 1) {
+                    int edge = u * tagSize + Long.numberOfTrailingZeros(vs);
+                    float score = edgeScore(state, edge) + pai[length * layer + edge];
+                    if (score > bestScore) {
+                        bestScore = score;
+                        bestEdge = edge;
+                    }
+                }
+            }
+        } else {
+            bestEdge = bp[state];
+            bestScore = pai[state];
+        }
+        d.add(bestScore, bestEdge, 0);
+
+        if (state == derivations.length - 1) {
+            for (long vs = allowedTags[length - 1]; vs != 0; vs &= vs - 1) {
+                int v = Long.numberOfTrailingZeros(vs);
+                for (long us = lastTags(length - 2); us != 0; us &= us - 1) {
+                    int edge = Long.numberOfTrailingZeros(us) * tagSize + v;
+                    if (edge != bestEdge)
+                        d.push(edgeScore(state, edge) + pai[length * layer + edge], edge, 0);
+                }
+            }
+        } else {
+            int k = state / layer;
+            for (long ws = edgeTags(k); ws != 0; ws &= ws - 1) {
+                int w = Long.numberOfTrailingZeros(ws);
+                if (w != bestEdge)
+                    d.push(edgeScore(state, w) + pai[tail(state, w)], w, 0);
+            }
+        }
+        return d;
+    }
+
+    /**
+     * @return the tags of the word before the two of a state of level k, as in Viterbi.forward
+     */
+    private long edgeTags(int k) {
+        return k == 1 ? 1L << SpecialWords.start.value : (k == 2 ? allTags : allowedTags[k - 3]);
+    }
+
+    /**
+     * @return the tags of the word before the last one (the start tag for a one-word sentence), as in Viterbi.lastTwoTags
+     */
+    private long lastTags(int position) {
+        return position < 0 ? 1L << SpecialWords.start.value : allowedTags[position];
+    }
+
+    /**
+     * @return the previous state of an edge: the edge of a state is the tag before its two tags, and the edge of the
+     * final state is the last state (u * tagSize + v)
+     */
+    private int tail(int state, int edge) {
+        int layer = tagSize * tagSize;
+        if (state == derivations.length - 1)
+            return length * layer + edge;
+        int k = state / layer;
+        int u = (state % layer) / tagSize;
+        return (k - 1) * layer + edge * tagSize + u;
+    }
+
+    private float edgeScore(int state, int edge) {
+        int layer = tagSize * tagSize;
+        int stop = SpecialWords.stop.value;
+        if (state == derivations.length - 1) {
+            int u = edge / tagSize;
+            int v = edge % tagSize;
+            return bigramScore[v * tagSize + stop] + trigramScore[(u * tagSize + v) * tagSize + stop];
+        }
+        int k = state / layer;
+        int u = (state % layer) / tagSize;
+        int v = state % tagSize;
+        return trigramScore[(edge * tagSize + u) * tagSize + v] + bigramScore[u * tagSize + v] + emissionScore[(k - 1) * tagSize + v];
+    }
+
+    /**
+     * Follows the derivation of the given rank of the final state back to the start
+     */
+    private int[] sequence(int rank) {
+        int layer = tagSize * tagSize;
+        int[] tags = new int[length];
+        int state = derivations.length - 1;
+        while (state >= layer) {
+            // the states that were never asked for more than their 1-best have no list; their best edge is the back pointer
+            Derivations d = derivations[state];
+            int edge = d != null ? d.edges[rank] : bp[state];
+            int next = tail(state, edge);
+            int k = next / layer;
+            if (k > 0)
+                tags[k - 1] = next % tagSize;
+            rank = d != null ? d.ranks[rank] : 0;
+            state = next;
+        }
+        return tags;
+    }
+
+    /**
+     * The derivations found for a state (score, edge, rank of the derivation of the previous state), best first, and a
+     * max-heap of the candidates for the next one
+     */
+    private static class Derivations {
+        float[] scores = new float[2];
+        int[] edges = new int[2];
+        int[] ranks = new int[2];
+        int size;
+        boolean exhausted;
+        boolean successorAdded;
+
+        float[] candidateScores = new float[4];
+        int[] candidateEdges = new int[4];
+        int[] candidateRanks = new int[4];
+        int candidates;
+
+        void add(float score, int edge, int rank) {
+            if (size == scores.length) {
+                scores = Arrays.copyOf(scores, size * 2);
+                edges = Arrays.copyOf(edges, size * 2);
+                ranks = Arrays.copyOf(ranks, size * 2);
+            }
+            scores[size] = score;
+            edges[size] = edge;
+            ranks[size] = rank;
+            size++;
+            successorAdded = false;
+        }
+
+        void push(float score, int edge, int rank) {
+            if (candidates == candidateScores.length) {
+                candidateScores = Arrays.copyOf(candidateScores, candidates * 2);
+                candidateEdges = Arrays.copyOf(candidateEdges, candidates * 2);
+                candidateRanks = Arrays.copyOf(candidateRanks, candidates * 2);
+            }
+            int i = candidates++;
+            while (i > 0) {
+                int parent = (i - 1) >> 1;
+                if (candidateScores[parent] >= score)
+                    break;
+                candidateScores[i] = candidateScores[parent];
+                candidateEdges[i] = candidateEdges[parent];
+                candidateRanks[i] = candidateRanks[parent];
+                i = parent;
+            }
+            candidateScores[i] = score;
+            candidateEdges[i] = edge;
+            candidateRanks[i] = rank;
+        }
+
+        /**
+         * Moves the best candidate to the derivations
+         *
+         * @return false if there was none
+         */
+        boolean pop() {
+            if (candidates == 0)
+                return false;
+            add(candidateScores[0], candidateEdges[0], candidateRanks[0]);
+            candidates--;
+            float score = candidateScores[candidates];
+            int edge = candidateEdges[candidates];
+            int rank = candidateRanks[candidates];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= candidates)
+                    break;
+                if (child + 1 < candidates && candidateScores[child + 1] > candidateScores[child])
+                    child++;
+                if (candidateScores[child] <= score)
+                    break;
+                candidateScores[i] = candidateScores[child];
+                candidateEdges[i] = candidateEdges[child];
+                candidateRanks[i] = candidateRanks[child];
+                i = child;
+            }
+            candidateScores[i] = score;
+            candidateEdges[i] = edge;
+            candidateRanks[i] = rank;
+            return true;
+        }
+    }
+}
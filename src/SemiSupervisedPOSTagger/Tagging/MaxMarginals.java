@@ -0,0 +1,210 @@
+package SemiSupervisedPOSTagger.Tagging;
+
+import SemiSupervisedPOSTagger.Learning.AveragedPerceptron;
+import SemiSupervisedPOSTagger.Structures.Pair;
+import SemiSupervisedPOSTagger.Structures.Sentence;
+import SemiSupervisedPOSTagger.Structures.SpecialWords;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Max-marginals of the third-order model: for every position and tag, the score of the best full sequence that has
+ * that tag at that position, with the sequence itself. A forward (Viterbi) pass gives the best prefix that ends in
+ * each state (pair of last two tags) and a backward pass the best suffix after it, so all of them come from two
+ * passes instead of one decode per position and tag.
+ * Unlike Viterbi, the words before the sentence are only the start tag, so the scores are those of the sequences
+ * in the model (as in beam search).
+ */
+public class MaxMarginals {
+    private final int length;
+    private final int tagSize;
+    /**
+     * Forward and backward scores with their back and forward pointers, indexed [(k * tagSize + u) * tagSize + v],
+     * where level k ends with the tag v of word k-1 (as in Viterbi)
+     */
+    private final float[] pai;
+    private final int[] bp;
+    private final float[] beta;
+    private final int[] next;
+    /**
+     * Max-marginals and the tag of the previous word that gives them, indexed [position * tagSize + t];
+     * -infinity for the tags that are not allowed
+     */
+    private final float[] marginals;
+    private final int[] previousTags;
+    private final int[] bestTags;
+    private final float bestScore;
+
+    public MaxMarginals(final Sentence sentence, final AveragedPerceptron perceptron) {
+        this(sentence, perceptron, new DecoderWorkspace());
+    }
+
+    public MaxMarginals(final Sentence sentence, final AveragedPerceptron perceptron, final DecoderWorkspace workspace) {
+        this(sentence, perceptron, workspace.allowedTags(sentence, perceptron, false), workspace);
+    }
+
+    /**
+     * @param allowedTags tags that are considered at each position (bitmasks, see DecoderWorkspace.allowedTags)
+     */
+    public MaxMarginals(final Sentence sentence, final AveragedPerceptron perceptron, final long[] allowedTags, final DecoderWorkspace workspace) {
+        length = sentence.words.length;
+        tagSize = perceptron.tagSize();
+        int len = length + 1;
+        int layer = tagSize * tagSize;
+        int start = SpecialWords.start.value;
+        int stop = SpecialWords.stop.value;
+        float[] emissionScore = Viterbi.emissionScores(sentence, perceptron, true, allowedTags, workspace);
+        float[] bigramScore = perceptron.bigramScores(true);
+        float[] trigramScore = perceptron.trigramScores(true);
+
+        pai = new float[len * layer];
+        bp = new int[len * layer];
+        forward(allowedTags, length, tagSize, emissionScore, bigramScore, trigramScore, pai, bp);
+
+        beta = new float[len * layer];
+        next = new int[len * layer];
+        marginals = new float[length * tagSize];
+        previousTags = new int[length * tagSize];
+        Arrays.fill(marginals, Float.NEGATIVE_INFINITY);
+        float best = Float.NEGATIVE_INFINITY;
+        int bestState = start;
+        for (int k = len - 1; k >= 1; k--) {
+            for (long vs = allowedTags[k - 1]; vs != 0; vs &= vs - 1) {
+                int v = Long.numberOfTrailingZeros(vs);
+                for (long us = tags(allowedTags, k - 2); us != 0; us &= us - 1) {
+                    int u = Long.numberOfTrailingZeros(us);
+                    float max_val = Float.NEGATIVE_INFINITY;
+                    int argmax = stop;
+                    if (k == len - 1) {
+                        max_val = bigramScore[v * tagSize + stop] + trigramScore[(u * tagSize + v) * tagSize + stop];
+                    } else {
+                        for (long xs = allowedTags[k]; xs != 0; xs &= xs - 1) {
+                            int x = Long.numberOfTrailingZeros(xs);
+                            float score = trigramScore[(u * tagSize + v) * tagSize + x] + bigramScore[v * tagSize + x] + emissionScore[k * tagSize + x]
+                                    + beta[(k + 1) * layer + v * tagSize + x];
+                            if (score > max_val) {
+                                max_val = score;
+                                argmax = x;
+                            }
+                        }
+                    }
+                    beta[k * layer + u * tagSize + v] = max_val;
+                    next[k * layer + u * tagSize + v] = argmax;
+
+                    float marginal = pai[k * layer + u * tagSize + v] + max_val;
+                    if (marginal > marginals[(k - 1) * tagSize + v]) {
+                        marginals[(k - 1) * tagSize + v] = marginal;
+                        previousTags[(k - 1) * tagSize + v] = u;
+                    }
+                    if (k == len - 1 && marginal > best) {
+                        best = marginal;
+                        bestState = u * tagSize + v;
+                    }
+                }
+            }
+        }
+
+        bestScore = best;
+        bestTags = length > 0 ? sequence(length - 1, bestState % tagSize, bestState / tagSize) : new int[0];
+    }
+
+    /**
+     * The Viterbi pass with only the start tag before the sentence: fills pai and bp (indexed as in Viterbi) for the
+     * states of every level; level 0 of pai must be 0
+     */
+    static void forward(final long[] allowedTags, final int length, final int tagSize, final float[] emissionScore, final float[] bigramScore,
+                        final float[] trigramScore, final float[] pai, final int[] bp) {
+        int layer = tagSize * tagSize;
+        for (int k = 1; k <= length; k++) {
+            for (long vs = allowedTags[k - 1]; vs != 0; vs &= vs - 1) {
+                int v = Long.numberOfTrailingZeros(vs);
+                for (long us = tags(allowedTags, k - 2); us != 0; us &= us - 1) {
+                    int u = Long.numberOfTrailingZeros(us);
+                    float max_val = Float.NEGATIVE_INFINITY;
+                    int argmax = SpecialWords.start.value;
+                    for (long ws = tags(allowedTags, k - 3); ws != 0; ws &= ws - 1) {
+                        int w = Long.numberOfTrailingZeros(ws);
+                        float score = trigramScore[(w * tagSize + u) * tagSize + v] + bigramScore[u * tagSize + v] + emissionScore[(k - 1) * tagSize + v]
+                                + pai[(k - 1) * layer + w * tagSize + u];
+                        if (score > max_val) {
+                            max_val = score;
+                            argmax = w;
+                        }
+                    }
+                    pai[k * layer + u * tagSize + v] = max_val;
+                    bp[k * layer + u * tagSize + v] = argmax;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the tags allowed at a position; only the start tag before the sentence
+     */
+    static long tags(long[] allowedTags, int position) {
+        return position < 0 ? 1L << SpecialWords.start.value : allowedTags[position];
+    }
+
+    /**
+     * @return the best sequence and its score
+     */
+    public Pair<int[], Float> best() {
+        return new Pair<int[], Float>(bestTags.clone(), bestScore);
+    }
+
+    /**
+     * @return the score of the best sequence with the tag at the position (-infinity if the tag is not allowed there)
+     */
+    public float score(int position, int tag) {
+        return marginals[position * tagSize + tag];
+    }
+
+    /**
+     * @return the best sequence with the tag at the position
+     */
+    public int[] sequence(int position, int tag) {
+        return sequence(position, tag, previousTags[position * tagSize + tag]);
+    }
+
+    /**
+     * @return the best sequence with the tag at the position after the given tag of the previous word
+     */
+    private int[] sequence(int position, int tag, int previousTag) {
+        int layer = tagSize * tagSize;
+        int[] tags = new int[length];
+        tags[position] = tag;
+        if (position > 0)
+            tags[position - 1] = previousTag;
+        for (int k = position + 1; k >= 3; k--)
+            tags[k - 3] = bp[k * layer + tags[k - 2] * tagSize + tags[k - 1]];
+        int u = previousTag;
+        for (int k = position + 1; k < length; k++) {
+            tags[k] = next[k * layer + u * tagSize + tags[k - 1]];
+            u = tags[k - 1];
+        }
+        return tags;
+    }
+
+    /**
+     * @return the best sequence, then for every position the best sequence that has another tag there
+     * (positions with no other allowed tag are left out)
+     */
+    public ArrayList<Pair<int[], Float>> oneReplacements() {
+        ArrayList<Pair<int[], Float>> replacements = new ArrayList<Pair<int[], Float>>();
+        replacements.add(best());
+        for (int i = 0; i < length; i++) {
+            float best = Float.NEGATIVE_INFINITY;
+            int replacement = -1;
+            for (int t = 0; t < tagSize; t++) {
+                if (t != bestTags[i] && marginals[i * tagSize + t] > best) {
+                    best = marginals[i * tagSize + t];
+                    replacement = t;
+                }
+            }
+            if (replacement != -1)
+                replacements.add(new Pair<int[], Float>(sequence(i, replacement), best));
+        }
+        return replacements;
+    }
+}
@@ -0,0 +1,311 @@
+package SemiSupervisedPOSTagger.Tagging;
+
+import SemiSupervisedPOSTagger.Structures.LatencyHistogram;
+import SemiSupervisedPOSTagger.Structures.Pair;
+import SemiSupervisedPOSTagger.Structures.Sentence;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decodes sentences that arrive one at a time from many threads in micro-batches on a fixed pool of workers, each
+ * with its own TaggingSession.
+ * A batch is only formed when a worker is free: it takes what is waiting (up to maxBatch sentences) and, if that is
+ * less, waits for more until the batch window after its first sentence ends. The window adapts to the latency
+ * target: it is halved while the recent latency (from submission to the decoded result) is above the target or when
+ * no sentence arrives during it, and grows slowly up to half the target otherwise, so that a busy server decodes
+ * large batches and a quiet one answers at once.
+ * Every sentence has a deadline (by default its submission time plus the latency target). With a DeadlinePolicy the
+ * workers decode each sentence with the most accurate decoder that is expected to finish, before that deadline, the
+ * rest of its batch and its share of the queued sentences; without one they always use the decoder of the model.
+ * With a ResultCache, exact duplicates of sentences decoded before are answered from it; only the results of the
+ * decoder of the model are cached.
+ */
+public class MicroBatcher {
+    private final int numThreads;
+    private final int maxBatch;
+    private final long targetNanos;
+
+    private final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<Request>();
+    private final Semaphore freeWorkers;
+    private final ExecutorService workers;
+    private final ThreadLocal<TaggingSession> sessions;
+    private final DeadlinePolicy policy;
+    private final ResultCache cache;
+    private final TaggerModel model;
+    private final boolean constrainTags;
+    private final float pruneThreshold;
+    private final Thread dispatcher;
+    private volatile boolean running = true;
+
+    private volatile long windowNanos;
+    private double recentLatency;
+
+    private final long startTime = System.nanoTime();
+    private final AtomicLong sentences = new AtomicLong();
+    private final AtomicLong tokens = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong totalLatency = new AtomicLong();
+    private final AtomicLong missedDeadlines = new AtomicLong();
+    /**
+     * The number of words of the queued sentences
+     */
+    private final AtomicLong queuedTokens = new AtomicLong();
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    /**
+     * A sentence waiting for its tags
+     */
+    public static class Request {
+        final Sentence sentence;
+        final boolean usePartialInfo;
+        final long submitted = System.nanoTime();
+        final long deadline;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private Pair<int[], Float> result;
+        private RuntimeException error;
+        private int level;
+
+        Request(Sentence sentence, boolean usePartialInfo, long deadline) {
+            this.sentence = sentence;
+            this.usePartialInfo = usePartialInfo;
+            this.deadline = deadline;
+        }
+
+        /**
+         * @return the DeadlinePolicy level the sentence was decoded with (0: the decoder of the model), once it is decoded
+         */
+        public int level() {
+            return level;
+        }
+
+        /**
+         * @return the tags and the score of the sentence, once they are decoded
+         */
+        public Pair<int[], Float> get() throws InterruptedException {
+            done.await();
+            if (error != null)
+                throw error;
+            return result;
+        }
+    }
+
+    /**
+     * @param latencyTarget target latency of a sentence in milliseconds, and its default deadline
+     * @param degrade       degrade the decoder to meet the deadlines under load (see DeadlinePolicy)
+     * @param cache         cache of decoded sentences, or null
+     */
+    public MicroBatcher(final TaggerModel model, int numThreads, int maxBatch, float latencyTarget, final boolean constrainTags,
+                        final float pruneThreshold, boolean degrade, ResultCache cache) {
+        this.numThreads = Math.max(1, numThreads);
+        this.maxBatch = Math.max(1, maxBatch);
+        this.targetNanos = (long) (latencyTarget * 1000000L);
+        this.windowNanos = targetNanos / 4;
+        this.recentLatency = 0;
+        this.policy = degrade ? new DeadlinePolicy(model) : null;
+        this.cache = cache;
+        this.model = model;
+        this.constrainTags = constrainTags;
+        this.pruneThreshold = pruneThreshold;
+        freeWorkers = new Semaphore(this.numThreads);
+        workers = Executors.newFixedThreadPool(this.numThreads);
+        sessions = new ThreadLocal<TaggingSession>() {
+            @Override
+            protected TaggingSession initialValue() {
+                TaggingSession session = model.newSession();
+                session.constrainTags = constrainTags;
+                session.pruneThreshold = pruneThreshold;
+                return session;
+            }
+        };
+        dispatcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dispatch();
+            }
+        }, "batch-dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * Queues a sentence; the caller waits for it with Request.get()
+     */
+    public Request submit(Sentence sentence, boolean usePartialInfo) {
+        return submit(sentence, usePartialInfo, System.nanoTime() + targetNanos);
+    }
+
+    /**
+     * @param deadline the System.nanoTime() by which the sentence should be decoded
+     */
+    public Request submit(Sentence sentence, boolean usePartialInfo, long deadline) {
+        Request request = new Request(sentence, usePartialInfo, deadline);
+        queuedTokens.addAndGet(sentence.words.length);
+        queue.add(request);
+        return request;
+    }
+
+    private void dispatch() {
+        try {
+            while (running) {
+                freeWorkers.acquire();
+                final ArrayList<Request> batch = new ArrayList<Request>();
+                batch.add(queue.take());
+                queue.drainTo(batch, maxBatch - batch.size());
+                long deadline = batch.get(0).submitted + windowNanos;
+                int waiting = batch.size();
+                while (batch.size() < maxBatch) {
+                    long wait = deadline - System.nanoTime();
+                    if (wait <= 0)
+                        break;
+                    Request request = queue.poll(wait, TimeUnit.NANOSECONDS);
+                    if (request == null) {
+                        // nothing arrived in the whole window: waiting only delays the sentences
+                        if (batch.size() == waiting)
+                            shrinkWindow();
+                        break;
+                    }
+                    batch.add(request);
+                    queue.drainTo(batch, maxBatch - batch.size());
+                }
+                int batchTokens = 0;
+                for (Request request : batch)
+                    batchTokens += request.sentence.words.length;
+                queuedTokens.addAndGet(-batchTokens);
+                workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            decode(batch);
+                        } finally {
+                            freeWorkers.release();
+                        }
+                    }
+                });
+            }
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    private void decode(ArrayList<Request> batch) {
+        TaggingSession session = sessions.get();
+        long maxLatency = 0;
+        long remaining = 0;
+        for (Request request : batch)
+            remaining += request.sentence.words.length;
+        for (Request request : batch) {
+            int length = request.sentence.words.length;
+            long start = System.nanoTime();
+            boolean decoded = false;
+            try {
+                if (cache != null)
+                    request.result = cache.get(request.sentence, request.usePartialInfo, constrainTags, pruneThreshold);
+                if (request.result == null) {
+                    decoded = true;
+                    if (policy != null) {
+                        request.level = policy.level(remaining + queuedTokens.get() / numThreads, request.deadline - start);
+                        request.result = policy.decode(session, request.sentence, request.usePartialInfo, request.level);
+                    } else {
+                        request.result = session.tagWithScore(request.sentence, request.usePartialInfo);
+                    }
+                    if (cache != null && request.level == 0)
+                        cache.put(request.sentence, request.usePartialInfo, constrainTags, pruneThreshold, request.result);
+                }
+            } catch (RuntimeException e) {
+                request.error = e;
+            }
+            long end = System.nanoTime();
+            long latency = end - request.submitted;
+            request.done.countDown();
+            remaining -= length;
+            if (end > request.deadline)
+                missedDeadlines.incrementAndGet();
+            if (policy != null && decoded && request.error == null)
+                policy.record(request.level, length, end - start);
+
+            maxLatency = Math.max(maxLatency, latency);
+            latencies.record(latency);
+            totalLatency.addAndGet(latency);
+            tokens.addAndGet(length);
+        }
+        sentences.addAndGet(batch.size());
+        batches.incrementAndGet();
+        adapt(maxLatency);
+    }
+
+    private synchronized void adapt(long latency) {
+        recentLatency = recentLatency == 0 ? latency : 0.8 * recentLatency + 0.2 * latency;
+        if (recentLatency > targetNanos)
+            windowNanos = windowNanos / 2;
+        else
+            windowNanos = Math.min(targetNanos / 2, windowNanos + Math.max(1000L, targetNanos / 32));
+    }
+
+    private synchronized void shrinkWindow() {
+        windowNanos = windowNanos / 2;
+    }
+
+    /**
+     * @return the counters since the start, one "name: value" per line
+     */
+    public String stats() {
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        long s = sentences.get();
+        long b = batches.get();
+        StringBuilder output = new StringBuilder();
+        output.append("uptime seconds: " + String.format("%.1f", seconds) + "\n");
+        output.append("sentences: " + s + "\n");
+        output.append("tokens: " + tokens.get() + "\n");
+        output.append("batches: " + b + "\n");
+        output.append("mean batch size: " + String.format("%.2f", b == 0 ? 0 : s / (double) b) + "\n");
+        output.append("sentences per second: " + String.format("%.1f", s / seconds) + "\n");
+        output.append("tokens per second: " + String.format("%.1f", tokens.get() / seconds) + "\n");
+        output.append("mean latency ms: " + String.format("%.3f", s == 0 ? 0 : totalLatency.get() / (s * 1e6)) + "\n");
+        output.append("p50 latency ms: " + String.format("%.3f", latencies.percentile(0.5)) + "\n");
+        output.append("p99 latency ms: " + String.format("%.3f", latencies.percentile(0.99)) + "\n");
+        output.append("missed deadlines: " + missedDeadlines.get() + "\n");
+        output.append("batch window ms: " + String.format("%.3f", windowNanos / 1e6) + "\n");
+        output.append("queued sentences: " + queue.size() + "\n");
+        output.append("workers: " + numThreads + "\n");
+        if (policy != null)
+            output.append(policy.stats());
+        if (cache != null)
+            output.append(cache.stats());
+        if (model.perceptron().emissionCache != null)
+            output.append(model.perceptron().emissionCache.stats());
+        return output.toString();
+    }
+
+    /**
+     * @return the latencies of the decoded sentences, from submission to result
+     */
+    public LatencyHistogram latencies() {
+        return latencies;
+    }
+
+    /**
+     * @return the number of sentences decoded after their deadline
+     */
+    public long missedDeadlines() {
+        return missedDeadlines.get();
+    }
+
+    /**
+     * @return the degradation policy, or null if the decoder of the model is always used
+     */
+    public DeadlinePolicy policy() {
+        return policy;
+    }
+
+    public void shutdown() {
+        running = false;
+        dispatcher.interrupt();
+        workers.shutdown();
+    }
+}
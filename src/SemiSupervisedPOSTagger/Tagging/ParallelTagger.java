@@ -0,0 +1,111 @@
+package SemiSupervisedPOSTagger.Tagging;
+
+import SemiSupervisedPOSTagger.IO.SentenceReader;
+import SemiSupervisedPOSTagger.Structures.Pair;
+import SemiSupervisedPOSTagger.Structures.Sentence;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Tags a stream of sentences on a pool of threads that share one Tagger.
+ * At most a fixed number of sentences are in flight and the results are handed over in input order on the calling
+ * thread as soon as they are ready, so reading, tagging and consuming the results overlap while the memory use stays
+ * bounded.
+ */
+public class ParallelTagger {
+    public interface ResultHandler {
+        void handle(Sentence sentence, Pair<int[], Float> result) throws Exception;
+    }
+
+    /**
+     * Receives all the sequences of a sentence (more than one with Tagger.nbest above 1), best first
+     */
+    public interface SequencesHandler {
+        void handle(Sentence sentence, ArrayList<Pair<int[], Float>> sequences) throws Exception;
+    }
+
+    private final Tagger tagger;
+    private final int numThreads;
+    private final int capacity;
+
+    public ParallelTagger(Tagger tagger, int numThreads) {
+        this.tagger = tagger;
+        this.numThreads = Math.max(1, numThreads);
+        this.capacity = this.numThreads * 64;
+    }
+
+    /**
+     * @return the number of tagged sentences
+     */
+    public int tag(SentenceReader reader, final boolean usePartialInfo, final ResultHandler handler) throws Exception {
+        return tagSequences(reader, usePartialInfo, new SequencesHandler() {
+            @Override
+            public void handle(Sentence sentence, ArrayList<Pair<int[], Float>> sequences) throws Exception {
+                handler.handle(sentence, sequences.get(0));
+            }
+        });
+    }
+
+    /**
+     * @return the number of tagged sentences
+     */
+    public int tagSequences(final SentenceReader reader, final boolean usePartialInfo, SequencesHandler handler) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        // sentences in input order with their pending results; an entry with no sentence marks the end of the input
+        final ArrayBlockingQueue<Pair<Sentence, Future<ArrayList<Pair<int[], Float>>>>> results =
+                new ArrayBlockingQueue<Pair<Sentence, Future<ArrayList<Pair<int[], Float>>>>>(capacity);
+        final int[] count = new int[1];
+        final Exception[] readError = new Exception[1];
+
+        // the input is read on its own thread, so that every result is handed over as soon as it is ready even when
+        // the next sentence is slow to come (e.g. from a pipe)
+        Thread readerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Sentence sentence;
+                    while ((sentence = reader.next()) != null) {
+                        final Sentence toTag = sentence;
+                        results.put(new Pair<Sentence, Future<ArrayList<Pair<int[], Float>>>>(sentence,
+                                executor.submit(new Callable<ArrayList<Pair<int[], Float>>>() {
+                                    @Override
+                                    public ArrayList<Pair<int[], Float>> call() {
+                                        return tagger.tagSequences(toTag, usePartialInfo);
+                                    }
+                                })));
+                        count[0]++;
+                    }
+                } catch (InterruptedException e) {
+                    // the results are not consumed anymore
+                    return;
+                } catch (Exception e) {
+                    readError[0] = e;
+                }
+                try {
+                    results.put(new Pair<Sentence, Future<ArrayList<Pair<int[], Float>>>>(null, null));
+                } catch (InterruptedException ignored) {
+                }
+            }
+        }, "sentence-reader");
+        readerThread.setDaemon(true);
+        readerThread.start();
+
+        try {
+            Pair<Sentence, Future<ArrayList<Pair<int[], Float>>>> result;
+            while ((result = results.take()).first != null)
+                handler.handle(result.first, result.second.get());
+            readerThread.join();
+            if (readError[0] != null)
+                throw readError[0];
+        } finally {
+            readerThread.interrupt();
+            executor.shutdownNow();
+        }
+        return count[0];
+    }
+}
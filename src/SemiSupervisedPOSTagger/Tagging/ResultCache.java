@@ -0,0 +1,164 @@
+package SemiSupervisedPOSTagger.Tagging;
+
+import SemiSupervisedPOSTagger.Structures.Pair;
+import SemiSupervisedPOSTagger.Structures.Sentence;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded least-recently-used cache of decoded sentences, for inputs with many exact duplicates (retweets,
+ * boilerplate). A sentence is found by a hash of its words and language ids, and a hit is verified on the whole
+ * sentence: the word strings (all unknown words share one id, but their affix, cluster and shape features differ),
+ * the language ids, the given tags in partial tagging and the decoder settings.
+ * The entries are spread over independently locked stripes, each an LRU list of its share of the capacity, so threads
+ * only contend when they touch the same stripe.
+ * The cached results are only valid for the model they were decoded with.
+ */
+public class ResultCache {
+    private static final int STRIPES = 16;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final int capacity;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong entries = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    private static final class Key {
+        final String[] words;
+        final int[] langIds;
+        /**
+         * The given tags of partial tagging, or null
+         */
+        final int[] tags;
+        final boolean constrainTags;
+        final float pruneThreshold;
+        final int hash;
+
+        Key(Sentence sentence, boolean usePartialInfo, boolean constrainTags, float pruneThreshold) {
+            this.words = sentence.string_words;
+            this.langIds = sentence.lang_ids;
+            this.tags = usePartialInfo ? sentence.pos_tags : null;
+            this.constrainTags = constrainTags;
+            this.pruneThreshold = pruneThreshold;
+            int h = Arrays.hashCode(words) * 31 + Arrays.hashCode(langIds);
+            h = h * 31 + (tags == null ? 0 : Arrays.hashCode(tags));
+            h = h * 31 + (constrainTags ? 1 : 0);
+            this.hash = h * 31 + Float.floatToIntBits(pruneThreshold);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key key = (Key) o;
+            return hash == key.hash && constrainTags == key.constrainTags && Float.floatToIntBits(pruneThreshold) == Float.floatToIntBits(key.pruneThreshold)
+                    && Arrays.equals(langIds, key.langIds) && Arrays.equals(tags, key.tags) && Arrays.equals(words, key.words);
+        }
+
+        /**
+         * @return the approximate heap size of the key with its cached result and map entry
+         */
+        long bytes() {
+            long size = 48 + 32 + 16 + 4 * words.length + 16 + 4 * langIds.length + (tags == null ? 0 : 16 + 4 * tags.length);
+            for (String word : words)
+                size += 40 + word.length();
+            // the result: a pair, a float and the tags
+            return size + 16 + 16 + 16 + 4 * words.length;
+        }
+    }
+
+    // never serialized
+    @SuppressWarnings("serial")
+    private final class Stripe extends LinkedHashMap<Key, Pair<int[], Float>> {
+        private final int capacity;
+
+        Stripe(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Pair<int[], Float>> eldest) {
+            if (size() <= capacity)
+                return false;
+            entries.decrementAndGet();
+            bytes.addAndGet(-eldest.getKey().bytes());
+            return true;
+        }
+    }
+
+    /**
+     * @param capacity maximum number of cached sentences (rounded up to a multiple of the number of stripes)
+     */
+    public ResultCache(int capacity) {
+        int stripeCapacity = Math.max(1, (capacity + STRIPES - 1) / STRIPES);
+        this.capacity = stripeCapacity * STRIPES;
+        for (int s = 0; s < STRIPES; s++)
+            stripes[s] = new Stripe(stripeCapacity);
+    }
+
+    /**
+     * @return a copy of the cached tags and score of the sentence decoded with these settings, or null
+     */
+    public Pair<int[], Float> get(Sentence sentence, boolean usePartialInfo, boolean constrainTags, float pruneThreshold) {
+        Key key = new Key(sentence, usePartialInfo, constrainTags, pruneThreshold);
+        Pair<int[], Float> result;
+        Stripe stripe = stripe(key);
+        synchronized (stripe) {
+            result = stripe.get(key);
+        }
+        if (result == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return new Pair<int[], Float>(result.first.clone(), result.second);
+    }
+
+    public void put(Sentence sentence, boolean usePartialInfo, boolean constrainTags, float pruneThreshold, Pair<int[], Float> result) {
+        Key key = new Key(sentence, usePartialInfo, constrainTags, pruneThreshold);
+        Pair<int[], Float> value = new Pair<int[], Float>(result.first.clone(), result.second);
+        Stripe stripe = stripe(key);
+        synchronized (stripe) {
+            if (stripe.put(key, value) == null) {
+                entries.incrementAndGet();
+                bytes.addAndGet(key.bytes());
+            }
+        }
+    }
+
+    private Stripe stripe(Key key) {
+        int h = key.hash;
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the counters, one "name: value" per line
+     */
+    public String stats() {
+        long h = hits.get();
+        long all = h + misses.get();
+        StringBuilder output = new StringBuilder();
+        output.append("cache hits: " + h + " of " + all + String.format(" (%.2f%%)", all == 0 ? 0 : 100.0 * h / all) + "\n");
+        output.append("cached sentences: " + entries.get() + " (capacity " + capacity + ")\n");
+        output.append("cache memory MB (approximate): " + String.format("%.2f", bytes.get() / (1024.0 * 1024.0)) + "\n");
+        return output.toString();
+    }
+}
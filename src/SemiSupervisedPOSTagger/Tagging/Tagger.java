@@ -1,11 +1,13 @@
 package SemiSupervisedPOSTagger.Tagging;
 
 import SemiSupervisedPOSTagger.IO.FileManager;
+import SemiSupervisedPOSTagger.IO.SentenceReader;
 import SemiSupervisedPOSTagger.Learning.AveragedPerceptron;
 import SemiSupervisedPOSTagger.Structures.IndexMaps;
 import SemiSupervisedPOSTagger.Structures.InfoStruct;
 import SemiSupervisedPOSTagger.Structures.Pair;
 import SemiSupervisedPOSTagger.Structures.Sentence;
+import SemiSupervisedPOSTagger.Structures.SpecialWords;
 
 import java.io.*;
 import java.util.ArrayList;
@@ -20,12 +22,53 @@ import java.util.zip.GZIPInputStream;
  */
 
 public class Tagger {
-    float bigramScore[][];
-    float trigramScore[][][];
     public AveragedPerceptron perceptron;
     IndexMaps maps;
     public boolean useBeamSearch;
     public int beamSize;
+    public boolean recombine;
+    /**
+     * Beam pruning: hypotheses more than beamMargin below the best one, and those beyond the histogramSize best ones
+     * that end in the same two tags, are dropped (0 turns either off)
+     */
+    public float beamMargin;
+    public int histogramSize;
+    /**
+     * Only consider the tag dictionary entries of the words that are in the dictionary
+     */
+    public boolean constrainTags;
+    /**
+     * Coarse-to-fine decoding: tags whose first-order max-marginal is more than this below the best one of their
+     * position are pruned (infinity turns it off)
+     */
+    public float pruneThreshold = Float.POSITIVE_INFINITY;
+    /**
+     * Number of tag sequences written per sentence by tag(inputPath, outputPath, scoreFile); above 1, they come from
+     * exact k-best decoding (see KBestViterbi)
+     */
+    public int nbest = 1;
+    /**
+     * The tag written in the columns of the sequences that a sentence does not have (fewer than nbest)
+     */
+    public static final String MISSING_SEQUENCE = "_";
+    /**
+     * Number of decoding threads of the file tagging methods
+     */
+    public int numThreads = 1;
+    /**
+     * Results of already decoded sentences that tagWithScore returns for exact duplicates, or null for none; only
+     * valid while the model does not change
+     */
+    public ResultCache cache;
+    /**
+     * Decoder scratch space of each thread that tags with this tagger
+     */
+    private final ThreadLocal<DecoderWorkspace> workspaces = new ThreadLocal<DecoderWorkspace>() {
+        @Override
+        protected DecoderWorkspace initialValue() {
+            return new DecoderWorkspace();
+        }
+    };
 
     public Tagger(String modelPath) throws Exception {
         System.out.print("loading the model...");
@@ -36,97 +79,194 @@ public class Tagger {
         InfoStruct info = (InfoStruct) modelReader.readObject();
         this.perceptron = new AveragedPerceptron(info);
         this.maps = (IndexMaps) modelReader.readObject();
-        int tagSize = perceptron.tagSize();
-        int featSize = perceptron.featureSize();
-
-        bigramScore = new float[tagSize][tagSize];
-        trigramScore = new float[tagSize][tagSize][tagSize];
-
-        for (int v = 0; v < perceptron.tagSize(); v++) {
-            for (int u = 0; u < perceptron.tagSize(); u++) {
-                // TODO(vsoto): -3? Ask Mohammad
-                bigramScore[u][v] = perceptron.score(v, featSize - 3, u, true);
-                for (int w = 0; w < tagSize; w++) {
-                    // TODO(vsoto): << 10?
-                    int bigram = (w << 10) + u;
-                    // TODO(vsoto): -2? Ask Mohammad.
-                    trigramScore[w][u][v] = perceptron.score(v, featSize - 2, bigram, true);
-                }
-            }
-        }
+        modelReader.close();
         this.useBeamSearch = info.useBeamSearch;
         this.beamSize = info.beamSize;
+        this.recombine = info.recombine;
+        this.beamMargin = info.beamMargin;
+        this.histogramSize = info.histogramSize;
 
         System.out.print("done!\n");
         if (!info.useBeamSearch)
             System.out.print("using Viterbi algorithm\n");
-        else
-            System.out.print("using beam search algorithm with beam size: " + info.beamSize + "\n");
+        else {
+            System.out.print("using beam search algorithm with beam size: " + info.beamSize + (info.recombine ? " and hypothesis recombination" : "") + "\n");
+            if (info.beamMargin > 0 || info.histogramSize > 0)
+                System.out.print("beam pruning with margin: " + info.beamMargin + " and histogram size: " + info.histogramSize + "\n");
+        }
+
+    }
+
+    /**
+     * Wraps a perceptron that is already in memory, e.g. the averaged view of a model in training
+     */
+    public Tagger(AveragedPerceptron perceptron, IndexMaps maps, boolean useBeamSearch, int beamSize) {
+        this(perceptron, maps, useBeamSearch, beamSize, false);
+    }
+
+    public Tagger(AveragedPerceptron perceptron, IndexMaps maps, boolean useBeamSearch, int beamSize, boolean recombine) {
+        this(perceptron, maps, useBeamSearch, beamSize, recombine, 0f, 0);
+    }
 
+    public Tagger(AveragedPerceptron perceptron, IndexMaps maps, boolean useBeamSearch, int beamSize, boolean recombine, float beamMargin, int histogramSize) {
+        this.perceptron = perceptron;
+        this.maps = maps;
+        this.useBeamSearch = useBeamSearch;
+        this.beamSize = beamSize;
+        this.recombine = recombine;
+        this.beamMargin = beamMargin;
+        this.histogramSize = histogramSize;
     }
 
     public static int[] tag(final Sentence sentence, final AveragedPerceptron classifier, final boolean isDecode, final boolean useBeamSearch, final int beamSize, final boolean usePartialInfo) {
-        return useBeamSearch ?
-                BeamTagger.thirdOrder(sentence, classifier, isDecode, beamSize, usePartialInfo, null) : Viterbi.thirdOrder(sentence, classifier, isDecode, null);
+        return tag(sentence, classifier, isDecode, useBeamSearch, beamSize, false, 0f, 0, usePartialInfo, new DecoderWorkspace());
+    }
+
+    public static int[] tag(final Sentence sentence, final AveragedPerceptron classifier, final boolean isDecode, final boolean useBeamSearch, final int beamSize,
+                            final boolean recombine, final float beamMargin, final int histogramSize, final boolean usePartialInfo, final DecoderWorkspace workspace) {
+        if (!useBeamSearch)
+            return Viterbi.thirdOrder(sentence, classifier, isDecode, workspace);
+        long[] allowedTags = workspace.allowedTags(sentence, classifier, false);
+        return BeamTagger.thirdOrderWithScore(sentence, classifier, isDecode, beamSize, usePartialInfo, recombine, beamMargin, histogramSize, allowedTags,
+                Float.POSITIVE_INFINITY).first;
     }
 
     public int[] tag(final Sentence sentence, final boolean usePartialInfo) {
-        return useBeamSearch ?
-                BeamTagger.thirdOrder(sentence, perceptron, true, beamSize, usePartialInfo, this) : Viterbi.thirdOrder(sentence, perceptron, true, this);
+        return tag(sentence, usePartialInfo, true);
     }
 
     public int[] tag(final Sentence sentence, final boolean usePartialInfo, final boolean isDecode) {
-        return useBeamSearch ?
-                BeamTagger.thirdOrder(sentence, perceptron, isDecode, beamSize, usePartialInfo, this) : Viterbi.thirdOrder(sentence, perceptron, isDecode, this);
+        return decode(sentence, usePartialInfo, isDecode, workspaces.get()).first;
     }
 
     public Pair<int[], Float> tagWithScore(final Sentence sentence, final boolean usePartialInfo) {
+        return tagWithScore(sentence, usePartialInfo, workspaces.get());
+    }
+
+    public Pair<int[], Float> tagWithScore(final Sentence sentence, final boolean usePartialInfo, final DecoderWorkspace workspace) {
+        if (cache == null)
+            return decode(sentence, usePartialInfo, true, workspace);
+        Pair<int[], Float> result = cache.get(sentence, usePartialInfo, constrainTags, pruneThreshold);
+        if (result == null) {
+            result = decode(sentence, usePartialInfo, true, workspace);
+            cache.put(sentence, usePartialInfo, constrainTags, pruneThreshold, result);
+        }
+        return result;
+    }
+
+    private Pair<int[], Float> decode(final Sentence sentence, final boolean usePartialInfo, final boolean isDecode, final DecoderWorkspace workspace) {
+        long[] allowedTags = workspace.allowedTags(sentence, perceptron, constrainTags);
+        return decode(perceptron, useBeamSearch, beamSize, recombine, beamMargin, histogramSize, sentence, usePartialInfo, isDecode, allowedTags,
+                pruneThreshold, workspace);
+    }
+
+    /**
+     * The decoder of a model with the given settings, shared with TaggerModel
+     */
+    static Pair<int[], Float> decode(final AveragedPerceptron perceptron, final boolean useBeamSearch, final int beamSize, final boolean recombine,
+                                     final float beamMargin, final int histogramSize, final Sentence sentence, final boolean usePartialInfo,
+                                     final boolean isDecode, final long[] allowedTags, final float pruneThreshold, final DecoderWorkspace workspace) {
         return useBeamSearch ?
-                BeamTagger.thirdOrderWithScore(sentence, perceptron, true, beamSize, usePartialInfo, this) : Viterbi.thirdOrderWithScore(sentence, perceptron, true, this);
+                BeamTagger.thirdOrderWithScore(sentence, perceptron, isDecode, beamSize, usePartialInfo, recombine, beamMargin, histogramSize, allowedTags,
+                        pruneThreshold) :
+                Viterbi.thirdOrderWithScore(sentence, perceptron, isDecode, allowedTags, pruneThreshold, workspace);
     }
 
-    public void tag(final String inputPath, final String outputPath, final String scoreFile) throws Exception {
-        ArrayList<Sentence> sentences = FileManager.readSentences(inputPath, maps);
+    /**
+     * @return the k best tag sequences with their scores, best first (see KBestViterbi)
+     */
+    public ArrayList<Pair<int[], Float>> tagKBest(final Sentence sentence, final int k) {
+        DecoderWorkspace workspace = workspaces.get();
+        return KBestViterbi.kBest(sentence, perceptron, k, workspace.allowedTags(sentence, perceptron, constrainTags), workspace);
+    }
 
-        BufferedWriter writer = new BufferedWriter(new FileWriter(outputPath));
+    /**
+     * @return the best sequence, or the nbest best ones (see tagKBest) when not using partial information
+     */
+    public ArrayList<Pair<int[], Float>> tagSequences(final Sentence sentence, final boolean usePartialInfo) {
+        if (nbest > 1 && !usePartialInfo)
+            return tagKBest(sentence, nbest);
+        ArrayList<Pair<int[], Float>> sequences = new ArrayList<Pair<int[], Float>>(1);
+        sequences.add(tagWithScore(sentence, usePartialInfo));
+        return sequences;
+    }
+
+    /**
+     * Writes the tags of every sentence, decoded on numThreads threads and written in input order; with nbest above 1,
+     * a tag column per sequence and a tab-separated line of normalized scores per sentence (the accuracy is that of
+     * the first sequence, on the tokens with a gold tag); a sentence with fewer than nbest sequences gets "_" tags and -Infinity scores for the
+     * missing ones, so all the lines have nbest columns.
+     * The input and output can be the standard streams (FileManager.STANDARD_STREAM); the standard output is flushed
+     * after every sentence.
+     */
+    public void tag(final String inputPath, final String outputPath, final String scoreFile) throws Exception {
+        final BufferedWriter writer = FileManager.openWriter(outputPath);
+        final boolean flushEachSentence = outputPath.equals(FileManager.STANDARD_STREAM);
 
         boolean putScore = false;
-        BufferedWriter scoreWriter = null;
+        BufferedWriter scoreFileWriter = null;
         if (scoreFile != null && !scoreFile.equals("")) {
             putScore = true;
-            scoreWriter = new BufferedWriter(new FileWriter(scoreFile));
+            scoreFileWriter = new BufferedWriter(new FileWriter(scoreFile));
         }
+        final BufferedWriter scoreWriter = scoreFileWriter;
 
-        int ln = 0;
-        int corr = 0;
-        int total = 0;
-        for (Sentence sentence : sentences) {
-            ln++;
-            if (ln % 1000 == 0)
-                System.out.print(ln + "...");
-
-            Pair<int[], Float> ts = tagWithScore(sentence, false);
-            int[] t = ts.first;
-            String[] tags = new String[t.length];
-            for (int i = 0; i < tags.length; i++)
-                tags[i] = maps.reversedMap[t[i]];
-
-            StringBuilder output = new StringBuilder();
-            output.append(sentence.id + "\n");
-            for (int i = 0; i < tags.length; i++) {
-                output.append(i + "\t" + sentence.string_words[i] + "\t" + maps.reversedMap[sentence.lang_ids[i]] + "\t" + tags[i] + "\n");
-                corr += (tags[i] == maps.reversedMap[sentence.pos_tags[i]]) ? 1 : 0;
-                total++;
-            }
-            writer.write(output.toString() + "\n");
+        // correct and all tokens; the handler runs on this thread
+        final int[] counts = new int[2];
+        SentenceReader reader = new SentenceReader(inputPath, maps);
+        int all = new ParallelTagger(this, numThreads).tagSequences(reader, false, new ParallelTagger.SequencesHandler() {
+            int ln = 0;
+
+            @Override
+            public void handle(Sentence sentence, ArrayList<Pair<int[], Float>> sequences) throws Exception {
+                ln++;
+                if (ln % 1000 == 0)
+                    System.out.print(ln + "...");
+
+                int[] t = sequences.get(0).first;
+                String[] tags = new String[t.length];
+                for (int i = 0; i < tags.length; i++)
+                    tags[i] = maps.reversedMap[t[i]];
+
+                StringBuilder output = new StringBuilder();
+                output.append(sentence.id + "\n");
+                for (int i = 0; i < tags.length; i++) {
+                    output.append(i + "\t" + sentence.string_words[i] + "\t" + maps.reversedMap[sentence.lang_ids[i]] + "\t" + tags[i]);
+                    for (int s = 1; s < sequences.size(); s++)
+                        output.append("\t" + maps.reversedMap[sequences.get(s).first[i]]);
+                    for (int s = sequences.size(); s < nbest; s++)
+                        output.append("\t" + MISSING_SEQUENCE);
+                    output.append("\n");
+                    // untagged input (three columns, or a placeholder such as _) has no gold tag to compare with
+                    if (sentence.pos_tags[i] != SpecialWords.unknown.value) {
+                        counts[0] += (tags[i] == maps.reversedMap[sentence.pos_tags[i]]) ? 1 : 0;
+                        counts[1]++;
+                    }
+                }
+                writer.write(output.toString() + "\n");
+                if (flushEachSentence)
+                    writer.flush();
 
-            if (putScore) {
-                float normalizedScore = ts.second / tags.length;
-                scoreWriter.write(normalizedScore + "\n");
+                if (scoreWriter != null) {
+                    StringBuilder scores = new StringBuilder();
+                    for (int s = 0; s < sequences.size(); s++) {
+                        float normalizedScore = sequences.get(s).second / tags.length;
+                        scores.append((s > 0 ? "\t" : "") + normalizedScore);
+                    }
+                    for (int s = sequences.size(); s < nbest; s++)
+                        scores.append("\t" + Float.NEGATIVE_INFINITY);
+                    scoreWriter.write(scores.toString() + "\n");
+                }
             }
-        }
-        System.out.print(ln + "\n");
-        System.out.print("Tagging accuracy: " + (corr * 1.0 / total) + "\n");
+        });
+        reader.close();
+        System.out.print(all + "\n");
+        if (counts[1] > 0)
+            System.out.print("Tagging accuracy: " + (counts[0] * 1.0 / counts[1]) + "\n");
+        if (cache != null)
+            System.out.print(cache.stats());
+        if (perceptron.emissionCache != null)
+            System.out.print(perceptron.emissionCache.stats());
         writer.flush();
         writer.close();
         if (putScore) {
@@ -135,8 +275,12 @@ public class Tagger {
         }
     }
 
+    /**
+     * @return the best tag sequence, then for every position the best sequence with another tag there, with their scores
+     * (exact third-order max-marginals, see MaxMarginals)
+     */
     public ArrayList<Pair<String[], Float>> getPossibleTagReplacements(Sentence sentence) {
-        ArrayList<Pair<int[], Float>> repls = BeamTagger.getPossibleTagsByOneReplacement(sentence, perceptron, beamSize, this);
+        ArrayList<Pair<int[], Float>> repls = new MaxMarginals(sentence, perceptron, workspaces.get()).oneReplacements();
         ArrayList<Pair<String[], Float>> replacements = new ArrayList<Pair<String[], Float>>();
         for (Pair<int[], Float> rpl : repls) {
             String[] tags = new String[rpl.first.length];
@@ -148,41 +292,56 @@ public class Tagger {
         return replacements;
     }
 
+    /**
+     * Tags a partially tagged file on numThreads threads, keeping the input order (the input and output can be the
+     * standard streams, as in tag)
+     */
     public void partialTag(final String inputPath, final String outputPath, String scoreFile) throws Exception {
-        ArrayList<Sentence> sentences = FileManager.readSentences(inputPath, maps);
-        BufferedWriter writer = new BufferedWriter(new FileWriter(outputPath));
+        final BufferedWriter writer = FileManager.openWriter(outputPath);
+        final boolean flushEachSentence = outputPath.equals(FileManager.STANDARD_STREAM);
 
         boolean putScore = false;
-        BufferedWriter scoreWriter = null;
+        BufferedWriter scoreFileWriter = null;
         if (scoreFile != null && !scoreFile.equals("")) {
             putScore = true;
-            scoreWriter = new BufferedWriter(new FileWriter(scoreFile));
+            scoreFileWriter = new BufferedWriter(new FileWriter(scoreFile));
         }
+        final BufferedWriter scoreWriter = scoreFileWriter;
 
         int ln = 0;
-        for (Sentence sentence: sentences) {
-            Pair<int[], Float> ts = tagWithScore(sentence, true);
-            int[] t = ts.first;
-
-            String[] tags = new String[t.length];
-            String[] lang_ids = new String[t.length];
-            for (int i = 0; i < tags.length; i++) {
-                tags[i] = maps.reversedMap[t[i]];
-                lang_ids[i] = maps.reversedMap[sentence.lang_ids[i]];
-             }
-
-            StringBuilder output = new StringBuilder();
-            for (int i = 0; i < tags.length; i++) {
-                output.append(i + "\t" + sentence.string_words[i] + "\t" + lang_ids[i] + "\t" + tags[i] + "\n");
-            }
-            writer.write(output.toString().trim() + "\n");
+        SentenceReader reader = new SentenceReader(inputPath, maps);
+        new ParallelTagger(this, numThreads).tag(reader, true, new ParallelTagger.ResultHandler() {
+            @Override
+            public void handle(Sentence sentence, Pair<int[], Float> ts) throws Exception {
+                int[] t = ts.first;
 
-            if (putScore) {
-                float normalizedScore = ts.second / tags.length;
-                scoreWriter.write(normalizedScore + "\n");
+                String[] tags = new String[t.length];
+                String[] lang_ids = new String[t.length];
+                for (int i = 0; i < tags.length; i++) {
+                    tags[i] = maps.reversedMap[t[i]];
+                    lang_ids[i] = maps.reversedMap[sentence.lang_ids[i]];
+                }
+
+                StringBuilder output = new StringBuilder();
+                for (int i = 0; i < tags.length; i++) {
+                    output.append(i + "\t" + sentence.string_words[i] + "\t" + lang_ids[i] + "\t" + tags[i] + "\n");
+                }
+                writer.write(output.toString().trim() + "\n");
+                if (flushEachSentence)
+                    writer.flush();
+
+                if (scoreWriter != null) {
+                    float normalizedScore = ts.second / tags.length;
+                    scoreWriter.write(normalizedScore + "\n");
+                }
             }
-        }
+        });
+        reader.close();
         System.out.print(ln + "\n");
+        if (cache != null)
+            System.out.print(cache.stats());
+        if (perceptron.emissionCache != null)
+            System.out.print(perceptron.emissionCache.stats());
         writer.flush();
         writer.close();
 
@@ -0,0 +1,106 @@
+package SemiSupervisedPOSTagger.Tagging;
+
+import SemiSupervisedPOSTagger.Learning.AveragedPerceptron;
+import SemiSupervisedPOSTagger.Structures.IndexMaps;
+import SemiSupervisedPOSTagger.Structures.Pair;
+import SemiSupervisedPOSTagger.Structures.Sentence;
+
+/**
+ * A trained model with its decoder settings, for embedding the tagger in a multi-threaded program.
+ * Nothing in it changes after construction, so one instance can be shared by any number of threads; every thread
+ * decodes through its own TaggingSession, which holds the scratch space.
+ */
+public final class TaggerModel {
+    private final AveragedPerceptron perceptron;
+    private final IndexMaps maps;
+    private final boolean useBeamSearch;
+    private final int beamSize;
+    private final boolean recombine;
+    private final float beamMargin;
+    private final int histogramSize;
+
+    /**
+     * Takes the perceptron, the maps and the current decoder settings of a tagger; the tagger must not be
+     * updated afterwards
+     */
+    public TaggerModel(Tagger tagger) {
+        this(tagger.perceptron, tagger.getMaps(), tagger.useBeamSearch, tagger.beamSize, tagger.recombine, tagger.beamMargin, tagger.histogramSize);
+    }
+
+    public TaggerModel(AveragedPerceptron perceptron, IndexMaps maps, boolean useBeamSearch, int beamSize, boolean recombine, float beamMargin,
+                       int histogramSize) {
+        this.perceptron = perceptron;
+        this.maps = maps;
+        this.useBeamSearch = useBeamSearch;
+        this.beamSize = beamSize;
+        this.recombine = recombine;
+        this.beamMargin = beamMargin;
+        this.histogramSize = histogramSize;
+    }
+
+    public static TaggerModel load(String modelPath) throws Exception {
+        return new TaggerModel(new Tagger(modelPath));
+    }
+
+    /**
+     * @return a new session for the calling thread
+     */
+    public TaggingSession newSession() {
+        return new TaggingSession(this);
+    }
+
+    /**
+     * @param maxLag IncrementalSession.EXACT, or the maximum number of decoded words that wait for their tags
+     * @return a new incremental session for the calling thread
+     */
+    public IncrementalSession newIncrementalSession(int maxLag) {
+        return new IncrementalSession(this, maxLag);
+    }
+
+    public int tagSize() {
+        return perceptron.tagSize();
+    }
+
+    public String tagName(int tag) {
+        return maps.reversedMap[tag];
+    }
+
+    /**
+     * @return the id of a tag (or of any other string of the model), or -1 if it is unknown
+     */
+    public int id(String string) {
+        Integer id = maps.stringMap.get(string);
+        return id == null ? -1 : id;
+    }
+
+    public boolean useBeamSearch() {
+        return useBeamSearch;
+    }
+
+    public int beamSize() {
+        return beamSize;
+    }
+
+    AveragedPerceptron perceptron() {
+        return perceptron;
+    }
+
+    IndexMaps maps() {
+        return maps;
+    }
+
+    Pair<int[], Float> decode(Sentence sentence, boolean usePartialInfo, long[] allowedTags, float pruneThreshold, DecoderWorkspace workspace) {
+        return Tagger.decode(perceptron, useBeamSearch, beamSize, recombine, beamMargin, histogramSize, sentence, usePartialInfo, true, allowedTags,
+                pruneThreshold, workspace);
+    }
+
+    /**
+     * Decodes with beam search of the given width (1 is greedy decoding) instead of the decoder of the model, with its
+     * beam settings if it is a beam model and with recombination otherwise
+     */
+    Pair<int[], Float> decodeWithBeam(Sentence sentence, boolean usePartialInfo, int beamWidth, long[] allowedTags, float pruneThreshold,
+                                      DecoderWorkspace workspace) {
+        return Tagger.decode(perceptron, true, beamWidth, !useBeamSearch || recombine, useBeamSearch ? beamMargin : 0, useBeamSearch ? histogramSize : 0,
+                sentence, usePartialInfo, true, allowedTags, pruneThreshold, workspace);
+    }
+}
@@ -0,0 +1,220 @@
+package SemiSupervisedPOSTagger.Tagging;
+
+import SemiSupervisedPOSTagger.Structures.Pair;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+
+/**
+ * Tagging as a reactive-streams stage: takes (words, language ids) pairs and emits (words, tags) pairs in the same
+ * order, decoded in parallel on a fixed pool of threads with a TaggingSession each.
+ * Backpressure: at most capacity sentences are requested from upstream and not yet emitted, and every emitted one
+ * lets one more in; the results are only emitted on downstream demand. A producer that is faster than the tagger (or
+ * than the downstream consumer) is therefore slowed down (e.g. SubmissionPublisher.submit blocks) instead of filling
+ * the memory.
+ * One downstream subscriber is supported.
+ */
+public class TaggingProcessor implements Flow.Processor<Pair<String[], String[]>, Pair<String[], String[]>> {
+    private final int capacity;
+    private final ExecutorService workers;
+    private final ThreadLocal<TaggingSession> sessions;
+
+    /**
+     * The sentences in input order, decoded or not; at most capacity of them
+     */
+    private final ArrayDeque<Slot> slots = new ArrayDeque<Slot>();
+    private Flow.Subscription upstream;
+    private Flow.Subscriber<? super Pair<String[], String[]>> downstream;
+    private long demand;
+    private boolean upstreamDone;
+    private Throwable error;
+    private boolean terminated;
+    private boolean draining;
+    private int maxBuffered;
+
+    private static class Slot {
+        final Pair<String[], String[]> input;
+        String[] tags;
+        RuntimeException error;
+        volatile boolean done;
+
+        Slot(Pair<String[], String[]> input) {
+            this.input = input;
+        }
+    }
+
+    /**
+     * @param capacity maximum number of sentences that are in the processor at the same time
+     */
+    public TaggingProcessor(final TaggerModel model, int numThreads, int capacity) {
+        this.capacity = Math.max(1, capacity);
+        workers = Executors.newFixedThreadPool(Math.max(1, numThreads));
+        sessions = new ThreadLocal<TaggingSession>() {
+            @Override
+            protected TaggingSession initialValue() {
+                return model.newSession();
+            }
+        };
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super Pair<String[], String[]>> subscriber) {
+        boolean accepted;
+        synchronized (this) {
+            accepted = downstream == null;
+            if (accepted)
+                downstream = subscriber;
+        }
+        if (!accepted) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("the processor has a subscriber already"));
+            return;
+        }
+        subscriber.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+                synchronized (TaggingProcessor.this) {
+                    if (n <= 0) {
+                        error = new IllegalArgumentException("non-positive request: " + n);
+                        if (upstream != null)
+                            upstream.cancel();
+                    } else {
+                        demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                    }
+                }
+                drain();
+            }
+
+            @Override
+            public void cancel() {
+                synchronized (TaggingProcessor.this) {
+                    terminated = true;
+                    slots.clear();
+                    if (upstream != null)
+                        upstream.cancel();
+                }
+                workers.shutdown();
+            }
+        });
+        drain();
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        synchronized (this) {
+            if (upstream != null) {
+                subscription.cancel();
+                return;
+            }
+            upstream = subscription;
+        }
+        subscription.request(capacity);
+    }
+
+    @Override
+    public void onNext(Pair<String[], String[]> item) {
+        final Slot slot = new Slot(item);
+        synchronized (this) {
+            if (terminated)
+                return;
+            if (slots.size() == capacity) {
+                // the publisher does not respect the demand
+                error = new IllegalStateException("more sentences than requested");
+                upstream.cancel();
+            } else {
+                slots.add(slot);
+                maxBuffered = Math.max(maxBuffered, slots.size());
+                workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            slot.tags = sessions.get().tagStrings(slot.input.first, slot.input.second);
+                        } catch (RuntimeException e) {
+                            slot.error = e;
+                        }
+                        slot.done = true;
+                        drain();
+                    }
+                });
+            }
+        }
+        drain();
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        synchronized (this) {
+            error = throwable;
+        }
+        drain();
+    }
+
+    @Override
+    public void onComplete() {
+        synchronized (this) {
+            upstreamDone = true;
+        }
+        drain();
+    }
+
+    /**
+     * @return the largest number of sentences that were in the processor at the same time (never above the capacity)
+     */
+    public synchronized int maxBuffered() {
+        return maxBuffered;
+    }
+
+    /**
+     * Emits the decoded sentences at the head of the queue as far as the demand goes, then the termination signal if
+     * it is due. The downstream calls are made under the lock, which keeps them serialized; a request() made from
+     * onNext only raises the demand of the running loop.
+     */
+    private synchronized void drain() {
+        if (draining || downstream == null || terminated)
+            return;
+        draining = true;
+        try {
+            int emitted = 0;
+            while (error == null && demand > 0 && !slots.isEmpty() && slots.peek().done) {
+                Slot slot = slots.poll();
+                if (slot.error != null) {
+                    error = slot.error;
+                    upstream.cancel();
+                    break;
+                }
+                demand--;
+                emitted++;
+                downstream.onNext(new Pair<String[], String[]>(slot.input.first, slot.tags));
+                if (terminated)
+                    return;
+            }
+            if (error != null) {
+                terminate();
+                downstream.onError(error);
+            } else if (upstreamDone && slots.isEmpty()) {
+                terminate();
+                downstream.onComplete();
+            } else if (emitted > 0) {
+                upstream.request(emitted);
+            }
+        } finally {
+            draining = false;
+        }
+    }
+
+    private void terminate() {
+        terminated = true;
+        slots.clear();
+        workers.shutdown();
+    }
+}
@@ -0,0 +1,169 @@
+package SemiSupervisedPOSTagger.Tagging;
+
+import SemiSupervisedPOSTagger.IO.SentenceReader;
+import SemiSupervisedPOSTagger.Structures.IndexMaps;
+import SemiSupervisedPOSTagger.Structures.Pair;
+import SemiSupervisedPOSTagger.Structures.Sentence;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A local HTTP tagging service around one loaded model:
+ * POST /tag and POST /partial_tag take sentences in the input format of the tag and partial_tag commands
+ * (CONLL lines, sentences separated by empty lines) and answer in the output format of the tag command;
+ * GET /stats gives the throughput and latency counters.
+ * Connections are handled on virtual threads when the JVM has them (Java 21 and later; otherwise on a cached pool of
+ * platform threads), and the sentences of all connections are decoded in micro-batches (see MicroBatcher).
+ * The sentences of a request should be decoded within the latency target, or within the milliseconds of its
+ * X-Deadline-Ms header; the server only trades accuracy for it when it degrades (see DeadlinePolicy).
+ */
+public class TaggingServer {
+    private final TaggerModel model;
+    private final MicroBatcher batcher;
+    private final HttpServer server;
+    private final ExecutorService connections;
+    private final boolean virtualThreads;
+
+    public TaggingServer(TaggerModel model, int port, int numThreads, int maxBatch, float latencyTarget, boolean constrainTags, float pruneThreshold,
+                         boolean degrade, int cacheSize) throws IOException {
+        this.model = model;
+        this.batcher = new MicroBatcher(model, numThreads, maxBatch, latencyTarget, constrainTags, pruneThreshold, degrade,
+                cacheSize > 0 ? new ResultCache(cacheSize) : null);
+        ExecutorService executor = virtualThreadExecutor();
+        virtualThreads = executor != null;
+        connections = virtualThreads ? executor : Executors.newCachedThreadPool();
+
+        // the headers and the body of a response are written separately; without TCP_NODELAY small responses wait for delayed acknowledgements
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        server.createContext("/tag", new TagHandler(false));
+        server.createContext("/partial_tag", new TagHandler(true));
+        server.createContext("/stats", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, 200, batcher.stats() + "virtual threads: " + virtualThreads + "\n");
+            }
+        });
+        server.setExecutor(connections);
+    }
+
+    /**
+     * @return Executors.newVirtualThreadPerTaskExecutor() if this JVM has it, otherwise null
+     */
+    private static ExecutorService virtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    public void start() {
+        server.start();
+        System.out.println("serving on http://localhost:" + server.getAddress().getPort() + " (" + (virtualThreads ? "virtual" : "platform")
+                + " connection threads)");
+    }
+
+    public void stop() {
+        server.stop(0);
+        batcher.shutdown();
+        connections.shutdown();
+    }
+
+    public String stats() {
+        return batcher.stats();
+    }
+
+    private class TagHandler implements HttpHandler {
+        private final boolean usePartialInfo;
+
+        TagHandler(boolean usePartialInfo) {
+            this.usePartialInfo = usePartialInfo;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                respond(exchange, 405, "use POST\n");
+                return;
+            }
+            long deadline = 0;
+            String deadlineHeader = exchange.getRequestHeaders().getFirst("X-Deadline-Ms");
+            if (deadlineHeader != null) {
+                try {
+                    deadline = System.nanoTime() + (long) (Double.parseDouble(deadlineHeader) * 1000000L);
+                } catch (NumberFormatException e) {
+                    respond(exchange, 400, "malformed X-Deadline-Ms: " + deadlineHeader + "\n");
+                    return;
+                }
+            }
+            IndexMaps maps = model.maps();
+            ArrayList<Sentence> sentences = new ArrayList<Sentence>();
+            try {
+                // the empty lines at the end make sure that the last sentence is read; empty sentences are skipped
+                SentenceReader reader = new SentenceReader(new StringReader(read(exchange.getRequestBody()) + "\n\n"), maps);
+                Sentence sentence;
+                while ((sentence = reader.next()) != null)
+                    if (sentence.words.length > 0)
+                        sentences.add(sentence);
+            } catch (RuntimeException e) {
+                respond(exchange, 400, "malformed input: " + e + "\n");
+                return;
+            }
+
+            ArrayList<MicroBatcher.Request> requests = new ArrayList<MicroBatcher.Request>(sentences.size());
+            for (Sentence sentence : sentences)
+                requests.add(deadlineHeader != null ? batcher.submit(sentence, usePartialInfo, deadline) : batcher.submit(sentence, usePartialInfo));
+            StringBuilder output = new StringBuilder();
+            try {
+                for (int s = 0; s < sentences.size(); s++) {
+                    Sentence sentence = sentences.get(s);
+                    Pair<int[], Float> result = requests.get(s).get();
+                    if (sentence.id.length() > 0)
+                        output.append(sentence.id + "\n");
+                    for (int i = 0; i < result.first.length; i++)
+                        output.append(i + "\t" + sentence.string_words[i] + "\t" + maps.reversedMap[sentence.lang_ids[i]] + "\t"
+                                + maps.reversedMap[result.first[i]] + "\n");
+                    output.append("\n");
+                }
+            } catch (InterruptedException e) {
+                respond(exchange, 503, "interrupted\n");
+                return;
+            } catch (RuntimeException e) {
+                respond(exchange, 500, "tagging failed: " + e + "\n");
+                return;
+            }
+            respond(exchange, 200, output.toString());
+        }
+    }
+
+    private static String read(InputStream input) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = input.read(buffer)) > 0)
+            bytes.write(buffer, 0, n);
+        input.close();
+        return bytes.toString("UTF-8");
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream output = exchange.getResponseBody();
+        output.write(bytes);
+        output.close();
+    }
+}
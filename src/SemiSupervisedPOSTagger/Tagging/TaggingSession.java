@@ -0,0 +1,163 @@
+package SemiSupervisedPOSTagger.Tagging;
+
+import SemiSupervisedPOSTagger.Structures.Pair;
+import SemiSupervisedPOSTagger.Structures.Sentence;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Decodes in-memory sentences (token strings and language ids) with a shared TaggerModel.
+ * A session owns its decoder scratch space and is not thread-safe: every thread should have its own
+ * (see TaggerModel.newSession); sessions are cheap and can be kept for the lifetime of the thread.
+ */
+public class TaggingSession {
+    /**
+     * The tag of the tokens with no tag information in partial tagging
+     */
+    public static final String UNKNOWN_TAG = "***";
+
+    private final TaggerModel model;
+    private final DecoderWorkspace workspace;
+    private BatchViterbi batchViterbi;
+    /**
+     * Only consider the tag dictionary entries of the words that are in the dictionary
+     */
+    public boolean constrainTags;
+    /**
+     * Coarse-to-fine pruning threshold (see Tagger.pruneThreshold); infinity turns it off
+     */
+    public float pruneThreshold = Float.POSITIVE_INFINITY;
+    /**
+     * Results of already decoded sentences, which the sessions of a model can share, or null for none
+     */
+    public ResultCache cache;
+
+    TaggingSession(TaggerModel model) {
+        this.model = model;
+        this.workspace = new DecoderWorkspace();
+    }
+
+    public TaggerModel model() {
+        return model;
+    }
+
+    /**
+     * @return the tag ids of the words
+     */
+    public int[] tag(String[] words, String[] langIds) {
+        return tagWithScore(words, langIds).first;
+    }
+
+    /**
+     * @return the tag names of the words
+     */
+    public String[] tagStrings(String[] words, String[] langIds) {
+        return tagNames(tag(words, langIds));
+    }
+
+    public Pair<int[], Float> tagWithScore(String[] words, String[] langIds) {
+        return tagWithScore(words, langIds, null);
+    }
+
+    /**
+     * Partial tagging: the given tags are kept and the words tagged UNKNOWN_TAG are decoded
+     *
+     * @param tags tags of the words, or null to decode all of them
+     */
+    public Pair<int[], Float> tagWithScore(String[] words, String[] langIds, String[] tags) {
+        Sentence sentence = sentence(words, langIds, tags);
+        return tagWithScore(sentence, tags != null);
+    }
+
+    /**
+     * Decodes a sentence that is already mapped to the ids of the model
+     */
+    public Pair<int[], Float> tagWithScore(Sentence sentence, boolean usePartialInfo) {
+        Pair<int[], Float> result = cache != null ? cache.get(sentence, usePartialInfo, constrainTags, pruneThreshold) : null;
+        if (result == null) {
+            long[] allowedTags = workspace.allowedTags(sentence, model.perceptron(), constrainTags);
+            result = model.decode(sentence, usePartialInfo, allowedTags, pruneThreshold, workspace);
+            if (cache != null)
+                cache.put(sentence, usePartialInfo, constrainTags, pruneThreshold, result);
+        }
+        return result;
+    }
+
+    /**
+     * Decodes many sentences that are already mapped to the ids of the model, with the same results as tagWithScore
+     * for each of them. With a Viterbi model and neither tag constraints nor pruning, the sentences are decoded in
+     * buckets of similar lengths (see BatchViterbi); otherwise one by one.
+     *
+     * @return the tags and score of every sentence, in the order of the sentences
+     */
+    public ArrayList<Pair<int[], Float>> tagBatch(List<Sentence> sentences, boolean usePartialInfo) {
+        ArrayList<Pair<int[], Float>> results = new ArrayList<Pair<int[], Float>>(sentences.size());
+        if (model.useBeamSearch() || constrainTags || pruneThreshold != Float.POSITIVE_INFINITY) {
+            for (Sentence sentence : sentences)
+                results.add(tagWithScore(sentence, usePartialInfo));
+            return results;
+        }
+        // Viterbi does not use the given tags
+        ArrayList<Sentence> misses = new ArrayList<Sentence>(sentences.size());
+        for (Sentence sentence : sentences) {
+            Pair<int[], Float> result = cache != null ? cache.get(sentence, usePartialInfo, constrainTags, pruneThreshold) : null;
+            results.add(result);
+            if (result == null)
+                misses.add(sentence);
+        }
+        if (misses.isEmpty())
+            return results;
+        if (batchViterbi == null)
+            batchViterbi = new BatchViterbi(model.perceptron(), workspace);
+        ArrayList<Pair<int[], Float>> decoded = batchViterbi.decode(misses);
+        for (int s = 0, m = 0; s < results.size(); s++) {
+            if (results.get(s) != null)
+                continue;
+            Pair<int[], Float> result = decoded.get(m++);
+            results.set(s, result);
+            if (cache != null)
+                cache.put(sentences.get(s), usePartialInfo, constrainTags, pruneThreshold, result);
+        }
+        return results;
+    }
+
+    /**
+     * Decodes with beam search of the given width (1 is greedy decoding) instead of the decoder of the model: faster
+     * and less accurate (see DeadlinePolicy); the cache is not used
+     */
+    public Pair<int[], Float> tagWithBeam(Sentence sentence, boolean usePartialInfo, int beamWidth) {
+        long[] allowedTags = workspace.allowedTags(sentence, model.perceptron(), constrainTags);
+        return model.decodeWithBeam(sentence, usePartialInfo, beamWidth, allowedTags, pruneThreshold, workspace);
+    }
+
+    /**
+     * @return the k best tag sequences with their scores, best first (see KBestViterbi)
+     */
+    public ArrayList<Pair<int[], Float>> tagKBest(String[] words, String[] langIds, int k) {
+        Sentence sentence = sentence(words, langIds, null);
+        return KBestViterbi.kBest(sentence, model.perceptron(), k, workspace.allowedTags(sentence, model.perceptron(), constrainTags), workspace);
+    }
+
+    public String[] tagNames(int[] tags) {
+        String[] names = new String[tags.length];
+        for (int i = 0; i < tags.length; i++)
+            names[i] = model.tagName(tags[i]);
+        return names;
+    }
+
+    /**
+     * Maps the words to the ids of the model, as the file readers do
+     *
+     * @param tags tags of the words (UNKNOWN_TAG for none), or null if none is known
+     */
+    public Sentence sentence(String[] words, String[] langIds, String[] tags) {
+        if (langIds.length != words.length || (tags != null && tags.length != words.length))
+            throw new IllegalArgumentException("the words, language ids and tags should have the same length");
+        ArrayList<String> posTags = new ArrayList<String>(words.length);
+        for (int i = 0; i < words.length; i++)
+            posTags.add(tags != null ? tags[i] : UNKNOWN_TAG);
+        return new Sentence("", new ArrayList<String>(Arrays.asList(words)), posTags, new ArrayList<String>(Arrays.asList(langIds)), model.maps());
+    }
+}
@@ -5,6 +5,8 @@ import SemiSupervisedPOSTagger.Structures.Pair;
 import SemiSupervisedPOSTagger.Structures.Sentence;
 import SemiSupervisedPOSTagger.Structures.SpecialWords;
 
+import java.util.Arrays;
+
 /**
  * Created by Mohammad Sadegh Rasooli.
  * ML-NLP Lab, Department of Computer Science, Columbia University
@@ -14,204 +16,219 @@ import SemiSupervisedPOSTagger.Structures.SpecialWords;
  */
 
 public class Viterbi {
-    public static int[] thirdOrder(final Sentence sentence, final AveragedPerceptron perceptron, final boolean isDecode, final Tagger tagger) {
+    /**
+     * Sentences longer than this are decoded with checkpoints (see checkpointed) instead of full Viterbi tables
+     */
+    public static final int CHECKPOINT_LENGTH = 1000;
+
+    public static int[] thirdOrder(final Sentence sentence, final AveragedPerceptron perceptron, final boolean isDecode) {
+        return thirdOrder(sentence, perceptron, isDecode, new DecoderWorkspace());
+    }
+
+    public static Pair<int[], Float> thirdOrderWithScore(final Sentence sentence, final AveragedPerceptron perceptron, final boolean isDecode) {
+        return thirdOrderWithScore(sentence, perceptron, isDecode, new DecoderWorkspace());
+    }
+
+    public static Pair<int[], Float> thirdOrderWithScore(final Sentence sentence, final AveragedPerceptron perceptron, final boolean isDecode,
+                                                         final DecoderWorkspace workspace) {
+        int[] tags = thirdOrder(sentence, perceptron, isDecode, workspace);
+        return new Pair<int[], Float>(tags, workspace.score);
+    }
+
+    public static Pair<int[], Float> thirdOrderWithScore(final Sentence sentence, final AveragedPerceptron perceptron, final boolean isDecode,
+                                                         final long[] allowedTags, final float pruneThreshold, final DecoderWorkspace workspace) {
+        int[] tags = thirdOrder(sentence, perceptron, isDecode, allowedTags, pruneThreshold, workspace);
+        return new Pair<int[], Float>(tags, workspace.score);
+    }
+
+    /**
+     * Decodes with the scratch space of the given workspace; the score of the best sequence is left in workspace.score
+     */
+    public static int[] thirdOrder(final Sentence sentence, final AveragedPerceptron perceptron, final boolean isDecode, final DecoderWorkspace workspace) {
+        return thirdOrder(sentence, perceptron, isDecode, workspace.allowedTags(sentence, perceptron, false), workspace);
+    }
+
+    /**
+     * Decodes considering only the allowed tags of every position (bitmasks, see DecoderWorkspace.allowedTags),
+     * so the cost of a position is the product of the allowed tag counts of its three last positions.
+     * With all tags allowed the result is the same as the dense decoder.
+     */
+    public static int[] thirdOrder(final Sentence sentence, final AveragedPerceptron perceptron, final boolean isDecode, final long[] allowedTags,
+                                   final DecoderWorkspace workspace) {
+        return thirdOrder(sentence, perceptron, isDecode, allowedTags, Float.POSITIVE_INFINITY, workspace);
+    }
+
+    /**
+     * Coarse-to-fine decoding: with a finite pruneThreshold, a first-order pass first prunes the allowed tags
+     * whose max-marginal is more than the threshold below the best one of their position (see CoarseToFine)
+     */
+    public static int[] thirdOrder(final Sentence sentence, final AveragedPerceptron perceptron, final boolean isDecode, long[] allowedTags,
+                                   final float pruneThreshold, final DecoderWorkspace workspace) {
         int len = sentence.words.length + 1;
 
         float inf = Float.POSITIVE_INFINITY;
 
         int tagSize = perceptron.tagSize();
-        int featSize = perceptron.featureSize();
-        // pai score values
-        float pai[][][] = new float[len][tagSize][tagSize];
-        float emissionScore[][] = new float[len - 1][tagSize];
-        float bigramScore[][] = new float[tagSize][tagSize];
-        float trigramScore[][][] = new float[tagSize][tagSize][tagSize];
-
-        if (!isDecode) {
-            for (int v = 0; v < tagSize; v++) {
-                for (int u = 0; u < tagSize; u++) {
-                    bigramScore[u][v] = perceptron.score(v, featSize - 3, u, isDecode);
-                    for (int w = 0; w < tagSize; w++) {
-                        int bigram = (w << 10) + u;
-                        trigramScore[w][u][v] = perceptron.score(v, featSize - 2, bigram, isDecode);
-                    }
-                }
-            }
-        } else {
-            bigramScore = tagger.bigramScore;
-            trigramScore = tagger.trigramScore;
+        long allTags = DecoderWorkspace.allTags(tagSize);
+        float emissionScore[] = emissionScores(sentence, perceptron, isDecode, allowedTags, workspace);
+        float bigramScore[] = perceptron.bigramScores(isDecode);
+        float trigramScore[] = perceptron.trigramScores(isDecode);
+
+        if (pruneThreshold < inf && sentence.words.length > 0) {
+            workspace.prepareCoarsePass(sentence.words.length, tagSize);
+            CoarseToFine.prune(emissionScore, bigramScore, tagSize, sentence.words.length, allowedTags, pruneThreshold, workspace.prunedTags,
+                    workspace.alpha, workspace.beta);
+            allowedTags = workspace.prunedTags;
         }
 
-        for (int position = 0; position < sentence.words.length; position++) {
-            int[] emissionFeatures = sentence.get_emission_features(position);
-            for (int t = 2; t < tagSize; t++) {
-                emissionScore[position][t] = perceptron.score(emissionFeatures, t, isDecode);
-                // int cond=perceptron.dictCondition(sentence.lowerWords[position],t);
-                int cond = perceptron.dictCondition(sentence.lowercase_words[position], t);
-                if (cond != -1)
-                    emissionScore[position][t] += perceptron.score(t, perceptron.featureSize() - 1, cond, isDecode);
-            }
-        }
+        if (sentence.words.length > CHECKPOINT_LENGTH)
+            return checkpointed(sentence, allowedTags, allTags, tagSize, emissionScore, bigramScore, trigramScore, workspace);
 
+        workspace.prepareViterbi(len, tagSize);
+        float pai[] = workspace.pai;
         // back pointer
-        int[][][] bp = new int[len][tagSize][tagSize];
+        int[] bp = workspace.bp;
+        int layer = tagSize * tagSize;
 
-        // initialization
-        pai[0][0][0] = 0;
-        for (int u = 1; u < tagSize; u++) {
-            for (int v = 1; v < tagSize; v++) {
-                pai[0][u][v] = -inf;
-            }
-        }
-
-        for (int k = 1; k < len; k++) {
-            for (int v = 2; v < tagSize; v++) {
-                for (int u = 0; u < tagSize; u++) {
-                    if (u == 1)
-                        continue;
-                    float max_val = -inf;
-                    int argmax = 0;
-
-
-                    for (int w = 0; w < tagSize; w++) {
-                        if (w == 1 || (w == 0 && k > 1) || (k == 1 && w != 0))
-                            continue;
-                        float score = trigramScore[w][u][v] + bigramScore[u][v] + emissionScore[k - 1][v] + pai[k - 1][w][u];
-                        if (score > max_val) {
-                            max_val = score;
-                            argmax = w;
-                        }
-                    }
-                    pai[k][u][v] = max_val;
-                    bp[k][u][v] = argmax;
-                }
-            }
-        }
-
-        int y1 = SpecialWords.start.value;
-        int y2 = SpecialWords.start.value;
-        float maxVal = -inf;
-        if (sentence.words.length > 1) {
-            for (int u = 2; u < tagSize; u++) {
-                for (int v = 2; v < tagSize; v++) {
-                    float score = bigramScore[v][1] + trigramScore[u][v][1] + pai[len - 1][u][v];
-                    if (score > maxVal) {
-                        maxVal = score;
-                        y1 = u;
-                        y2 = v;
-                    }
-                }
-            }
-        } else {
-            for (int v = 2; v < tagSize; v++) {
-                float score = bigramScore[v][SpecialWords.stop.value] + trigramScore[SpecialWords.start.value][v][SpecialWords.stop.value] + pai[len - 1][SpecialWords.start.value][v];
-                if (score > maxVal) {
-                    maxVal = score;
-                    y2 = v;
-                }
-            }
-        }
+        initialize(pai, 0, tagSize);
+        for (int k = 1; k < len; k++)
+            forward(k, allowedTags, allTags, tagSize, emissionScore, bigramScore, trigramScore, pai, (k - 1) * layer, k * layer, bp, k * layer);
 
         int[] tags = new int[sentence.words.length];
-        int index = sentence.words.length - 1;
-        tags[index] = y2;
-        index--;
-        if (sentence.words.length > 1) {
-            tags[index] = y1;
-            index--;
-        }
-        for (int k = len - 3; k >= 1; k--) {
-            int pr = bp[k + 2][tags[index + 1]][tags[index + 2]];
-            tags[index] = pr;
-            index--;
-        }
+        float maxVal = lastTwoTags(sentence.words.length, allowedTags, allTags, tagSize, bigramScore, trigramScore, pai, (len - 1) * layer, tags);
+        for (int k = len - 1; k >= 3; k--)
+            tags[k - 3] = bp[k * layer + tags[k - 2] * tagSize + tags[k - 1]];
 
+        workspace.score = maxVal;
         return tags;
     }
 
-    public static Pair<int[], Float> thirdOrderWithScore(final Sentence sentence, final AveragedPerceptron perceptron, final boolean isDecode, final Tagger tagger) {
+    /**
+     * Same search as the full tables, in O(sqrt(n) * tagSize^2) memory: only every blockSize-th level of the pai
+     * table is kept during the forward pass, and in the backtrace the levels of each block are recomputed from its
+     * checkpoint, from the last block to the first, to get their back pointers. The recomputation repeats the same
+     * float operations, so the result is identical, at the cost of running the forward pass twice.
+     */
+    private static int[] checkpointed(final Sentence sentence, final long[] allowedTags, final long allTags, final int tagSize, final float[] emissionScore,
+                                      final float[] bigramScore, final float[] trigramScore, final DecoderWorkspace workspace) {
         int len = sentence.words.length + 1;
+        int layer = tagSize * tagSize;
+        int blockSize = (int) Math.ceil(Math.sqrt(len));
+        workspace.prepareCheckpoints(len, tagSize, blockSize);
+        // two rolling levels of pai, the checkpoint levels 0, blockSize, 2 * blockSize, ... and the back pointers of one block
+        float[] pai = workspace.pai;
+        float[] checkpoints = workspace.checkpoints;
+        int[] bp = workspace.bp;
+
+        initialize(pai, 0, tagSize);
+        System.arraycopy(pai, 0, checkpoints, 0, layer);
+        for (int k = 1; k < len; k++) {
+            Arrays.fill(pai, (k & 1) * layer, (k & 1) * layer + layer, 0f);
+            forward(k, allowedTags, allTags, tagSize, emissionScore, bigramScore, trigramScore, pai, ((k - 1) & 1) * layer, (k & 1) * layer, bp, 0);
+            if (k % blockSize == 0)
+                System.arraycopy(pai, (k & 1) * layer, checkpoints, (k / blockSize) * layer, layer);
+        }
 
-        float inf = Float.POSITIVE_INFINITY;
-
-        int tagSize = perceptron.tagSize();
-        int featSize = perceptron.featureSize();
-        // pai score values
-        float pai[][][] = new float[len][tagSize][tagSize];
-        float emissionScore[][] = new float[len - 1][tagSize];
-        float bigramScore[][] = new float[tagSize][tagSize];
-        float trigramScore[][][] = new float[tagSize][tagSize][tagSize];
-
-        if (!isDecode) {
-            for (int v = 0; v < tagSize; v++) {
-                for (int u = 0; u < tagSize; u++) {
-                    // TODO(vsoto): Ask Mohammad
-                    bigramScore[u][v] = perceptron.score(v, featSize - 3, u, isDecode);
-                    for (int w = 0; w < tagSize; w++) {
-                        int bigram = (w << 10) + u;
-                        // TODO(vsoto): Ask Mohammad
-                        trigramScore[w][u][v] = perceptron.score(v, featSize - 2, bigram, isDecode);
-                    }
-                }
+        int[] tags = new int[sentence.words.length];
+        float maxVal = lastTwoTags(sentence.words.length, allowedTags, allTags, tagSize, bigramScore, trigramScore, pai, ((len - 1) & 1) * layer, tags);
+        for (int block = (len - 1) / blockSize; block >= 0; block--) {
+            int first = block * blockSize;
+            int last = Math.min(first + blockSize, len - 1);
+            System.arraycopy(checkpoints, block * layer, pai, (first & 1) * layer, layer);
+            for (int k = first + 1; k <= last; k++) {
+                Arrays.fill(pai, (k & 1) * layer, (k & 1) * layer + layer, 0f);
+                forward(k, allowedTags, allTags, tagSize, emissionScore, bigramScore, trigramScore, pai, ((k - 1) & 1) * layer, (k & 1) * layer, bp,
+                        (k - first - 1) * layer);
             }
-        } else {
-            bigramScore = tagger.bigramScore;
-            trigramScore = tagger.trigramScore;
+            for (int k = last; k > first && k >= 3; k--)
+                tags[k - 3] = bp[(k - first - 1) * layer + tags[k - 2] * tagSize + tags[k - 1]];
         }
 
+        workspace.score = maxVal;
+        return tags;
+    }
+
+    /**
+     * Fills workspace.emissionScore for the allowed tags of every position, indexed [position * tagSize + t]
+     */
+    static float[] emissionScores(final Sentence sentence, final AveragedPerceptron perceptron, final boolean isDecode, final long[] allowedTags,
+                                  final DecoderWorkspace workspace) {
+        int tagSize = perceptron.tagSize();
+        workspace.prepareEmissions(sentence.words.length, tagSize);
+        float emissionScore[] = workspace.emissionScore;
         for (int position = 0; position < sentence.words.length; position++) {
-            int[] emissionFeatures = sentence.get_emission_features(position);
-            // TODO(vsoto): Ask Mohammad
-            for (int t = 2; t < tagSize; t++) {
-                emissionScore[position][t] = perceptron.score(emissionFeatures, t, isDecode);
-                int cond = perceptron.dictCondition(sentence.lowercase_words[position], t);
-                if (cond != -1)
-                    emissionScore[position][t] += perceptron.score(t, perceptron.featureSize() - 1, cond, isDecode);
+            int[] emissionFeatures = sentence.get_emission_features(position, workspace.features);
+            perceptron.emissionScores(emissionFeatures, isDecode, emissionScore, position * tagSize);
+            long dictTags = perceptron.tagMask(sentence.lowercase_words[position]);
+            for (long ts = allowedTags[position]; ts != 0; ts &= ts - 1) {
+                int t = Long.numberOfTrailingZeros(ts);
+                int cond = (int) (dictTags >>> t) & 1;
+                emissionScore[position * tagSize + t] += perceptron.score(t, perceptron.featureSize() - 1, cond, isDecode);
             }
         }
+        return emissionScore;
+    }
 
-        // back pointer
-        int[][][] bp = new int[len][tagSize][tagSize];
-
-        // initialization
-        pai[0][0][0] = 0;
+    /**
+     * Fills the level before the first word: 0 for the start state, -infinity for the others
+     */
+    static void initialize(final float[] pai, final int offset, final int tagSize) {
+        pai[offset] = 0;
         for (int u = 1; u < tagSize; u++) {
             for (int v = 1; v < tagSize; v++) {
-                pai[0][u][v] = -inf;
+                pai[offset + u * tagSize + v] = Float.NEGATIVE_INFINITY;
             }
         }
+    }
 
-        for (int k = 1; k < len; k++) {
-            for (int v = 2; v < tagSize; v++) {
-                for (int u = 0; u < tagSize; u++) {
-                    if (u == 1)
-                        continue;
-                    float max_val = -inf;
-                    int argmax = 0;
-
-
-                    for (int w = 0; w < tagSize; w++) {
-                        if (w == 1 || (w == 0 && k > 1) || (k == 1 && w != 0))
-                            continue;
-                        float score = trigramScore[w][u][v] + bigramScore[u][v] + emissionScore[k - 1][v] + pai[k - 1][w][u];
-                        if (score > max_val) {
-                            max_val = score;
-                            argmax = w;
-                        }
+    /**
+     * Computes level k of pai (at offset) from level k-1 (at prevOffset), with the back pointers at bpOffset;
+     * both levels are indexed [u * tagSize + v]
+     */
+    static void forward(final int k, final long[] allowedTags, final long allTags, final int tagSize, final float[] emissionScore, final float[] bigramScore,
+                                final float[] trigramScore, final float[] pai, final int prevOffset, final int offset, final int[] bp, final int bpOffset) {
+        // v is the tag of word k-1, u and w the tags of the two words before it;
+        // before the first word, u (for k = 1) and w (for k = 2) have always ranged over all tags
+        long vTags = allowedTags[k - 1];
+        long uTags = k == 1 ? allTags | 1L : allowedTags[k - 2];
+        long wTags = k == 1 ? 1L : (k == 2 ? allTags : allowedTags[k - 3]);
+        for (long vs = vTags; vs != 0; vs &= vs - 1) {
+            int v = Long.numberOfTrailingZeros(vs);
+            for (long us = uTags; us != 0; us &= us - 1) {
+                int u = Long.numberOfTrailingZeros(us);
+                float max_val = Float.NEGATIVE_INFINITY;
+                int argmax = 0;
+
+                for (long ws = wTags; ws != 0; ws &= ws - 1) {
+                    int w = Long.numberOfTrailingZeros(ws);
+                    float score = trigramScore[(w * tagSize + u) * tagSize + v] + bigramScore[u * tagSize + v] + emissionScore[(k - 1) * tagSize + v] + pai[prevOffset + w * tagSize + u];
+                    if (score > max_val) {
+                        max_val = score;
+                        argmax = w;
                     }
-                    pai[k][u][v] = max_val;
-                    bp[k][u][v] = argmax;
                 }
+                pai[offset + u * tagSize + v] = max_val;
+                bp[bpOffset + u * tagSize + v] = argmax;
             }
         }
+    }
 
+    /**
+     * Adds the stop transition to the last level of pai (at offset) and puts the best tags of the last two words in tags
+     *
+     * @return the score of the best sequence
+     */
+    static float lastTwoTags(final int length, final long[] allowedTags, final long allTags, final int tagSize, final float[] bigramScore,
+                                     final float[] trigramScore, final float[] pai, final int offset, final int[] tags) {
         int y1 = SpecialWords.start.value;
         int y2 = SpecialWords.start.value;
-        float maxVal = -inf;
-        if (sentence.words.length > 1) {
-            for (int u = 2; u < tagSize; u++) {
-                for (int v = 2; v < tagSize; v++) {
-                    float score = bigramScore[v][1] + trigramScore[u][v][1] + pai[len - 1][u][v];
+        float maxVal = Float.NEGATIVE_INFINITY;
+        if (length > 1) {
+            for (long us = allowedTags[length - 2]; us != 0; us &= us - 1) {
+                int u = Long.numberOfTrailingZeros(us);
+                for (long vs = allowedTags[length - 1]; vs != 0; vs &= vs - 1) {
+                    int v = Long.numberOfTrailingZeros(vs);
+                    float score = bigramScore[v * tagSize + 1] + trigramScore[(u * tagSize + v) * tagSize + 1] + pai[offset + u * tagSize + v];
                     if (score > maxVal) {
                         maxVal = score;
                         y1 = u;
@@ -219,31 +236,19 @@ public class Viterbi {
                     }
                 }
             }
+            tags[length - 2] = y1;
         } else {
-            for (int v = 2; v < tagSize; v++) {
-                float score = bigramScore[v][SpecialWords.stop.value] + trigramScore[SpecialWords.start.value][v][SpecialWords.stop.value] + pai[len - 1][SpecialWords.start.value][v];
+            for (long vs = length > 0 ? allowedTags[0] : allTags; vs != 0; vs &= vs - 1) {
+                int v = Long.numberOfTrailingZeros(vs);
+                float score = bigramScore[v * tagSize + SpecialWords.stop.value] + trigramScore[(SpecialWords.start.value * tagSize + v) * tagSize + SpecialWords.stop.value] + pai[offset + SpecialWords.start.value * tagSize + v];
                 if (score > maxVal) {
                     maxVal = score;
                     y2 = v;
                 }
             }
         }
-
-        int[] tags = new int[sentence.words.length];
-        int index = sentence.words.length - 1;
-        tags[index] = y2;
-        index--;
-        if (sentence.words.length > 1) {
-            tags[index] = y1;
-            index--;
-        }
-        for (int k = len - 3; k >= 1; k--) {
-            int pr = bp[k + 2][tags[index + 1]][tags[index + 2]];
-            tags[index] = pr;
-            index--;
-        }
-
-        return new Pair<int[], Float>(tags, maxVal);
+        if (length > 0)
+            tags[length - 1] = y2;
+        return maxVal;
     }
-
 }
@@ -0,0 +1,90 @@
+package SemiSupervisedPOSTagger.Training;
+
+import SemiSupervisedPOSTagger.IO.FileManager;
+import SemiSupervisedPOSTagger.IO.SentenceCache;
+import SemiSupervisedPOSTagger.IO.SentenceReader;
+import SemiSupervisedPOSTagger.Learning.AveragedPerceptron;
+import SemiSupervisedPOSTagger.Structures.IndexMaps;
+import SemiSupervisedPOSTagger.Structures.Options;
+import SemiSupervisedPOSTagger.Structures.Pair;
+import SemiSupervisedPOSTagger.Structures.Sentence;
+import SemiSupervisedPOSTagger.Tagging.ParallelTagger;
+import SemiSupervisedPOSTagger.Tagging.Tagger;
+
+import java.io.DataOutputStream;
+import java.util.ArrayList;
+
+/**
+ * Self-training: a model trained on the gold data tags the unlabeled corpus, the sentences tagged with a high enough
+ * normalized score (the value written to -score files) are added to the gold data and a new model is trained;
+ * this is repeated for a number of rounds.
+ * The unlabeled corpus is streamed and tagged in parallel while the confident sentences are written to a binary cache
+ * ([model-file].selected), from which they are read back for the next training round.
+ */
+public class SelfTrainer {
+
+    public static void selfTrain(final Options options) throws Exception {
+        IndexMaps maps = FileManager.createIndexMaps(options.trainPath, options.clusterFile, options.tagDictionaryPath, Sentence.BROWN_SIZE);
+        ArrayList<Sentence> gold_sentences = FileManager.readSentences(options.trainPath, maps);
+        ArrayList<Sentence> selected_sentences = new ArrayList<Sentence>();
+        String cachePath = options.modelPath + ".selected";
+
+        for (int round = 0; round <= options.selfTrainingRounds; round++) {
+            System.out.print("\nself-training round " + round + ": " + gold_sentences.size() + " gold and "
+                    + selected_sentences.size() + " selected sentences\n");
+            ArrayList<Sentence> train_sentences = new ArrayList<Sentence>(gold_sentences);
+            train_sentences.addAll(selected_sentences);
+            // read again every round since the maps may have new words for it
+            ArrayList<Sentence> dev_sentences = new ArrayList<Sentence>();
+            if (options.devPath != "")
+                dev_sentences = FileManager.readSentences(options.devPath, maps);
+
+            AveragedPerceptron classifier = new AveragedPerceptron(maps.tagSize, Sentence.NUM_FEATURES, maps.getTagDictionary());
+            Trainer.trainEpochs(options, options.modelPath, maps, classifier, train_sentences, dev_sentences, 1, 0.0);
+            if (round == options.selfTrainingRounds)
+                break;
+
+            Tagger tagger = new Tagger(classifier.averagedView(), maps, options.useBeamSearch, options.beamWidth, options.recombine, options.beamMargin,
+                    options.histogramSize);
+            int selected = selectConfidentSentences(options, tagger, maps, cachePath);
+            if (selected == 0) {
+                System.out.print("no sentence passed the confidence threshold; stopping\n");
+                break;
+            }
+
+            SentenceCache.extendIndexMaps(cachePath, maps);
+            selected_sentences = SentenceCache.readSentences(cachePath, maps);
+        }
+    }
+
+    /**
+     * Tags the unlabeled data and writes the sentences with a normalized score of at least options.confidence to the cache
+     *
+     * @return the number of selected sentences
+     */
+    private static int selectConfidentSentences(final Options options, Tagger tagger, final IndexMaps maps, String cachePath) throws Exception {
+        System.out.print("tagging the unlabeled data...");
+        final DataOutputStream cache = SentenceCache.openWriter(cachePath);
+        final int[] selected = new int[1];
+
+        SentenceReader reader = new SentenceReader(options.unlabeledPath, maps);
+        int all = new ParallelTagger(tagger, options.numThreads).tag(reader, false, new ParallelTagger.ResultHandler() {
+            @Override
+            public void handle(Sentence sentence, Pair<int[], Float> result) throws Exception {
+                // an empty sentence (e.g. from consecutive blank lines) has no normalized score
+                if (sentence.words.length == 0)
+                    return;
+                float normalizedScore = result.second / result.first.length;
+                if (normalizedScore >= options.confidence) {
+                    SentenceCache.write(cache, sentence, result.first, maps);
+                    selected[0]++;
+                }
+            }
+        });
+        reader.close();
+        cache.close();
+
+        System.out.print("done! selected " + selected[0] + " out of " + all + " sentences\n");
+        return selected[0];
+    }
+}
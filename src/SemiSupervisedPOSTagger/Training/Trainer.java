@@ -4,13 +4,26 @@ import SemiSupervisedPOSTagger.IO.FileManager;
 import SemiSupervisedPOSTagger.Learning.AveragedPerceptron;
 import SemiSupervisedPOSTagger.Structures.*;
 import SemiSupervisedPOSTagger.Tagging.BeamTagger;
+import SemiSupervisedPOSTagger.Tagging.DecoderWorkspace;
 import SemiSupervisedPOSTagger.Tagging.Tagger;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.ObjectInputStream;
 import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
 /**
@@ -24,8 +37,21 @@ public class Trainer {
 
 
     public static void train(final Options options) throws Exception {
-        IndexMaps maps = FileManager.createIndexMaps(options.trainPath, options.clusterFile, options.tagDictionaryPath, Sentence.BROWN_SIZE);
-        int unknownIndex = -1;
+        IndexMaps maps;
+        AveragedPerceptron classifier;
+        int firstIter = 1;
+        double best_dev_acc = 0.0;
+
+        if (options.resume) {
+            TrainingCheckpoint checkpoint = loadCheckpoint(options.modelPath + ".checkpoint");
+            maps = checkpoint.maps;
+            classifier = new AveragedPerceptron(checkpoint);
+            firstIter = checkpoint.epoch + 1;
+            best_dev_acc = checkpoint.bestDevAccuracy;
+        } else {
+            maps = FileManager.createIndexMaps(options.trainPath, options.clusterFile, options.tagDictionaryPath, Sentence.BROWN_SIZE);
+            classifier = new AveragedPerceptron(maps.tagSize, Sentence.NUM_FEATURES, maps.getTagDictionary());
+        }
 
         // reading train and dev sentences to a vector
         ArrayList<Sentence> train_sentences = FileManager.readSentences(options.trainPath, maps);
@@ -33,56 +59,128 @@ public class Trainer {
         if (options.devPath != "")
             dev_sentences = FileManager.readSentences(options.devPath, maps);
 
-        AveragedPerceptron classifier = new AveragedPerceptron(maps.tagSize, Sentence.NUM_FEATURES, maps.getTagDictionary());
+        trainEpochs(options, options.modelPath, maps, classifier, train_sentences, dev_sentences, firstIter, best_dev_acc);
+    }
 
-        double best_dev_acc = 0.0;
-        for (int iter = 1; iter <= options.trainingIter; iter++) {
-            System.out.print("\niter: " + iter + "\n");
-            int corr = 0;
-            int all = 0;
-            // Iterating over all training sentences
-            for (int s = 0; s < train_sentences.size(); s++) {
-                Sentence sen = train_sentences.get(s);
-                if ((s + 1) % 1000 == 0)
-                    System.out.print((s + 1) + " ");
-                corr += trainIter(sen, classifier, options.useBeamSearch, options.beamWidth, Sentence.NUM_FEATURES, options.updateMode, unknownIndex, options.C);
-                all += sen.words.length;
-                classifier.incrementIteration();
-            }
-            DecimalFormat format = new DecimalFormat("##.00");
-            float accuracy = (float) corr * 100.0f / all;
-            System.out.print("\ntrain accuracy: " + format.format(accuracy) + "\n");
-
-            if (dev_sentences.size() > 0) {
-                InfoStruct info = new InfoStruct(classifier, options.useBeamSearch, options.beamWidth, maps.getTagDictionary(), classifier
-                        .getAvgPenalizerWeight(), true);
-                saveModel(maps, info, options.modelPath + ".tmp");
-                double acc = devIter(dev_sentences, options.modelPath + ".tmp");
-
-                if (acc > best_dev_acc) {
-                    best_dev_acc = acc;
-                    System.out.print("Saving the new best model based on dev data...");
-                    saveModel(maps, info, options.modelPath);
-                }
-                System.out.print("done!\n");
-            }
+    /**
+     * Trains an existing model further on new sentences (optionally mixed with a sample of replayed old sentences).
+     * New words get new ids in the index maps; the ids the model was trained with are kept.
+     */
+    public static void update(final Options options) throws Exception {
+        System.out.print("loading the model...");
+        ObjectInputStream modelReader = new ObjectInputStream(new GZIPInputStream(new FileInputStream(options.modelPath)));
+        InfoStruct info = (InfoStruct) modelReader.readObject();
+        IndexMaps maps = (IndexMaps) modelReader.readObject();
+        modelReader.close();
+        System.out.print("done!\n");
+
+        // the decoder of the model is kept
+        options.useBeamSearch = info.useBeamSearch;
+        options.beamWidth = info.beamSize;
+        options.recombine = info.recombine;
+        options.beamMargin = info.beamMargin;
+        options.histogramSize = info.histogramSize;
+
+        FileManager.extendIndexMaps(maps, options.trainPath, options.tagDictionaryPath);
+        if (options.replayPath != "")
+            FileManager.extendIndexMaps(maps, options.replayPath, "");
+        AveragedPerceptron classifier = AveragedPerceptron.warmStart(info, maps.getTagDictionary());
+
+        ArrayList<Sentence> train_sentences = FileManager.readSentences(options.trainPath, maps);
+        if (options.replayPath != "") {
+            Random random = new Random(0);
+            ArrayList<Sentence> replay_sentences = FileManager.readSentences(options.replayPath, maps);
+            Collections.shuffle(replay_sentences, random);
+            int replaySize = (int) Math.round(options.replayRatio * replay_sentences.size());
+            train_sentences.addAll(replay_sentences.subList(0, Math.min(replaySize, replay_sentences.size())));
+            Collections.shuffle(train_sentences, random);
         }
+        System.out.print("updating on " + train_sentences.size() + " sentences\n");
+
+        ArrayList<Sentence> dev_sentences = new ArrayList<Sentence>();
+        if (options.devPath != "")
+            dev_sentences = FileManager.readSentences(options.devPath, maps);
 
-        if (dev_sentences.size() > 0) {
-            InfoStruct info = new InfoStruct(classifier, options.useBeamSearch, options.beamWidth, maps.getTagDictionary(), classifier.getAvgPenalizerWeight(), true);
+        String outputPath = options.outputPath != "" ? options.outputPath : options.modelPath;
+        trainEpochs(options, outputPath, maps, classifier, train_sentences, dev_sentences, 1, 0.0);
+    }
 
+    /**
+     * Runs the training epochs firstIter..options.trainingIter.
+     * Models and checkpoints are written by a background thread from snapshots taken at the end of each epoch,
+     * so that the next epoch does not wait for the serialization; the writes of an epoch are only waited for at the end
+     * of the next one, so at most one epoch of snapshots is kept in memory.
+     */
+    static void trainEpochs(final Options options, final String modelPath, final IndexMaps maps, AveragedPerceptron classifier, ArrayList<Sentence> train_sentences,
+                                    ArrayList<Sentence> dev_sentences, int firstIter, double best_dev_acc) throws Exception {
+        int unknownIndex = -1;
+        DecoderWorkspace workspace = new DecoderWorkspace();
+
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        ArrayList<Future<?>> pendingWrites = new ArrayList<Future<?>>();
+
+        try {
+            for (int iter = firstIter; iter <= options.trainingIter; iter++) {
+                System.out.print("\niter: " + iter + "\n");
+                int corr = 0;
+                int all = 0;
+                // Iterating over all training sentences
+                for (int s = 0; s < train_sentences.size(); s++) {
+                    Sentence sen = train_sentences.get(s);
+                    if ((s + 1) % 1000 == 0)
+                        System.out.print((s + 1) + " ");
+                    corr += trainIter(sen, classifier, options.useBeamSearch, options.beamWidth, options.recombine, options.beamMargin, options.histogramSize,
+                            Sentence.NUM_FEATURES, options.updateMode, unknownIndex, options.C, workspace);
+                    all += sen.words.length;
+                    classifier.incrementIteration();
+                }
+                DecimalFormat format = new DecimalFormat("##.00");
+                float accuracy = (float) corr * 100.0f / all;
+                System.out.print("\ntrain accuracy: " + format.format(accuracy) + "\n");
+                waitFor(pendingWrites);
+
+                if (dev_sentences.size() > 0) {
+                    double acc = devIter(dev_sentences, classifier.averagedView(), options.useBeamSearch, options.beamWidth, options.recombine, options.beamMargin,
+                            options.histogramSize, executor, numThreads);
+
+                    if (acc > best_dev_acc) {
+                        best_dev_acc = acc;
+                        System.out.print("Saving the new best model based on dev data...");
+                        InfoStruct info = new InfoStruct(classifier, options.useBeamSearch, options.beamWidth, options.recombine, options.beamMargin, options.histogramSize, maps.getTagDictionary(), classifier
+                                .getAvgPenalizerWeight(), true);
+                        pendingWrites.add(saveModelInBackground(writer, maps, info, modelPath));
+                    }
+                    System.out.print("done!\n");
+                }
+
+                if (options.checkpoint) {
+                    TrainingCheckpoint checkpoint = new TrainingCheckpoint(classifier, maps, iter, best_dev_acc);
+                    pendingWrites.add(saveCheckpointInBackground(writer, checkpoint, modelPath + ".checkpoint"));
+                }
+            }
+
+            // the final model is also written when there is no dev data to pick the best one
+            InfoStruct info = new InfoStruct(classifier, options.useBeamSearch, options.beamWidth, options.recombine, options.beamMargin, options.histogramSize, maps.getTagDictionary(), classifier.getAvgPenalizerWeight(), true);
             System.out.print("saving the model...");
-            saveModel(maps, info, options.modelPath);
+            pendingWrites.add(saveModelInBackground(writer, maps, info, modelPath));
+            waitFor(pendingWrites);
             System.out.print("done!\n");
+        } finally {
+            executor.shutdown();
+            writer.shutdown();
         }
     }
 
-    private static int trainIter(final Sentence sen, AveragedPerceptron classifier, final boolean useBeamSearch, final int beamSize, final int featSize, final UpdateMode updateMode, final int unknownIndex, final double C) {
+    private static int trainIter(final Sentence sen, AveragedPerceptron classifier, final boolean useBeamSearch, final int beamSize, final boolean recombine,
+                                 final float beamMargin, final int histogramSize, final int featSize, final UpdateMode updateMode, final int unknownIndex, final double C,
+                                 final DecoderWorkspace workspace) {
         int corr = 0;
         if (useBeamSearch || updateMode.value == updateMode.standard.value) {
             //  TaggingState predictedState = BeamTagger.thirdOrder(sen, classifier, beamSize, updateMode,unknownIndex);
             //todo
-            ArrayList<TaggingState> bestStates = BeamTagger.thirdOrderNBest(sen, classifier, beamSize, updateMode, unknownIndex, 2);
+            ArrayList<TaggingState> bestStates = BeamTagger.thirdOrderNBest(sen, classifier, beamSize, updateMode, unknownIndex, 2, recombine, beamMargin, histogramSize);
 
             TaggingState predictedState = bestStates.get(0);
             int[] predictedTags = predictedState.tags;
@@ -102,11 +200,11 @@ public class Trainer {
             // updating weights
             if (!same) {
                 updateWeights(sen, classifier, predictedTags, featSize, currentPosition, unknownIndex);
-            } else if (predictedState.score - bestStates.get(1).score <= C) {
+            } else if (bestStates.size() > 1 && predictedState.score - bestStates.get(1).score <= C) {
                 updateWeights(sen, classifier, bestStates.get(1).tags, featSize, currentPosition, unknownIndex);
             }
         } else {
-            int[] predictedTags = Tagger.tag(sen, classifier, false, useBeamSearch, beamSize, false);
+            int[] predictedTags = Tagger.tag(sen, classifier, false, useBeamSearch, beamSize, recombine, beamMargin, histogramSize, false, workspace);
             assert (predictedTags.length == sen.pos_tags.length);
 
             boolean same = true;
@@ -217,36 +315,56 @@ public class Trainer {
         }
     }
 
-    private static double devIter(ArrayList<Sentence> dev_sentences, String modelPath) throws Exception {
-        Tagger tagger = new Tagger(modelPath);
+    /**
+     * Decodes the dev sentences in parallel with the averaged view of the perceptron; nothing is written to disk.
+     */
+    private static double devIter(final ArrayList<Sentence> dev_sentences, final AveragedPerceptron perceptron, final boolean useBeamSearch,
+                                  final int beamSize, final boolean recombine, final float beamMargin, final int histogramSize,
+                                  ExecutorService executor, int numThreads) throws Exception {
         System.out.print("\ndecoding...");
-        int corr = 0;
-        int all = 0;
-        int exact = 0;
-
         long start = System.currentTimeMillis();
 
-        for (int s = 0; s < dev_sentences.size(); s++) {
-            Sentence sen = dev_sentences.get(s);
-            if ((s + 1) % 1000 == 0)
-                System.out.print((s + 1) + " ");
-            int[] predictedTags = tagger.tag(sen, false);
-
-            assert (predictedTags.length == sen.pos_tags.length);
-
-            boolean same = true;
-            for (int t = 0; t < predictedTags.length; t++) {
-                int predicted = predictedTags[t];
-                int gold = sen.pos_tags[t];
-                if (predicted == gold) {
-                    corr++;
-                } else {
-                    same = false;
+        ArrayList<Future<int[]>> results = new ArrayList<Future<int[]>>();
+        int chunkSize = (dev_sentences.size() + numThreads - 1) / numThreads;
+        for (int c = 0; c < dev_sentences.size(); c += chunkSize) {
+            final int from = c;
+            final int to = Math.min(c + chunkSize, dev_sentences.size());
+            results.add(executor.submit(new Callable<int[]>() {
+                @Override
+                public int[] call() {
+                    // correct tokens, all tokens, exact matches
+                    int[] counts = new int[3];
+                    DecoderWorkspace workspace = new DecoderWorkspace();
+                    for (int s = from; s < to; s++) {
+                        Sentence sen = dev_sentences.get(s);
+                        int[] predictedTags = Tagger.tag(sen, perceptron, true, useBeamSearch, beamSize, recombine, beamMargin, histogramSize, false, workspace);
+                        assert (predictedTags.length == sen.pos_tags.length);
+
+                        boolean same = true;
+                        for (int t = 0; t < predictedTags.length; t++) {
+                            if (predictedTags[t] == sen.pos_tags[t]) {
+                                counts[0]++;
+                            } else {
+                                same = false;
+                            }
+                            counts[1]++;
+                        }
+                        if (same)
+                            counts[2]++;
+                    }
+                    return counts;
                 }
-                all++;
-            }
-            if (same)
-                exact++;
+            }));
+        }
+
+        int corr = 0;
+        int all = 0;
+        int exact = 0;
+        for (Future<int[]> result : results) {
+            int[] counts = result.get();
+            corr += counts[0];
+            all += counts[1];
+            exact += counts[2];
         }
         long end = System.currentTimeMillis();
         DecimalFormat format = new DecimalFormat("##.00");
@@ -262,50 +380,61 @@ public class Trainer {
     }
 
 
-    private static void devIter(ArrayList<Sentence> dev_sentences, String modelPath, AveragedPerceptron perceptron) throws Exception {
-        Tagger tagger = new Tagger(modelPath);
-        tagger.perceptron = perceptron;
-        System.out.print("\ndecoding...");
-        int corr = 0;
-        int all = 0;
-        int exact = 0;
-
-        long start = System.currentTimeMillis();
-
-        for (int s = 0; s < dev_sentences.size(); s++) {
-            Sentence sen = dev_sentences.get(s);
-            if ((s + 1) % 1000 == 0)
-                System.out.print((s + 1) + " ");
-            int[] predictedTags = tagger.tag(sen, false, false);
-
-            assert (predictedTags.length == sen.pos_tags.length);
+    /**
+     * Waits for the queued writes, rethrowing the first error one of them ran into
+     */
+    private static void waitFor(ArrayList<Future<?>> pendingWrites) throws Exception {
+        try {
+            for (Future<?> write : pendingWrites)
+                write.get();
+        } finally {
+            pendingWrites.clear();
+        }
+    }
 
-            boolean same = true;
-            for (int t = 0; t < predictedTags.length; t++) {
-                int predicted = predictedTags[t];
-                int gold = sen.pos_tags[t];
-                if (predicted == gold) {
-                    corr++;
-                } else {
-                    same = false;
-                }
-                all++;
+    /**
+     * Queues a model write on the writer thread, which runs the writes one at a time in order
+     */
+    private static Future<?> saveModelInBackground(ExecutorService writer, final IndexMaps maps, final InfoStruct info, final String modelPath) {
+        return writer.submit(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                saveModel(maps, info, modelPath);
+                return null;
             }
-            if (same)
-                exact++;
-        }
-        long end = System.currentTimeMillis();
-        DecimalFormat format = new DecimalFormat("##.00");
+        });
+    }
 
-        float duration = (float) (end - start) / dev_sentences.size();
-        System.out.print("\nduration " + format.format(duration) + " ms per sentence\n");
+    private static Future<?> saveCheckpointInBackground(ExecutorService writer, final TrainingCheckpoint checkpoint, final String checkpointPath) {
+        return writer.submit(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                saveCheckpoint(checkpoint, checkpointPath);
+                return null;
+            }
+        });
+    }
 
-        float accuracy = (float) corr * 100.0f / all;
-        float exact_match = (float) exact * 100.0f / dev_sentences.size();
-        System.out.print("dev accuracy is " + format.format(accuracy) + "\n");
-        System.out.print("dev exact match is " + format.format(exact_match) + "\n");
+    /**
+     * Writes to a temporary file first, so that a crash while writing keeps the previous checkpoint intact
+     */
+    public static void saveCheckpoint(TrainingCheckpoint checkpoint, String checkpointPath) throws Exception {
+        File tmpFile = new File(checkpointPath + ".tmp");
+        ObjectOutput writer = new ObjectOutputStream(new GZIPOutputStream(new FileOutputStream(tmpFile)));
+        writer.writeObject(checkpoint);
+        writer.flush();
+        writer.close();
+        Files.move(tmpFile.toPath(), new File(checkpointPath).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
     }
 
+    public static TrainingCheckpoint loadCheckpoint(String checkpointPath) throws Exception {
+        System.out.print("loading the checkpoint...");
+        ObjectInputStream reader = new ObjectInputStream(new GZIPInputStream(new FileInputStream(checkpointPath)));
+        TrainingCheckpoint checkpoint = (TrainingCheckpoint) reader.readObject();
+        reader.close();
+        System.out.print("done! resuming after iter " + checkpoint.epoch + "\n");
+        return checkpoint;
+    }
 
     public static void saveModel(IndexMaps maps, InfoStruct info, String modelPath) throws Exception {
         FileOutputStream fos = new FileOutputStream(modelPath);
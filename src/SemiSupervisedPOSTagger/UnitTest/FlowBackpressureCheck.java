@@ -0,0 +1,119 @@
+package SemiSupervisedPOSTagger.UnitTest;
+
+import SemiSupervisedPOSTagger.Structures.Pair;
+import SemiSupervisedPOSTagger.Tagging.TaggerModel;
+import SemiSupervisedPOSTagger.Tagging.TaggingProcessor;
+import SemiSupervisedPOSTagger.Tagging.TaggingSession;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SubmissionPublisher;
+
+/**
+ * Checks that TaggingProcessor keeps the memory bounded under a publisher that is much faster than the tagger: the
+ * sentences of a file are submitted over and over as fast as possible, a slow subscriber requests a few at a time,
+ * and the number of sentences in the processor, the used heap and the order and tags of the results are checked.
+ * usage: FlowBackpressureCheck [model-file] [input-file] [#sentences (default:20000)] [capacity (default:64)]
+ */
+public class FlowBackpressureCheck {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("usage: FlowBackpressureCheck [model-file] [input-file] [#sentences (default:20000)] [capacity (default:64)]");
+            return;
+        }
+        TaggerModel model = TaggerModel.load(args[0]);
+        final int count = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+        final int capacity = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+
+        final ArrayList<Pair<String[], String[]>> inputs = new ArrayList<Pair<String[], String[]>>();
+        BufferedReader reader = new BufferedReader(new FileReader(args[1]));
+        ArrayList<String> words = new ArrayList<String>();
+        ArrayList<String> langIds = new ArrayList<String>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.trim().length() == 0) {
+                if (words.size() > 0)
+                    inputs.add(new Pair<String[], String[]>(words.toArray(new String[words.size()]), langIds.toArray(new String[langIds.size()])));
+                words.clear();
+                langIds.clear();
+            } else if (!line.startsWith("#")) {
+                String[] tokens = line.trim().split("\t");
+                words.add(tokens[1]);
+                langIds.add(tokens[2]);
+            }
+        }
+        reader.close();
+
+        // the expected tags, sentence by sentence
+        TaggingSession session = model.newSession();
+        final String[][] expected = new String[inputs.size()][];
+        for (int s = 0; s < inputs.size(); s++)
+            expected[s] = session.tagStrings(inputs.get(s).first, inputs.get(s).second);
+
+        final TaggingProcessor processor = new TaggingProcessor(model, 2, capacity);
+        final SubmissionPublisher<Pair<String[], String[]>> publisher = new SubmissionPublisher<Pair<String[], String[]>>(
+                ForkJoinPool.commonPool(), 16);
+        publisher.subscribe(processor);
+
+        final CountDownLatch finished = new CountDownLatch(1);
+        final long[] received = new long[1];
+        final long[] mismatches = new long[1];
+        final Throwable[] failure = new Throwable[1];
+        processor.subscribe(new Flow.Subscriber<Pair<String[], String[]>>() {
+            Flow.Subscription subscription;
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(4);
+            }
+
+            @Override
+            public void onNext(Pair<String[], String[]> result) {
+                int s = (int) (received[0]++ % inputs.size());
+                if (result.first != inputs.get(s).first || !Arrays.equals(result.second, expected[s]))
+                    mismatches[0]++;
+                if (received[0] % 4 == 0)
+                    subscription.request(4);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                failure[0] = throwable;
+                finished.countDown();
+            }
+
+            @Override
+            public void onComplete() {
+                finished.countDown();
+            }
+        });
+
+        // the publisher only waits when the buffers are full
+        Runtime runtime = Runtime.getRuntime();
+        long maxUsed = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            publisher.submit(inputs.get(i % inputs.size()));
+            if (i % 1000 == 0)
+                maxUsed = Math.max(maxUsed, runtime.totalMemory() - runtime.freeMemory());
+        }
+        publisher.close();
+        finished.await();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        boolean ok = failure[0] == null && received[0] == count && mismatches[0] == 0 && processor.maxBuffered() <= capacity;
+        System.out.println("sentences: " + received[0] + " of " + count + " in " + String.format("%.1f", seconds) + " s");
+        System.out.println("mismatches: " + mismatches[0]);
+        System.out.println("max sentences in the processor: " + processor.maxBuffered() + " (capacity " + capacity + ")");
+        System.out.println("max used heap MB: " + maxUsed / (1024 * 1024) + " (max heap " + runtime.maxMemory() / (1024 * 1024) + ")");
+        if (failure[0] != null)
+            System.out.println("error: " + failure[0]);
+        System.out.println(ok ? "OK" : "FAILED");
+    }
+}
@@ -0,0 +1,80 @@
+package SemiSupervisedPOSTagger.UnitTest;
+
+import SemiSupervisedPOSTagger.Tagging.Tagger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.ArrayList;
+
+/**
+ * Checks that "tag -nbest k" writes the output of plain "tag" in its first tag and score columns (k-best decodes the
+ * same lattice as Viterbi; with a beam search model, plain tagging is run with Viterbi for the comparison), that the
+ * sequences of every sentence are in decreasing score order, and that all the token and score lines have k columns.
+ * usage: NBestCheck [model-file] [input-file] [k (default:5)]
+ */
+public class NBestCheck {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("usage: NBestCheck [model-file] [input-file] [k (default:5)]");
+            return;
+        }
+        int k = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        Tagger tagger = new Tagger(args[0]);
+        File output = File.createTempFile("nbest", ".out");
+        File scores = File.createTempFile("nbest", ".score");
+        File kOutput = File.createTempFile("nbest", ".kout");
+        File kScores = File.createTempFile("nbest", ".kscore");
+        try {
+            tagger.useBeamSearch = false;
+            tagger.tag(args[1], output.getPath(), scores.getPath());
+            tagger.nbest = k;
+            tagger.tag(args[1], kOutput.getPath(), kScores.getPath());
+
+            ArrayList<String> lines = read(output);
+            ArrayList<String> kLines = read(kOutput);
+            check(lines.size() == kLines.size(), "the outputs have " + lines.size() + " and " + kLines.size() + " lines");
+            for (int l = 0; l < lines.size(); l++) {
+                String[] fields = lines.get(l).split("\t");
+                String[] kFields = kLines.get(l).split("\t");
+                if (fields.length < 4)
+                    continue;
+                check(kFields.length == fields.length + k - 1, "line " + (l + 1) + " has " + kFields.length + " fields");
+                for (int f = 0; f < fields.length; f++)
+                    check(fields[f].equals(kFields[f]), "line " + (l + 1) + ": " + lines.get(l) + " / " + kLines.get(l));
+            }
+
+            ArrayList<String> scoreLines = read(scores);
+            ArrayList<String> kScoreLines = read(kScores);
+            check(scoreLines.size() == kScoreLines.size(), "the score files have " + scoreLines.size() + " and " + kScoreLines.size() + " lines");
+            for (int l = 0; l < scoreLines.size(); l++) {
+                String[] kFields = kScoreLines.get(l).split("\t");
+                check(kFields.length == k, "score line " + (l + 1) + " has " + kFields.length + " scores");
+                check(scoreLines.get(l).equals(kFields[0]), "score line " + (l + 1) + ": " + scoreLines.get(l) + " / " + kScoreLines.get(l));
+                for (int s = 1; s < k; s++)
+                    check(!(Float.parseFloat(kFields[s]) > Float.parseFloat(kFields[s - 1])), "score line " + (l + 1) + " is not sorted: " + kScoreLines.get(l));
+            }
+            System.out.println("OK: " + scoreLines.size() + " sentences");
+        } finally {
+            output.delete();
+            scores.delete();
+            kOutput.delete();
+            kScores.delete();
+        }
+    }
+
+    private static ArrayList<String> read(File file) throws Exception {
+        ArrayList<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        String line;
+        while ((line = reader.readLine()) != null)
+            lines.add(line);
+        reader.close();
+        return lines;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition)
+            throw new IllegalStateException(message);
+    }
+}
@@ -0,0 +1,74 @@
+package SemiSupervisedPOSTagger.UnitTest;
+
+import SemiSupervisedPOSTagger.Tagging.Tagger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.util.Arrays;
+
+/**
+ * Checks that "tag -pipe" tags untagged input, as a tokenizer writes it: the sentences of a gold file are piped through
+ * a separate tagger process with only three columns, and with "_" in the tag column, and its standard output must be
+ * the output of tagging the gold file.
+ * usage: PipeCheck [model-file] [gold-file]
+ */
+public class PipeCheck {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("usage: PipeCheck [model-file] [gold-file]");
+            return;
+        }
+        File expected = File.createTempFile("pipe", ".expected");
+        File threeColumns = File.createTempFile("pipe", ".in3");
+        File placeholders = File.createTempFile("pipe", ".in4");
+        File output = File.createTempFile("pipe", ".out");
+        try {
+            new Tagger(args[0]).tag(args[1], expected.getPath(), "");
+            untag(args[1], threeColumns, null);
+            untag(args[1], placeholders, "_");
+            for (File input : new File[]{threeColumns, placeholders}) {
+                ProcessBuilder builder = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(), "-cp",
+                        System.getProperty("java.class.path"), "SemiSupervisedPOSTagger.Main", "tag", "-pipe", "-model", args[0]);
+                builder.redirectInput(input);
+                builder.redirectOutput(output);
+                builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+                int exit = builder.start().waitFor();
+                if (exit != 0)
+                    throw new IllegalStateException("the tagger exited with " + exit + " on " + (input == threeColumns ? "three columns" : "_ tags"));
+                if (!Arrays.equals(read(expected), read(output)))
+                    throw new IllegalStateException("the output on " + (input == threeColumns ? "three columns" : "_ tags") + " differs from the gold file's");
+            }
+            System.out.println("OK");
+        } finally {
+            expected.delete();
+            threeColumns.delete();
+            placeholders.delete();
+            output.delete();
+        }
+    }
+
+    /**
+     * Copies a CONLL file without its tag column, or with the given placeholder in it
+     */
+    private static void untag(String path, File target, String placeholder) throws Exception {
+        BufferedReader reader = new BufferedReader(new FileReader(path));
+        BufferedWriter writer = new BufferedWriter(new FileWriter(target));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] tokens = line.split("\t");
+            if (line.trim().length() == 0 || line.startsWith("#") || tokens.length < 4)
+                writer.write(line + "\n");
+            else
+                writer.write(tokens[0] + "\t" + tokens[1] + "\t" + tokens[2] + (placeholder != null ? "\t" + placeholder : "") + "\n");
+        }
+        reader.close();
+        writer.close();
+    }
+
+    private static byte[] read(File file) throws Exception {
+        return java.nio.file.Files.readAllBytes(file.toPath());
+    }
+}